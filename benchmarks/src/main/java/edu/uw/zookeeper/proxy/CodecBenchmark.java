@@ -0,0 +1,94 @@
+package edu.uw.zookeeper.proxy;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.data.Stat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.google.common.base.Optional;
+
+import edu.uw.zookeeper.client.trace.ProtocolTracingCodec;
+import edu.uw.zookeeper.common.Publisher;
+import edu.uw.zookeeper.protocol.ConnectMessage;
+import edu.uw.zookeeper.protocol.Encodable;
+import edu.uw.zookeeper.protocol.Message;
+import edu.uw.zookeeper.protocol.ProtocolCodec;
+import edu.uw.zookeeper.protocol.ProtocolRequestMessage;
+import edu.uw.zookeeper.protocol.ProtocolResponseMessage;
+import edu.uw.zookeeper.protocol.client.ClientProtocolCodec;
+import edu.uw.zookeeper.protocol.proto.IGetDataRequest;
+import edu.uw.zookeeper.protocol.proto.IGetDataResponse;
+
+/**
+ * Backend codec encode and decode of a read, with the library's tracing codec
+ * that the default JSON trace path uses, and with the plain client codec.
+ *
+ * Trace events go to a publisher that only counts them,
+ * so the difference is the cost of creating the events in the codec.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CodecBenchmark {
+
+    @Param({"false", "true"})
+    public boolean trace;
+
+    protected ProtocolCodec<Message.ClientSession, Message.ServerSession, Message.ClientSession, Message.ServerSession> codec;
+    protected CountingPublisher publisher;
+    protected Message.ClientRequest<?> request;
+    protected ByteBuf response;
+    protected ByteBuf output;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        publisher = new CountingPublisher();
+        codec = trace ? ProtocolTracingCodec.defaults(publisher) : ClientProtocolCodec.defaults();
+        output = Unpooled.directBuffer(1024);
+        // the codec only decodes responses once its session is established
+        codec.encode(ConnectMessage.Request.NewRequest.newInstance(), output);
+        codec.decode(frame(ConnectMessage.Response.Valid.newInstance(
+                StubSessionExecutor.newSession(1L), false, false)));
+        request = ProtocolRequestMessage.of(1, new IGetDataRequest("/benchmark", false));
+        response = frame(ProtocolResponseMessage.of(1, 1L, new IGetDataResponse(new byte[64], new Stat())));
+    }
+
+    @Benchmark
+    public Optional<? extends Message.ServerSession> roundTrip() throws Exception {
+        output.clear();
+        codec.encode(request, output);
+        return codec.decode(response.duplicate());
+    }
+
+    /**
+     * Length-prefixed, as received from the server.
+     */
+    protected static ByteBuf frame(Encodable message) throws Exception {
+        ByteBuf body = message.encode(Unpooled.buffer());
+        ByteBuf frame = Unpooled.directBuffer(4 + body.readableBytes());
+        frame.writeInt(body.readableBytes());
+        frame.writeBytes(body);
+        return frame;
+    }
+
+    protected static final class CountingPublisher implements Publisher {
+
+        protected long events = 0L;
+
+        @Override
+        public void post(Object event) {
+            events++;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package edu.uw.zookeeper.proxy;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.data.Stat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import edu.uw.zookeeper.protocol.Message;
+import edu.uw.zookeeper.protocol.ProtocolRequestMessage;
+import edu.uw.zookeeper.protocol.ProtocolResponseMessage;
+import edu.uw.zookeeper.protocol.proto.IGetDataRequest;
+import edu.uw.zookeeper.protocol.proto.IGetDataResponse;
+
+/**
+ * The proxy's own per-request work in the steady-state forwarding loop.
+ *
+ * Requests and backend responses are preallocated and reused,
+ * so the GC profiler's <code>gc.alloc.rate.norm</code> is what the proxy allocates per request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CompletionBenchmark {
+
+    @Param({"false", "true"})
+    public boolean metrics;
+
+    @Param({"1", "64"})
+    public int xids;
+
+    protected ProxySessionExecutor executor;
+    protected Message.ClientRequest<?>[] requests;
+    protected int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ProxyFeatures features = ProxyFeatures.none();
+        if (metrics) {
+            features = features.setMetrics(ProxyMetrics.newInstance());
+        }
+        IGetDataResponse record = new IGetDataResponse(new byte[64], new Stat());
+        final ListenableFuture<Message.ServerResponse<?>> response = 
+                Futures.<Message.ServerResponse<?>>immediateFuture(ProtocolResponseMessage.of(1, 1L, record));
+        executor = new StubSessionExecutor(
+                StubSessionExecutor.newSession(1L),
+                record,
+                features) {
+            @Override
+            protected ListenableFuture<Message.ServerResponse<?>> forward(Message.ClientRequest<?> request) {
+                return response;
+            }
+        };
+        // cycling through more xids than there are slots reuses every slot
+        requests = new Message.ClientRequest<?>[xids];
+        for (int i=0; i<xids; ++i) {
+            requests[i] = ProtocolRequestMessage.of(i + 1, new IGetDataRequest("/benchmark", false));
+        }
+        next = 0;
+    }
+
+    @Benchmark
+    public ListenableFuture<Message.ServerResponse<?>> submit() {
+        int i = next;
+        next = (i + 1 == xids) ? 0 : i + 1;
+        return executor.submit(requests[i]);
+    }
+}
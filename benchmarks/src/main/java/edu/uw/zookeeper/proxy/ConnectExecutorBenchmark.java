@@ -0,0 +1,95 @@
+package edu.uw.zookeeper.proxy;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.data.Stat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import edu.uw.zookeeper.protocol.ConnectMessage;
+import edu.uw.zookeeper.protocol.Session;
+import edu.uw.zookeeper.protocol.client.MessageClientExecutor;
+import edu.uw.zookeeper.protocol.proto.IGetDataResponse;
+
+/**
+ * Proxy-side connect handling.
+ *
+ * A new session is measured from the backend handshake response onwards,
+ * since establishing a real backend session is not proxy work.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ConnectExecutorBenchmark {
+
+    @Param({"1000", "100000"})
+    public int sessions;
+
+    protected LongConcurrentHashMap<ProxySessionExecutor> executors;
+    protected ProxyConnectExecutor connector;
+    protected ConnectMessage.Request[] renewals;
+    protected ConnectMessage.Response[] responses;
+    protected int next;
+    // id of the session being connected
+    protected long session;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        executors = LongConcurrentHashMap.newInstance();
+        connector = new ProxyConnectExecutor(executors, null, ProxyFeatures.none()) {
+            @Override
+            protected ConnectMessage.Response connected(
+                    MessageClientExecutor<?> client,
+                    ConnectMessage.Response response) {
+                session = response.getSessionId();
+                return super.connected(client, response);
+            }
+
+            @Override
+            protected ProxySessionExecutor newExecutor(MessageClientExecutor<?> client) {
+                // each executor gets the id of the session it is registered under
+                return new StubSessionExecutor(
+                        StubSessionExecutor.newSession(session),
+                        new IGetDataResponse(new byte[0], new Stat()),
+                        features);
+            }
+        };
+        renewals = new ConnectMessage.Request[sessions];
+        responses = new ConnectMessage.Response[sessions];
+        for (int i=0; i<sessions; ++i) {
+            Session session = StubSessionExecutor.newSession(i + 1);
+            renewals[i] = ConnectMessage.Request.RenewRequest.newInstance(session, 0L);
+            responses[i] = ConnectMessage.Response.Valid.newInstance(session, false, false);
+            connector.connected(null, responses[i]);
+        }
+        next = 0;
+    }
+
+    @Benchmark
+    public ListenableFuture<ConnectMessage.Response> renew() {
+        return connector.submit(renewals[next()]);
+    }
+
+    @Benchmark
+    public ConnectMessage.Response connected() {
+        int i = next();
+        // replace the session so the map does not grow
+        executors.remove(responses[i].getSessionId());
+        return connector.connected(null, responses[i]);
+    }
+
+    protected int next() {
+        int i = next;
+        next = (i + 1 == sessions) ? 0 : i + 1;
+        return i;
+    }
+}
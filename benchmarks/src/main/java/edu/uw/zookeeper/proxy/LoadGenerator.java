@@ -0,0 +1,245 @@
+package edu.uw.zookeeper.proxy;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import edu.uw.zookeeper.common.DefaultsFactory;
+import edu.uw.zookeeper.protocol.ConnectMessage;
+import edu.uw.zookeeper.protocol.Message;
+import edu.uw.zookeeper.protocol.Operation;
+import edu.uw.zookeeper.protocol.ProtocolRequestMessage;
+import edu.uw.zookeeper.protocol.client.MessageClientExecutor;
+import edu.uw.zookeeper.protocol.proto.ICreateRequest;
+import edu.uw.zookeeper.protocol.proto.IGetDataRequest;
+import edu.uw.zookeeper.protocol.proto.ISetDataRequest;
+import edu.uw.zookeeper.protocol.proto.Records;
+
+/**
+ * Closed-loop load from many sessions, each keeping one request outstanding.
+ */
+public class LoadGenerator {
+
+    public static LoadGenerator newInstance(
+            DefaultsFactory<ConnectMessage.Request, ? extends ListenableFuture<? extends MessageClientExecutor<?>>> clients,
+            Mix mix) {
+        return new LoadGenerator(clients, mix);
+    }
+
+    public static final String ROOT = "/load";
+    
+    protected static final long CLOSE_MILLIS = 10000L;
+
+    /**
+     * Fractions of reads and writes; the remainder are watched reads.
+     */
+    public static class Mix {
+
+        protected final double reads;
+        protected final double writes;
+        protected final int nodes;
+        protected final int dataBytes;
+
+        public Mix(double reads, double writes, int nodes, int dataBytes) {
+            this.reads = reads;
+            this.writes = writes;
+            this.nodes = nodes;
+            this.dataBytes = dataBytes;
+        }
+
+        public Records.Request next(Random random) {
+            String path = path(random.nextInt(nodes));
+            double p = random.nextDouble();
+            if (p < reads) {
+                return new IGetDataRequest(path, false);
+            } else if (p < reads + writes) {
+                return new ISetDataRequest(path, new byte[dataBytes], -1);
+            } else {
+                return new IGetDataRequest(path, true);
+            }
+        }
+
+        public String path(int node) {
+            return ROOT + "/" + node;
+        }
+    }
+
+    public static class Result {
+
+        protected final long operations;
+        protected final long errors;
+        protected final long nanos;
+        protected final Histogram latency;
+
+        public Result(long operations, long errors, long nanos, Histogram latency) {
+            this.operations = operations;
+            this.errors = errors;
+            this.nanos = nanos;
+            this.latency = latency;
+        }
+
+        public double throughput() {
+            return operations / (nanos / 1.0e9);
+        }
+
+        public long percentile(double percentile) {
+            return latency.getValueAtPercentile(percentile);
+        }
+
+        public String toString(String name) {
+            return String.format("%-8s %10.0f ops/s %8d errors  p50 %6d us  p99 %6d us  p999 %6d us",
+                    name, throughput(), errors, percentile(50.0), percentile(99.0), percentile(99.9));
+        }
+    }
+
+    protected final DefaultsFactory<ConnectMessage.Request, ? extends ListenableFuture<? extends MessageClientExecutor<?>>> clients;
+    protected final Mix mix;
+    protected final Recorder latency;
+    protected final AtomicLong operations;
+    protected final AtomicLong errors;
+    protected volatile boolean running;
+    // counted down by each driver once it stops
+    protected volatile CountDownLatch done;
+
+    public LoadGenerator(
+            DefaultsFactory<ConnectMessage.Request, ? extends ListenableFuture<? extends MessageClientExecutor<?>>> clients,
+            Mix mix) {
+        this.clients = clients;
+        this.mix = mix;
+        this.latency = new Recorder(3);
+        this.operations = new AtomicLong(0L);
+        this.errors = new AtomicLong(0L);
+        this.running = false;
+        this.done = null;
+    }
+
+    /**
+     * Creates the nodes used by the mix, ignoring those that already exist.
+     */
+    public void populate() throws Exception {
+        MessageClientExecutor<?> client = clients.get().get();
+        try {
+            populate(client);
+        } finally {
+            client.connection().close();
+        }
+    }
+
+    protected void populate(MessageClientExecutor<?> client) throws Exception {
+        int xid = 0;
+        List<ListenableFuture<Message.ServerResponse<?>>> futures = Lists.newArrayListWithCapacity(mix.nodes + 1);
+        futures.add(client.submit(ProtocolRequestMessage.of(++xid,
+                new ICreateRequest(ROOT, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT.toFlag()))));
+        for (int i=0; i<mix.nodes; ++i) {
+            futures.add(client.submit(ProtocolRequestMessage.of(++xid,
+                    new ICreateRequest(mix.path(i), new byte[mix.dataBytes], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT.toFlag()))));
+        }
+        for (Message.ServerResponse<?> response: Futures.allAsList(futures).get()) {
+            if ((response.record() instanceof Operation.Error)
+                    && (((Operation.Error) response.record()).error() != KeeperException.Code.NODEEXISTS)) {
+                throw KeeperException.create(((Operation.Error) response.record()).error());
+            }
+        }
+    }
+
+    /**
+     * Connects the sessions, discards warmup results, and measures for the duration.
+     * Then waits for outstanding requests and closes the sessions.
+     * 
+     * A session whose request fails stops sending.
+     */
+    public Result run(int sessions, long warmup, long duration, TimeUnit unit) throws Exception {
+        List<ListenableFuture<? extends MessageClientExecutor<?>>> connecting = Lists.newArrayListWithCapacity(sessions);
+        for (int i=0; i<sessions; ++i) {
+            connecting.add(clients.get());
+        }
+        List<MessageClientExecutor<?>> connected = Lists.newArrayListWithCapacity(sessions);
+        for (ListenableFuture<? extends MessageClientExecutor<?>> future: connecting) {
+            MessageClientExecutor<?> client = future.get();
+            client.session().get();
+            connected.add(client);
+        }
+        done = new CountDownLatch(sessions);
+        running = true;
+        for (int i=0; i<sessions; ++i) {
+            new Driver(connected.get(i), new Random(i)).next();
+        }
+        unit.sleep(warmup);
+        latency.reset();
+        long start = System.nanoTime();
+        long startOperations = operations.get();
+        long startErrors = errors.get();
+        unit.sleep(duration);
+        Histogram histogram = latency.getIntervalHistogram();
+        long nanos = System.nanoTime() - start;
+        Result result = new Result(
+                operations.get() - startOperations,
+                errors.get() - startErrors,
+                nanos,
+                histogram);
+        running = false;
+        try {
+            done.await(CLOSE_MILLIS, TimeUnit.MILLISECONDS);
+        } finally {
+            for (MessageClientExecutor<?> client: connected) {
+                client.connection().close();
+            }
+        }
+        return result;
+    }
+
+    protected class Driver implements FutureCallback<Message.ServerResponse<?>> {
+
+        protected final MessageClientExecutor<?> client;
+        protected final Random random;
+        protected int xid;
+        protected long start;
+
+        public Driver(MessageClientExecutor<?> client, Random random) {
+            this.client = client;
+            this.random = random;
+            this.xid = 0;
+            this.start = 0L;
+        }
+
+        public void next() {
+            if (!running) {
+                done.countDown();
+                return;
+            }
+            Records.Request request = mix.next(random);
+            start = System.nanoTime();
+            Futures.addCallback(client.submit(ProtocolRequestMessage.of(++xid, request)), this);
+        }
+
+        @Override
+        public void onSuccess(Message.ServerResponse<?> result) {
+            latency.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+            operations.incrementAndGet();
+            if (result.record() instanceof Operation.Error) {
+                errors.incrementAndGet();
+            }
+            next();
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+            // the session is most likely gone, so it would only fail again
+            errors.incrementAndGet();
+            done.countDown();
+        }
+    }
+}
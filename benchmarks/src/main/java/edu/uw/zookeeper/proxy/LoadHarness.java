@@ -0,0 +1,289 @@
+package edu.uw.zookeeper.proxy;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Service;
+import com.typesafe.config.ConfigValueType;
+
+import edu.uw.zookeeper.ServerInetAddressView;
+import edu.uw.zookeeper.ZooKeeperApplication;
+import edu.uw.zookeeper.common.Application;
+import edu.uw.zookeeper.common.Configurable;
+import edu.uw.zookeeper.common.Configuration;
+import edu.uw.zookeeper.common.ParameterizedFactory;
+import edu.uw.zookeeper.net.ClientConnectionFactory;
+import edu.uw.zookeeper.net.CodecConnection;
+import edu.uw.zookeeper.protocol.Message;
+import edu.uw.zookeeper.protocol.ProtocolCodec;
+import edu.uw.zookeeper.protocol.client.ClientConnectionFactoryBuilder;
+import edu.uw.zookeeper.protocol.client.ClientProtocolConnection;
+import edu.uw.zookeeper.server.SimpleServerBuilder;
+
+/**
+ * Measures proxy throughput and latency on one host.
+ *
+ * Starts an in-process server at the first configured backend address and a proxy in front of it,
+ * then runs the same closed-loop load directly against the server and through the proxy.
+ * The difference between the two runs is the proxy overhead.
+ */
+public class LoadHarness extends ZooKeeperApplication.ForwardingApplication {
+
+    public static void main(String[] args) {
+        ZooKeeperApplication.main(args, new LoadHarnessBuilder());
+    }
+
+    @Configurable(path="load", arg="sessions", key="sessions", value="1000", type=ConfigValueType.NUMBER, help="concurrent client sessions")
+    public static class SessionsConfiguration implements Function<Configuration, Integer> {
+
+        public static Integer get(Configuration configuration) {
+            return new SessionsConfiguration().apply(configuration);
+        }
+
+        @Override
+        public Integer apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getInt(configurable.key());
+        }
+    }
+
+    @Configurable(path="load", arg="duration", key="duration", value="30", type=ConfigValueType.NUMBER, help="seconds measured per run")
+    public static class DurationConfiguration implements Function<Configuration, Integer> {
+
+        public static Integer get(Configuration configuration) {
+            return new DurationConfiguration().apply(configuration);
+        }
+
+        @Override
+        public Integer apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getInt(configurable.key());
+        }
+    }
+
+    @Configurable(path="load", arg="warmup", key="warmup", value="5", type=ConfigValueType.NUMBER, help="seconds discarded per run")
+    public static class WarmupConfiguration implements Function<Configuration, Integer> {
+
+        public static Integer get(Configuration configuration) {
+            return new WarmupConfiguration().apply(configuration);
+        }
+
+        @Override
+        public Integer apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getInt(configurable.key());
+        }
+    }
+
+    @Configurable(path="load", arg="reads", key="reads", value="0.8", type=ConfigValueType.NUMBER, help="fraction of unwatched reads")
+    public static class ReadsConfiguration implements Function<Configuration, Double> {
+
+        public static Double get(Configuration configuration) {
+            return new ReadsConfiguration().apply(configuration);
+        }
+
+        @Override
+        public Double apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getDouble(configurable.key());
+        }
+    }
+
+    @Configurable(path="load", arg="writes", key="writes", value="0.1", type=ConfigValueType.NUMBER, help="fraction of writes (the rest are watched reads)")
+    public static class WritesConfiguration implements Function<Configuration, Double> {
+
+        public static Double get(Configuration configuration) {
+            return new WritesConfiguration().apply(configuration);
+        }
+
+        @Override
+        public Double apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getDouble(configurable.key());
+        }
+    }
+
+    @Configurable(path="load", arg="nodes", key="nodes", value="1000", type=ConfigValueType.NUMBER, help="znodes accessed")
+    public static class NodesConfiguration implements Function<Configuration, Integer> {
+
+        public static Integer get(Configuration configuration) {
+            return new NodesConfiguration().apply(configuration);
+        }
+
+        @Override
+        public Integer apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getInt(configurable.key());
+        }
+    }
+
+    @Configurable(path="load", arg="dataBytes", key="dataBytes", value="128", type=ConfigValueType.NUMBER, help="znode data size")
+    public static class DataBytesConfiguration implements Function<Configuration, Integer> {
+
+        public static Integer get(Configuration configuration) {
+            return new DataBytesConfiguration().apply(configuration);
+        }
+
+        @Override
+        public Integer apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getInt(configurable.key());
+        }
+    }
+
+    protected LoadHarness(Application delegate) {
+        super(delegate);
+    }
+
+    protected static class LoadHarnessBuilder extends ZooKeeperApplication.ForwardingBuilder<LoadHarness, ProxyServerBuilder, LoadHarnessBuilder> {
+
+        protected static final String DESCRIPTION = "ZooKeeper Proxy Load Harness";
+
+        public LoadHarnessBuilder() {
+            this(ProxyServerBuilder.defaults());
+        }
+
+        public LoadHarnessBuilder(
+                ProxyServerBuilder delegate) {
+            super(delegate);
+        }
+
+        @Override
+        protected LoadHarnessBuilder newInstance(ProxyServerBuilder delegate) {
+            return new LoadHarnessBuilder(delegate);
+        }
+
+        @Override
+        protected LoadHarness doBuild() {
+            Configuration configuration = getRuntimeModule().getConfiguration();
+            configuration.getArguments().setDescription(DESCRIPTION);
+            ProxyServerBuilder proxy = delegate.setDefaults();
+            ServerInetAddressView backendAddress =
+                    ProxyServerExecutorBuilder.EnsembleViewConfiguration.get(configuration).iterator().next();
+            SimpleServerBuilder<?> backend = SimpleServerBuilder.defaults().setRuntimeModule(getRuntimeModule());
+            backend = backend.setConnectionsBuilder(
+                    backend.getConnectionsBuilder().setConnectionBuilder(
+                            backend.getConnectionsBuilder().getConnectionBuilder().setAddress(backendAddress)));
+            // load clients get their own event loops
+            NettyModule net = NettyModule.newInstance(getRuntimeModule());
+            ClientConnectionFactory<? extends ClientProtocolConnection<Message.ClientSession, Message.ServerSession,?,?>> connections =
+                    ClientConnectionFactoryBuilder.defaults()
+                        .setRuntimeModule(getRuntimeModule())
+                        .setClientModule(net.clients())
+                        .setConnectionFactory(
+                                new ParameterizedFactory<CodecConnection<Message.ClientSession, Message.ServerSession, ProtocolCodec<Message.ClientSession,Message.ServerSession,Message.ClientSession,Message.ServerSession>,?>, ClientProtocolConnection<Message.ClientSession, Message.ServerSession,?,?>>() {
+                                    @Override
+                                    public ClientProtocolConnection<Message.ClientSession, Message.ServerSession,?,?> get(CodecConnection<Message.ClientSession, Message.ServerSession, ProtocolCodec<Message.ClientSession,Message.ServerSession,Message.ClientSession,Message.ServerSession>,?> value) {
+                                        return ClientProtocolConnection.newInstance(value);
+                                    }
+                                })
+                        .setDefaults()
+                        .build();
+            LoadGenerator.Mix mix = new LoadGenerator.Mix(
+                    ReadsConfiguration.get(configuration),
+                    WritesConfiguration.get(configuration),
+                    NodesConfiguration.get(configuration),
+                    DataBytesConfiguration.get(configuration));
+            return new LoadHarness(new LoadApplication(
+                    backend.build(),
+                    proxy.build(),
+                    connections,
+                    backendAddress,
+                    proxy.getConnectionsBuilder().getConnectionBuilder().getAddress(),
+                    mix,
+                    SessionsConfiguration.get(configuration),
+                    WarmupConfiguration.get(configuration),
+                    DurationConfiguration.get(configuration)));
+        }
+    }
+
+    protected static class LoadApplication implements Application {
+
+        protected final List<Service> backend;
+        protected final List<Service> proxy;
+        protected final ClientConnectionFactory<? extends ClientProtocolConnection<Message.ClientSession, Message.ServerSession,?,?>> connections;
+        protected final ServerInetAddressView backendAddress;
+        protected final ServerInetAddressView proxyAddress;
+        protected final LoadGenerator.Mix mix;
+        protected final int sessions;
+        protected final int warmup;
+        protected final int duration;
+
+        public LoadApplication(
+                List<Service> backend,
+                List<Service> proxy,
+                ClientConnectionFactory<? extends ClientProtocolConnection<Message.ClientSession, Message.ServerSession,?,?>> connections,
+                ServerInetAddressView backendAddress,
+                ServerInetAddressView proxyAddress,
+                LoadGenerator.Mix mix,
+                int sessions,
+                int warmup,
+                int duration) {
+            this.backend = backend;
+            this.proxy = proxy;
+            this.connections = connections;
+            this.backendAddress = backendAddress;
+            this.proxyAddress = proxyAddress;
+            this.mix = mix;
+            this.sessions = sessions;
+            this.warmup = warmup;
+            this.duration = duration;
+        }
+
+        @Override
+        public void run() {
+            List<Service> services = Lists.newArrayList();
+            services.addAll(backend);
+            services.addAll(proxy);
+            services.add(connections);
+            ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+            try {
+                for (Service service: services) {
+                    service.startAsync().awaitRunning();
+                }
+                ProxyServerExecutorBuilder.ServerViewFactories clients =
+                        ProxyServerExecutorBuilder.ServerViewFactories.newInstance(connections, executor);
+
+                LoadGenerator direct = LoadGenerator.newInstance(clients.get(backendAddress), mix);
+                direct.populate();
+                LoadGenerator.Result baseline = direct.run(sessions, warmup, duration, TimeUnit.SECONDS);
+                LoadGenerator.Result proxied = LoadGenerator.newInstance(clients.get(proxyAddress), mix)
+                        .run(sessions, warmup, duration, TimeUnit.SECONDS);
+
+                System.out.println(baseline.toString("direct"));
+                System.out.println(proxied.toString("proxy"));
+                System.out.println(String.format("%-8s %10.1f %%        p50 %6d us  p99 %6d us  p999 %6d us",
+                        "overhead",
+                        100.0 * (1.0 - proxied.throughput() / baseline.throughput()),
+                        proxied.percentile(50.0) - baseline.percentile(50.0),
+                        proxied.percentile(99.0) - baseline.percentile(99.0),
+                        proxied.percentile(99.9) - baseline.percentile(99.9)));
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            } finally {
+                executor.shutdownNow();
+                for (Service service: Lists.reverse(services)) {
+                    service.stopAsync().awaitTerminated();
+                }
+            }
+        }
+    }
+}
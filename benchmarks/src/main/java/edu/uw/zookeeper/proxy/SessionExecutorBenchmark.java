@@ -0,0 +1,101 @@
+package edu.uw.zookeeper.proxy;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.data.Stat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import edu.uw.zookeeper.protocol.Message;
+import edu.uw.zookeeper.protocol.ProtocolRequestMessage;
+import edu.uw.zookeeper.protocol.proto.IGetDataRequest;
+import edu.uw.zookeeper.protocol.proto.IGetDataResponse;
+
+/**
+ * ProxySessionExecutor.submit against a backend that answers immediately.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SessionExecutorBenchmark {
+
+    public static enum Features {
+        NONE, METRICS, TRACE, CACHE, COALESCE, ALL;
+    }
+
+    @Param({"NONE", "METRICS", "TRACE", "CACHE", "COALESCE", "ALL"})
+    public Features features;
+
+    @Param({"false", "true"})
+    public boolean watch;
+
+    protected File directory;
+    protected BinaryTraceWriter writer;
+    protected ProxySessionExecutor executor;
+    protected int xid;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        ProxyFeatures features = ProxyFeatures.none();
+        if ((this.features == Features.METRICS) || (this.features == Features.ALL)) {
+            features = features.setMetrics(ProxyMetrics.newInstance());
+        }
+        if ((this.features == Features.TRACE) || (this.features == Features.ALL)) {
+            directory = Files.createTempDir();
+            writer = BinaryTraceWriter.newInstance(directory, BinaryTraceWriter.DEFAULT_SEGMENT_BYTES, 2);
+            writer.startUp();
+            // records are drained inline by the benchmark thread
+            features = features.setTracer(new BufferedTracer(
+                    new TraceSampler(1.0, 1.0), TraceRingBuffer.newInstance(1 << 16), writer));
+        }
+        if ((this.features == Features.CACHE) || (this.features == Features.ALL)) {
+            features = features.setCache(ReadCache.newInstance(1L << 20));
+        }
+        if ((this.features == Features.COALESCE) || (this.features == Features.ALL)) {
+            features = features.setCoalescer(ReadCoalescer.newInstance());
+        }
+        executor = new StubSessionExecutor(
+                StubSessionExecutor.newSession(1L), 
+                new IGetDataResponse(new byte[64], new Stat()), 
+                features);
+        xid = 0;
+        if (features.getCache() != null) {
+            // only watched reads populate the cache
+            executor.submit(ProtocolRequestMessage.of(++xid, new IGetDataRequest("/benchmark", true)));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        if (writer != null) {
+            writer.shutDown();
+            for (File file: directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    @Benchmark
+    public ListenableFuture<Message.ServerResponse<?>> submit() {
+        ListenableFuture<Message.ServerResponse<?>> future = executor.submit(
+                ProtocolRequestMessage.of(++xid, new IGetDataRequest("/benchmark", watch)));
+        BufferedTracer tracer = executor.features.getTracer();
+        if (tracer != null) {
+            tracer.buffer.drain(writer, Integer.MAX_VALUE);
+        }
+        return future;
+    }
+}
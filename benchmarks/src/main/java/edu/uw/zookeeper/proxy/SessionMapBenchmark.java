@@ -0,0 +1,126 @@
+package edu.uw.zookeeper.proxy;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.google.common.collect.MapMaker;
+
+/**
+ * Session id lookups in the shared session map.
+ *
+ * Run with -t to measure concurrent lookups.
+ * Setup prints the retained heap per entry of each map,
+ * not counting the values.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SessionMapBenchmark {
+
+    public static enum MapType {
+        MAPMAKER {
+            @Override
+            public ConcurrentMap<Long, Object> newMap() {
+                return new MapMaker().makeMap();
+            }
+        },
+        LONG {
+            @Override
+            public ConcurrentMap<Long, Object> newMap() {
+                return LongConcurrentHashMap.newInstance();
+            }
+        };
+
+        public abstract ConcurrentMap<Long, Object> newMap();
+    }
+
+    @Param({"MAPMAKER", "LONG"})
+    public MapType type;
+
+    @Param({"1000", "100000", "1000000"})
+    public int sessions;
+
+    protected ConcurrentMap<Long, Object> map;
+    protected long[] ids;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ids = new long[sessions];
+        Random random = new Random(sessions);
+        for (int i=0; i<sessions; ++i) {
+            // ids are clustered like server-minted session ids
+            ids[i] = (0x1234L << 48) + random.nextInt(sessions * 4);
+        }
+        // every entry shares one value, so only the map itself is measured
+        Object value = new Object();
+        long before = usedMemory();
+        map = type.newMap();
+        for (int i=0; i<sessions; ++i) {
+            map.put(Long.valueOf(ids[i]), value);
+        }
+        long after = usedMemory();
+        System.out.println(String.format("%s %d sessions: %.1f bytes/entry",
+                type, map.size(), (double) (after - before) / map.size()));
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        protected int next = 0;
+
+        public int next(int length) {
+            int i = next;
+            next = (i + 1 == length) ? 0 : i + 1;
+            return i;
+        }
+    }
+
+    @Benchmark
+    public Object get(Cursor cursor) {
+        return map.get(Long.valueOf(ids[cursor.next(ids.length)]));
+    }
+
+    /**
+     * Unboxed lookup, as the connect path does.
+     */
+    @Benchmark
+    public Object getLong(Cursor cursor) {
+        long id = ids[cursor.next(ids.length)];
+        if (map instanceof LongConcurrentHashMap) {
+            return ((LongConcurrentHashMap<Object>) map).get(id);
+        } else {
+            return map.get(Long.valueOf(id));
+        }
+    }
+
+    /**
+     * Replaces an entry, as a reconnect or expiry does.
+     */
+    @Benchmark
+    public Object replace(Cursor cursor) {
+        Long id = Long.valueOf(ids[cursor.next(ids.length)]);
+        Object value = map.remove(id);
+        if (value != null) {
+            map.put(id, value);
+        }
+        return value;
+    }
+
+    protected static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i=0; i<4; ++i) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,47 @@
+package edu.uw.zookeeper.proxy;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import edu.uw.zookeeper.protocol.Message;
+import edu.uw.zookeeper.protocol.ProtocolResponseMessage;
+import edu.uw.zookeeper.protocol.Session;
+import edu.uw.zookeeper.protocol.proto.Records;
+
+/**
+ * Session whose backend answers every request immediately with a fixed record.
+ */
+public class StubSessionExecutor extends ProxySessionExecutor {
+
+    public static final SocketAddress SERVER = InetSocketAddress.createUnresolved("127.0.0.1", 2181);
+
+    public static Session newSession(long id) {
+        return Session.create(id, Session.Parameters.create(30000, new byte[16]));
+    }
+
+    protected final Records.Response response;
+    protected long zxid;
+
+    public StubSessionExecutor(
+            Session session,
+            Records.Response response,
+            ProxyFeatures features) {
+        super(null, Futures.immediateFuture(session), features);
+        this.response = response;
+        this.zxid = 0L;
+    }
+
+    @Override
+    protected SocketAddress server() {
+        return SERVER;
+    }
+
+    @Override
+    protected ListenableFuture<Message.ServerResponse<?>> forward(Message.ClientRequest<?> request) {
+        Message.ServerResponse<?> result = ProtocolResponseMessage.of(request.xid(), ++zxid, response);
+        return Futures.<Message.ServerResponse<?>>immediateFuture(result);
+    }
+}
@@ -0,0 +1,86 @@
+package edu.uw.zookeeper.proxy;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.common.io.Files;
+
+/**
+ * Encoding and decoding of binary trace records, with and without sampling.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TraceBenchmark {
+
+    @Param({"0.0", "0.01", "1.0"})
+    public double rate;
+
+    protected File directory;
+    protected BinaryTraceWriter writer;
+    protected TraceRingBuffer buffer;
+    protected TraceSampler sampler;
+    protected File segment;
+    protected int xid;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        directory = Files.createTempDir();
+        writer = BinaryTraceWriter.newInstance(directory, BinaryTraceWriter.DEFAULT_SEGMENT_BYTES, 2);
+        writer.startUp();
+        buffer = TraceRingBuffer.newInstance(1024);
+        sampler = new TraceSampler(rate, 1.0);
+        xid = 0;
+
+        File segments = Files.createTempDir();
+        BinaryTraceWriter input = BinaryTraceWriter.newInstance(segments, 1 << 20, 1);
+        input.startUp();
+        for (int i=0; i<10000; ++i) {
+            input.request(System.nanoTime(), 1L, i, 4, "/benchmark/" + (i % 100));
+            input.response(System.nanoTime(), 1L, i, i, 0);
+        }
+        input.shutDown();
+        segment = new File(segments, BinaryTraceWriter.segmentName(0L));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        writer.shutDown();
+        for (File dir: new File[] { directory, segment.getParentFile() }) {
+            for (File file: dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Benchmark
+    public int encode() {
+        int xid = ++this.xid;
+        if (sampler.sample(1L, xid, 4)) {
+            buffer.offerRequest(System.nanoTime(), 1L, xid, 4, "/benchmark");
+            buffer.offerResponse(System.nanoTime(), 1L, xid, xid, 0);
+        }
+        return buffer.drain(writer, Integer.MAX_VALUE);
+    }
+
+    @Benchmark
+    public void decode(Blackhole blackhole) throws Exception {
+        BinaryTraceReader reader = BinaryTraceReader.open(segment);
+        while (reader.hasNext()) {
+            blackhole.consume(reader.next());
+        }
+    }
+}
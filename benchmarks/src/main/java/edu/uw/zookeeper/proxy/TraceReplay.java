@@ -0,0 +1,228 @@
+package edu.uw.zookeeper.proxy;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import com.google.common.base.Function;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Service;
+import com.typesafe.config.ConfigValueType;
+
+import edu.uw.zookeeper.ServerInetAddressView;
+import edu.uw.zookeeper.ZooKeeperApplication;
+import edu.uw.zookeeper.client.trace.ObjectMapperBuilder;
+import edu.uw.zookeeper.common.Application;
+import edu.uw.zookeeper.common.Configurable;
+import edu.uw.zookeeper.common.Configuration;
+import edu.uw.zookeeper.common.ParameterizedFactory;
+import edu.uw.zookeeper.net.ClientConnectionFactory;
+import edu.uw.zookeeper.net.CodecConnection;
+import edu.uw.zookeeper.protocol.Message;
+import edu.uw.zookeeper.protocol.ProtocolCodec;
+import edu.uw.zookeeper.protocol.client.ClientConnectionFactoryBuilder;
+import edu.uw.zookeeper.protocol.client.ClientProtocolConnection;
+import edu.uw.zookeeper.server.SimpleServerBuilder;
+
+/**
+ * Replays proxy traces as load and reports throughput and latency.
+ *
+ * With no target address, starts an in-process server at the first configured backend address
+ * and a proxy in front of it, and replays through the proxy.
+ * Otherwise replays directly against the target, which may be a proxy or a server.
+ */
+public class TraceReplay extends ZooKeeperApplication.ForwardingApplication {
+
+    public static void main(String[] args) {
+        ZooKeeperApplication.main(args, new TraceReplayBuilder());
+    }
+
+    @Configurable(path="replay", arg="traces", key="traces", value="", help="trace segments, directories or JSON files, comma-separated")
+    public static class TracesConfiguration implements Function<Configuration, String> {
+
+        public static String get(Configuration configuration) {
+            return new TracesConfiguration().apply(configuration);
+        }
+
+        @Override
+        public String apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getString(configurable.key());
+        }
+    }
+
+    @Configurable(path="replay", arg="target", key="target", value="", help="address:port to replay against (empty for an in-process server behind a proxy)")
+    public static class TargetConfiguration implements Function<Configuration, String> {
+
+        public static String get(Configuration configuration) {
+            return new TargetConfiguration().apply(configuration);
+        }
+
+        @Override
+        public String apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getString(configurable.key());
+        }
+    }
+
+    @Configurable(path="replay", arg="speed", key="speed", value="1.0", type=ConfigValueType.NUMBER, help="multiple of traced speed (0 for as fast as possible)")
+    public static class SpeedConfiguration implements Function<Configuration, Double> {
+
+        public static Double get(Configuration configuration) {
+            return new SpeedConfiguration().apply(configuration);
+        }
+
+        @Override
+        public Double apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getDouble(configurable.key());
+        }
+    }
+
+    @Configurable(path="replay", arg="dataBytes", key="dataBytes", value="128", type=ConfigValueType.NUMBER, help="data size of replayed writes")
+    public static class DataBytesConfiguration implements Function<Configuration, Integer> {
+
+        public static Integer get(Configuration configuration) {
+            return new DataBytesConfiguration().apply(configuration);
+        }
+
+        @Override
+        public Integer apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getInt(configurable.key());
+        }
+    }
+
+    protected TraceReplay(Application delegate) {
+        super(delegate);
+    }
+
+    protected static class TraceReplayBuilder extends ZooKeeperApplication.ForwardingBuilder<TraceReplay, ProxyServerBuilder, TraceReplayBuilder> {
+
+        protected static final String DESCRIPTION = "ZooKeeper Proxy Trace Replay";
+
+        public TraceReplayBuilder() {
+            this(ProxyServerBuilder.defaults());
+        }
+
+        public TraceReplayBuilder(
+                ProxyServerBuilder delegate) {
+            super(delegate);
+        }
+
+        @Override
+        protected TraceReplayBuilder newInstance(ProxyServerBuilder delegate) {
+            return new TraceReplayBuilder(delegate);
+        }
+
+        @Override
+        protected TraceReplay doBuild() {
+            Configuration configuration = getRuntimeModule().getConfiguration();
+            configuration.getArguments().setDescription(DESCRIPTION);
+            List<Service> services = Lists.newArrayList();
+            ServerInetAddressView target;
+            String address = TargetConfiguration.get(configuration).trim();
+            if (address.isEmpty()) {
+                ProxyServerBuilder proxy = delegate.setDefaults();
+                ServerInetAddressView backendAddress =
+                        ProxyServerExecutorBuilder.EnsembleViewConfiguration.get(configuration).iterator().next();
+                SimpleServerBuilder<?> backend = SimpleServerBuilder.defaults().setRuntimeModule(getRuntimeModule());
+                backend = backend.setConnectionsBuilder(
+                        backend.getConnectionsBuilder().setConnectionBuilder(
+                                backend.getConnectionsBuilder().getConnectionBuilder().setAddress(backendAddress)));
+                Iterables.addAll(services, backend.build());
+                Iterables.addAll(services, proxy.build());
+                target = proxy.getConnectionsBuilder().getConnectionBuilder().getAddress();
+            } else {
+                target = ServerInetAddressView.fromString(address);
+            }
+            // replay clients get their own event loops
+            NettyModule net = NettyModule.newInstance(getRuntimeModule());
+            ClientConnectionFactory<? extends ClientProtocolConnection<Message.ClientSession, Message.ServerSession,?,?>> connections =
+                    ClientConnectionFactoryBuilder.defaults()
+                        .setRuntimeModule(getRuntimeModule())
+                        .setClientModule(net.clients())
+                        .setConnectionFactory(
+                                new ParameterizedFactory<CodecConnection<Message.ClientSession, Message.ServerSession, ProtocolCodec<Message.ClientSession,Message.ServerSession,Message.ClientSession,Message.ServerSession>,?>, ClientProtocolConnection<Message.ClientSession, Message.ServerSession,?,?>>() {
+                                    @Override
+                                    public ClientProtocolConnection<Message.ClientSession, Message.ServerSession,?,?> get(CodecConnection<Message.ClientSession, Message.ServerSession, ProtocolCodec<Message.ClientSession,Message.ServerSession,Message.ClientSession,Message.ServerSession>,?> value) {
+                                        return ClientProtocolConnection.newInstance(value);
+                                    }
+                                })
+                        .setDefaults()
+                        .build();
+            services.add(connections);
+            return new TraceReplay(new ReplayApplication(
+                    services,
+                    connections,
+                    target,
+                    Iterables.toArray(Splitter.on(',').trimResults().omitEmptyStrings().split(TracesConfiguration.get(configuration)), String.class),
+                    SpeedConfiguration.get(configuration),
+                    DataBytesConfiguration.get(configuration)));
+        }
+    }
+
+    protected static class ReplayApplication implements Application {
+
+        protected final List<Service> services;
+        protected final ClientConnectionFactory<? extends ClientProtocolConnection<Message.ClientSession, Message.ServerSession,?,?>> connections;
+        protected final ServerInetAddressView target;
+        protected final String[] traces;
+        protected final double speed;
+        protected final int dataBytes;
+
+        public ReplayApplication(
+                List<Service> services,
+                ClientConnectionFactory<? extends ClientProtocolConnection<Message.ClientSession, Message.ServerSession,?,?>> connections,
+                ServerInetAddressView target,
+                String[] traces,
+                double speed,
+                int dataBytes) {
+            this.services = services;
+            this.connections = connections;
+            this.target = target;
+            this.traces = traces;
+            this.speed = speed;
+            this.dataBytes = dataBytes;
+        }
+
+        @Override
+        public void run() {
+            ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+            try {
+                List<TraceReplayer.Session> sessions = TraceReplayer.load(traces, ObjectMapperBuilder.defaults().build());
+                long calls = 0L;
+                for (TraceReplayer.Session session: sessions) {
+                    calls += session.calls().size();
+                }
+                System.out.println(String.format("Replaying %d requests from %d sessions against %s at speed %s",
+                        calls, sessions.size(), target, (speed > 0.0) ? speed : "max"));
+                for (Service service: services) {
+                    service.startAsync().awaitRunning();
+                }
+                ProxyServerExecutorBuilder.ServerViewFactories clients =
+                        ProxyServerExecutorBuilder.ServerViewFactories.newInstance(connections, executor);
+                TraceReplayer.Result result = TraceReplayer.newInstance(
+                        clients.get(target), executor, sessions, speed, dataBytes).run();
+                System.out.print(result);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            } finally {
+                executor.shutdownNow();
+                for (Service service: Lists.reverse(services)) {
+                    service.stopAsync().awaitTerminated();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,516 @@
+package edu.uw.zookeeper.proxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.Histogram;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import edu.uw.zookeeper.client.trace.ProtocolRequestEvent;
+import edu.uw.zookeeper.client.trace.ProtocolResponseEvent;
+import edu.uw.zookeeper.client.trace.TraceEvent;
+import edu.uw.zookeeper.client.trace.TraceIterator;
+import edu.uw.zookeeper.common.DefaultsFactory;
+import edu.uw.zookeeper.protocol.ConnectMessage;
+import edu.uw.zookeeper.protocol.Message;
+import edu.uw.zookeeper.protocol.Operation;
+import edu.uw.zookeeper.protocol.ProtocolRequestMessage;
+import edu.uw.zookeeper.protocol.client.MessageClientExecutor;
+import edu.uw.zookeeper.protocol.proto.ICreateRequest;
+import edu.uw.zookeeper.protocol.proto.IDeleteRequest;
+import edu.uw.zookeeper.protocol.proto.IExistsRequest;
+import edu.uw.zookeeper.protocol.proto.IGetACLRequest;
+import edu.uw.zookeeper.protocol.proto.IGetChildren2Request;
+import edu.uw.zookeeper.protocol.proto.IGetChildrenRequest;
+import edu.uw.zookeeper.protocol.proto.IGetDataRequest;
+import edu.uw.zookeeper.protocol.proto.ISetDataRequest;
+import edu.uw.zookeeper.protocol.proto.ISyncRequest;
+import edu.uw.zookeeper.protocol.proto.OpCode;
+import edu.uw.zookeeper.protocol.proto.Records;
+
+/**
+ * Replays captured sessions against a server, one new session per traced session.
+ *
+ * Each session sends its requests in traced order, one at a time,
+ * and waits before each request for the think time it had in the trace:
+ * the time from the previous response to the request.
+ * A request is also never sent before its traced offset from the start of the trace.
+ * Both waits are divided by the speed, and a speed of zero skips them.
+ *
+ * Traces only keep the opcode and path of a request,
+ * so writes carry zero-filled data of a fixed size and reads set no watches.
+ * Requests that cannot be rebuilt from that, such as multi, are skipped.
+ */
+public class TraceReplayer {
+
+    public static TraceReplayer newInstance(
+            DefaultsFactory<ConnectMessage.Request, ? extends ListenableFuture<? extends MessageClientExecutor<?>>> clients,
+            ScheduledExecutorService scheduler,
+            List<Session> sessions,
+            double speed,
+            int dataBytes) {
+        return new TraceReplayer(clients, scheduler, sessions, speed, dataBytes);
+    }
+
+    /**
+     * Reads binary trace segments, directories of segments,
+     * or JSON traces as written by the tracing proxy's trace writer.
+     *
+     * @param mapper configured for the library's trace events, as the trace writer's is
+     *
+     * @return sessions in order of their first request
+     */
+    public static List<Session> load(String[] inputs, ObjectMapper mapper) throws IOException {
+        Loader loader = new Loader();
+        for (String input: inputs) {
+            File file = new File(input);
+            if (file.isDirectory()) {
+                String[] names = file.list();
+                Arrays.sort(names);
+                for (String name: names) {
+                    if (name.startsWith(BinaryTraceWriter.SEGMENT_PREFIX) && name.endsWith(BinaryTraceWriter.SEGMENT_SUFFIX)) {
+                        loader.load(new File(file, name));
+                    }
+                }
+            } else if (file.getName().endsWith(".json")) {
+                loader.load(file, mapper);
+            } else {
+                loader.load(file);
+            }
+        }
+        return loader.sessions();
+    }
+
+    /**
+     * One traced request.
+     */
+    public static class Call {
+
+        protected final int xid;
+        protected final OpCode opcode;
+        protected final String path;
+        // as traced, or null if only the opcode and path were traced
+        protected final Records.Request record;
+        // from the start of the trace
+        protected final long offset;
+        // from the previous response of the session, or zero
+        protected long think;
+        // nanoTime of the traced response, or zero if none was traced
+        protected long responded;
+
+        public Call(int xid, OpCode opcode, String path, long offset) {
+            this(xid, opcode, path, null, offset);
+        }
+
+        public Call(int xid, OpCode opcode, String path, Records.Request record, long offset) {
+            this.xid = xid;
+            this.opcode = opcode;
+            this.path = path;
+            this.record = record;
+            this.offset = offset;
+            this.think = 0L;
+            this.responded = 0L;
+        }
+
+        public OpCode opcode() {
+            return opcode;
+        }
+
+        public String path() {
+            return path;
+        }
+
+        public Records.Request record() {
+            return record;
+        }
+    }
+
+    /**
+     * Requests of one traced session, in order.
+     */
+    public static class Session {
+
+        protected final long id;
+        protected final List<Call> calls;
+
+        public Session(long id) {
+            this.id = id;
+            this.calls = Lists.newArrayList();
+        }
+
+        public long id() {
+            return id;
+        }
+
+        public List<Call> calls() {
+            return calls;
+        }
+    }
+
+    public static class Result {
+
+        protected final long operations;
+        protected final long errors;
+        protected final long skipped;
+        protected final long nanos;
+        protected final Histogram latency;
+        protected final Histogram lag;
+        protected final Map<OpCode, Histogram> opcodes;
+
+        public Result(long operations, long errors, long skipped, long nanos, Histogram latency, Histogram lag, Map<OpCode, Histogram> opcodes) {
+            this.operations = operations;
+            this.errors = errors;
+            this.skipped = skipped;
+            this.nanos = nanos;
+            this.latency = latency;
+            this.lag = lag;
+            this.opcodes = opcodes;
+        }
+
+        public double throughput() {
+            return operations / (nanos / 1.0e9);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder output = new StringBuilder();
+            output.append(String.format("%d operations in %.1f s, %.0f ops/s, %d errors, %d skipped%n",
+                    operations, nanos / 1.0e9, throughput(), errors, skipped));
+            output.append(format("all", latency));
+            for (Map.Entry<OpCode, Histogram> entry: opcodes.entrySet()) {
+                output.append(format(entry.getKey().toString(), entry.getValue()));
+            }
+            output.append(format("lag", lag));
+            return output.toString();
+        }
+
+        protected static String format(String name, Histogram histogram) {
+            return String.format("%-16s %10d  p50 %8d us  p90 %8d us  p99 %8d us  p999 %8d us  max %8d us%n",
+                    name, histogram.getTotalCount(),
+                    histogram.getValueAtPercentile(50.0), histogram.getValueAtPercentile(90.0),
+                    histogram.getValueAtPercentile(99.0), histogram.getValueAtPercentile(99.9),
+                    histogram.getMaxValue());
+        }
+    }
+
+    /**
+     * Replays a traced record as is; otherwise rebuilds the request from its opcode and path,
+     * with <code>dataBytes</code> of data for writes.
+     * 
+     * @return null if the request cannot be replayed
+     */
+    public static Records.Request request(Call call, int dataBytes) {
+        if (call.record() != null) {
+            switch (call.opcode()) {
+            case PING:
+            case CLOSE_SESSION:
+                // left to the replaying client
+                return null;
+            default:
+                return call.record();
+            }
+        }
+        String path = call.path();
+        if (path == null) {
+            return null;
+        }
+        switch (call.opcode()) {
+        case EXISTS:
+            return new IExistsRequest(path, false);
+        case GET_DATA:
+            return new IGetDataRequest(path, false);
+        case GET_CHILDREN:
+            return new IGetChildrenRequest(path, false);
+        case GET_CHILDREN2:
+            return new IGetChildren2Request(path, false);
+        case GET_ACL:
+            return new IGetACLRequest(path);
+        case SYNC:
+            return new ISyncRequest(path);
+        case CREATE:
+            return new ICreateRequest(path, new byte[dataBytes], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT.toFlag());
+        case SET_DATA:
+            return new ISetDataRequest(path, new byte[dataBytes], -1);
+        case DELETE:
+            return new IDeleteRequest(path, -1);
+        default:
+            return null;
+        }
+    }
+
+    protected final DefaultsFactory<ConnectMessage.Request, ? extends ListenableFuture<? extends MessageClientExecutor<?>>> clients;
+    protected final ScheduledExecutorService scheduler;
+    protected final List<Session> sessions;
+    protected final double speed;
+    protected final int dataBytes;
+    // guarded by this
+    protected final Histogram latency;
+    protected final Histogram lag;
+    protected final Map<OpCode, Histogram> opcodes;
+    protected final AtomicLong operations;
+    protected final AtomicLong errors;
+    protected final AtomicLong skipped;
+    protected CountDownLatch done;
+    protected long start;
+
+    public TraceReplayer(
+            DefaultsFactory<ConnectMessage.Request, ? extends ListenableFuture<? extends MessageClientExecutor<?>>> clients,
+            ScheduledExecutorService scheduler,
+            List<Session> sessions,
+            double speed,
+            int dataBytes) {
+        this.clients = clients;
+        this.scheduler = scheduler;
+        this.sessions = sessions;
+        this.speed = speed;
+        this.dataBytes = dataBytes;
+        this.latency = new Histogram(3);
+        this.lag = new Histogram(3);
+        this.opcodes = new EnumMap<OpCode, Histogram>(OpCode.class);
+        this.operations = new AtomicLong(0L);
+        this.errors = new AtomicLong(0L);
+        this.skipped = new AtomicLong(0L);
+    }
+
+    /**
+     * Connects a session for each traced session, then replays all of them to the end.
+     */
+    public Result run() throws Exception {
+        List<ListenableFuture<? extends MessageClientExecutor<?>>> connecting = Lists.newArrayListWithCapacity(sessions.size());
+        for (int i=0; i<sessions.size(); ++i) {
+            connecting.add(clients.get());
+        }
+        List<MessageClientExecutor<?>> connected = Lists.newArrayListWithCapacity(sessions.size());
+        for (ListenableFuture<? extends MessageClientExecutor<?>> future: connecting) {
+            MessageClientExecutor<?> client = future.get();
+            client.session().get();
+            connected.add(client);
+        }
+        done = new CountDownLatch(sessions.size());
+        start = System.nanoTime();
+        for (int i=0; i<sessions.size(); ++i) {
+            new Driver(connected.get(i), sessions.get(i)).next();
+        }
+        done.await();
+        long nanos = System.nanoTime() - start;
+        for (MessageClientExecutor<?> client: connected) {
+            client.connection().close();
+        }
+        synchronized (this) {
+            return new Result(operations.get(), errors.get(), skipped.get(), nanos,
+                    latency.copy(), lag.copy(), Maps.newEnumMap(opcodes));
+        }
+    }
+
+    protected synchronized void record(OpCode opcode, long micros, long lagMicros) {
+        latency.recordValue(micros);
+        lag.recordValue(Math.max(0L, lagMicros));
+        Histogram histogram = opcodes.get(opcode);
+        if (histogram == null) {
+            histogram = new Histogram(3);
+            opcodes.put(opcode, histogram);
+        }
+        histogram.recordValue(micros);
+    }
+
+    protected long scale(long nanos) {
+        return (long) (nanos / speed);
+    }
+
+    protected class Driver implements FutureCallback<Message.ServerResponse<?>>, Runnable {
+
+        protected final MessageClientExecutor<?> client;
+        protected final Session session;
+        protected int index;
+        protected int xid;
+        protected long due;
+        protected long sent;
+        protected Call call;
+        protected Records.Request request;
+
+        public Driver(MessageClientExecutor<?> client, Session session) {
+            this.client = client;
+            this.session = session;
+            this.index = 0;
+            this.xid = 0;
+            this.due = 0L;
+            this.sent = 0L;
+            this.call = null;
+            this.request = null;
+        }
+
+        /**
+         * Sends the next request when it is due.
+         */
+        public void next() {
+            request = null;
+            while ((request == null) && (index < session.calls().size())) {
+                call = session.calls().get(index++);
+                request = request(call, dataBytes);
+                if (request == null) {
+                    skipped.incrementAndGet();
+                }
+            }
+            if (request == null) {
+                done.countDown();
+                return;
+            }
+            long now = System.nanoTime();
+            if (speed > 0.0) {
+                due = Math.max(start + scale(call.offset), now + scale(call.think));
+            } else {
+                due = now;
+            }
+            if (due - now > 0L) {
+                scheduler.schedule(this, due - now, TimeUnit.NANOSECONDS);
+            } else {
+                run();
+            }
+        }
+
+        @Override
+        public void run() {
+            sent = System.nanoTime();
+            Futures.addCallback(client.submit(ProtocolRequestMessage.of(++xid, request)), this);
+        }
+
+        @Override
+        public void onSuccess(Message.ServerResponse<?> result) {
+            long now = System.nanoTime();
+            record(call.opcode(),
+                    TimeUnit.NANOSECONDS.toMicros(now - sent),
+                    TimeUnit.NANOSECONDS.toMicros(sent - due));
+            operations.incrementAndGet();
+            if (result.record() instanceof Operation.Error) {
+                errors.incrementAndGet();
+            }
+            next();
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+            errors.incrementAndGet();
+            // the session is gone, so the rest of it cannot be replayed
+            skipped.addAndGet(session.calls().size() - index);
+            done.countDown();
+        }
+    }
+
+    /**
+     * Groups traced requests by session and pairs them with their responses.
+     */
+    protected static class Loader {
+
+        protected final Map<Long, Session> sessions;
+        protected final Map<Long, Map<Integer, Call>> outstanding;
+        protected final Map<Long, Long> lastResponse;
+        protected long first;
+
+        public Loader() {
+            this.sessions = Maps.newLinkedHashMap();
+            this.outstanding = Maps.newHashMap();
+            this.lastResponse = Maps.newHashMap();
+            this.first = Long.MIN_VALUE;
+        }
+
+        public void load(File segment) throws IOException {
+            BinaryTraceReader reader = BinaryTraceReader.open(segment);
+            while (reader.hasNext()) {
+                BinaryTraceReader.Record record = reader.next();
+                if (record.isRequest()) {
+                    request(record.getNanos(), record.getSessionId(), record.getXid(), record.getOpcode(), record.getPath(), null);
+                } else {
+                    response(record.getNanos(), record.getSessionId(), record.getXid());
+                }
+            }
+        }
+
+        /**
+         * Requests are kept as traced.
+         * Other trace events, such as latency measurements, are ignored.
+         */
+        public void load(File json, ObjectMapper mapper) throws IOException {
+            TraceIterator events = TraceIterator.forFile(json, mapper.reader());
+            try {
+                while (events.hasNext()) {
+                    TraceEvent event = events.next();
+                    if (event instanceof ProtocolRequestEvent) {
+                        ProtocolRequestEvent request = (ProtocolRequestEvent) event;
+                        Records.Request record = request.getRequest().record();
+                        request(request.getTimestamp(), 
+                                request.getSessionId(), 
+                                request.getRequest().xid(), 
+                                record.opcode().intValue(), 
+                                BinaryTraceWriter.pathOf(record),
+                                record);
+                    } else if (event instanceof ProtocolResponseEvent) {
+                        ProtocolResponseEvent response = (ProtocolResponseEvent) event;
+                        response(response.getTimestamp(), 
+                                response.getSessionId(), 
+                                response.getResponse().xid());
+                    }
+                }
+            } finally {
+                events.close();
+            }
+        }
+
+        public List<Session> sessions() {
+            // traced think time is only known once the previous response is paired
+            for (Session session: sessions.values()) {
+                long previous = 0L;
+                for (Call call: session.calls()) {
+                    if (previous != 0L) {
+                        call.think = Math.max(0L, (first + call.offset) - previous);
+                    }
+                    previous = call.responded;
+                }
+            }
+            // already in order of first request
+            return Lists.newArrayList(sessions.values());
+        }
+
+        protected void request(long nanos, long sessionId, int xid, int opcode, String path, Records.Request record) {
+            if (first == Long.MIN_VALUE) {
+                first = nanos;
+            }
+            Long key = Long.valueOf(sessionId);
+            Session session = sessions.get(key);
+            if (session == null) {
+                session = new Session(sessionId);
+                sessions.put(key, session);
+                outstanding.put(key, Maps.<Integer, Call>newHashMap());
+            }
+            Call call = new Call(xid, OpCode.of(opcode), path, record, nanos - first);
+            session.calls().add(call);
+            outstanding.get(key).put(Integer.valueOf(xid), call);
+        }
+
+        protected void response(long nanos, long sessionId, int xid) {
+            Map<Integer, Call> calls = outstanding.get(Long.valueOf(sessionId));
+            if (calls == null) {
+                return;
+            }
+            Call call = calls.remove(Integer.valueOf(xid));
+            if (call != null) {
+                call.responded = nanos;
+            }
+        }
+    }
+}
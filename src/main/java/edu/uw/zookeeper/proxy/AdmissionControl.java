@@ -0,0 +1,257 @@
+package edu.uw.zookeeper.proxy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.zookeeper.KeeperException;
+
+import com.google.common.base.Function;
+import com.google.common.base.Objects;
+import com.typesafe.config.ConfigValueType;
+
+import edu.uw.zookeeper.common.Configurable;
+import edu.uw.zookeeper.common.Configuration;
+import edu.uw.zookeeper.protocol.Message;
+import edu.uw.zookeeper.protocol.proto.Records;
+
+/**
+ * Limits what sessions can have in flight to the ensemble.
+ *
+ * A request over a limit is answered at once with an error instead of being queued.
+ * The error is CONNECTIONLOSS, which standard clients retry,
+ * and the request was never forwarded, so a retry is safe.
+ */
+public class AdmissionControl {
+
+    public static AdmissionControl fromConfiguration(Configuration configuration, ReadThrottle throttle) {
+        return newInstance(
+                SessionOutstandingConfiguration.get(configuration),
+                OutstandingConfiguration.get(configuration),
+                SessionRateConfiguration.get(configuration),
+                SessionBurstConfiguration.get(configuration),
+                throttle);
+    }
+
+    public static AdmissionControl newInstance(
+            int maxSessionOutstanding,
+            int maxOutstanding,
+            double sessionRate,
+            int sessionBurst,
+            ReadThrottle throttle) {
+        return new AdmissionControl(maxSessionOutstanding, maxOutstanding, sessionRate, sessionBurst, throttle);
+    }
+
+    public static final KeeperException.Code REJECTED = KeeperException.Code.CONNECTIONLOSS;
+
+    // framing, xid and opcode
+    protected static final int HEADER_BYTES = 12;
+
+    /**
+     * Approximate encoded size, counting only the variable-length fields that matter.
+     */
+    public static int estimateBytes(Message.ClientRequest<?> request) {
+        Records.Request record = request.record();
+        int bytes = HEADER_BYTES;
+        if (record instanceof Records.PathGetter) {
+            String path = ((Records.PathGetter) record).getPath();
+            if (path != null) {
+                bytes += 4 + path.length();
+            }
+        }
+        if (record instanceof Records.DataGetter) {
+            byte[] data = ((Records.DataGetter) record).getData();
+            if (data != null) {
+                bytes += 4 + data.length;
+            }
+        }
+        return bytes;
+    }
+
+    @Configurable(path="admission", arg="sessionOutstanding", key="sessionOutstanding", value="1000", type=ConfigValueType.NUMBER, help="outstanding requests per session (0 for unlimited)")
+    public static class SessionOutstandingConfiguration implements Function<Configuration, Integer> {
+
+        public static Integer get(Configuration configuration) {
+            return new SessionOutstandingConfiguration().apply(configuration);
+        }
+
+        @Override
+        public Integer apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getInt(configurable.key());
+        }
+    }
+
+    @Configurable(path="admission", arg="outstanding", key="outstanding", value="100000", type=ConfigValueType.NUMBER, help="outstanding requests for the whole proxy (0 for unlimited)")
+    public static class OutstandingConfiguration implements Function<Configuration, Integer> {
+
+        public static Integer get(Configuration configuration) {
+            return new OutstandingConfiguration().apply(configuration);
+        }
+
+        @Override
+        public Integer apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getInt(configurable.key());
+        }
+    }
+
+    @Configurable(path="admission", arg="sessionRate", key="sessionRate", value="0", type=ConfigValueType.NUMBER, help="requests per second per session (0 for unlimited)")
+    public static class SessionRateConfiguration implements Function<Configuration, Double> {
+
+        public static Double get(Configuration configuration) {
+            return new SessionRateConfiguration().apply(configuration);
+        }
+
+        @Override
+        public Double apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getDouble(configurable.key());
+        }
+    }
+
+    @Configurable(path="admission", arg="sessionBurst", key="sessionBurst", value="100", type=ConfigValueType.NUMBER, help="requests a session may send at once above its rate")
+    public static class SessionBurstConfiguration implements Function<Configuration, Integer> {
+
+        public static Integer get(Configuration configuration) {
+            return new SessionBurstConfiguration().apply(configuration);
+        }
+
+        @Override
+        public Integer apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getInt(configurable.key());
+        }
+    }
+
+    protected final int maxSessionOutstanding;
+    protected final int maxOutstanding;
+    protected final double sessionRate;
+    protected final int sessionBurst;
+    protected final ReadThrottle throttle;
+    protected final AtomicInteger outstanding;
+    protected final AtomicLong rejectedSession;
+    protected final AtomicLong rejectedGlobal;
+    protected final AtomicLong rejectedRate;
+
+    protected AdmissionControl(
+            int maxSessionOutstanding,
+            int maxOutstanding,
+            double sessionRate,
+            int sessionBurst,
+            ReadThrottle throttle) {
+        this.maxSessionOutstanding = maxSessionOutstanding;
+        this.maxOutstanding = maxOutstanding;
+        this.sessionRate = sessionRate;
+        this.sessionBurst = Math.max(1, sessionBurst);
+        this.throttle = throttle;
+        this.outstanding = new AtomicInteger(0);
+        this.rejectedSession = new AtomicLong(0L);
+        this.rejectedGlobal = new AtomicLong(0L);
+        this.rejectedRate = new AtomicLong(0L);
+    }
+
+    /**
+     * @return null if sessions are not rate limited
+     */
+    public TokenBucket newBucket() {
+        return (sessionRate > 0.0) ? new TokenBucket(sessionRate, sessionBurst) : null;
+    }
+
+    /**
+     * On success, the caller must call {@link #release(int)} with the same bytes when the request completes.
+     *
+     * @param pending requests the session already has outstanding
+     * @param bucket null if not rate limited
+     * @return null if admitted, else the error to answer with
+     */
+    public KeeperException.Code admit(int pending, TokenBucket bucket, int bytes) {
+        if ((maxSessionOutstanding > 0) && (pending >= maxSessionOutstanding)) {
+            rejectedSession.incrementAndGet();
+            return REJECTED;
+        }
+        if ((bucket != null) && !bucket.tryAcquire()) {
+            rejectedRate.incrementAndGet();
+            return REJECTED;
+        }
+        int total = outstanding.incrementAndGet();
+        if ((maxOutstanding > 0) && (total > maxOutstanding)) {
+            outstanding.decrementAndGet();
+            rejectedGlobal.incrementAndGet();
+            return REJECTED;
+        }
+        if (throttle != null) {
+            throttle.acquire(bytes);
+        }
+        return null;
+    }
+
+    public void release(int bytes) {
+        outstanding.decrementAndGet();
+        if (throttle != null) {
+            throttle.release(bytes);
+        }
+    }
+
+    public int outstanding() {
+        return outstanding.get();
+    }
+
+    public StringBuilder mntr(StringBuilder output) {
+        output.append("zk_proxy_admitted_outstanding\t").append(outstanding()).append('\n');
+        output.append("zk_proxy_rejected_session_limit\t").append(rejectedSession.get()).append('\n');
+        output.append("zk_proxy_rejected_global_limit\t").append(rejectedGlobal.get()).append('\n');
+        output.append("zk_proxy_rejected_rate_limit\t").append(rejectedRate.get()).append('\n');
+        if (throttle != null) {
+            throttle.mntr(output);
+        }
+        return output;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("maxSessionOutstanding", maxSessionOutstanding)
+                .add("maxOutstanding", maxOutstanding)
+                .add("sessionRate", sessionRate)
+                .add("outstanding", outstanding()).toString();
+    }
+
+    /**
+     * Refills continuously at the rate, holding at most the burst.
+     */
+    public static class TokenBucket {
+
+        protected final double tokensPerNano;
+        protected final double burst;
+        // guarded by this
+        protected double tokens;
+        protected long last;
+
+        public TokenBucket(double perSecond, int burst) {
+            this.tokensPerNano = perSecond / TimeUnit.SECONDS.toNanos(1);
+            this.burst = burst;
+            this.tokens = burst;
+            this.last = System.nanoTime();
+        }
+
+        public synchronized boolean tryAcquire() {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - last) * tokensPerNano);
+            last = now;
+            if (tokens < 1.0) {
+                return false;
+            }
+            tokens -= 1.0;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package edu.uw.zookeeper.proxy;
+
+import java.util.Collection;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+import com.typesafe.config.ConfigValueType;
+
+import edu.uw.zookeeper.ServerInetAddressView;
+import edu.uw.zookeeper.client.FixedClientConnectionFactory;
+import edu.uw.zookeeper.common.Configurable;
+import edu.uw.zookeeper.common.Configuration;
+import edu.uw.zookeeper.net.ClientConnectionFactory;
+import edu.uw.zookeeper.protocol.ProtocolConnection;
+
+/**
+ * Starts once at least one backend server accepts a connection,
+ * so services started after it, such as the client listener, wait for a reachable backend.
+ *
+ * All servers are probed at once, and the probes are retried until the timeout.
+ */
+public class BackendReadiness extends AbstractIdleService {
+
+    public static final long PROBE_MILLIS = 1000L;
+
+    public static BackendReadiness fromConfiguration(
+            Configuration configuration,
+            ServerSelector selector,
+            ClientConnectionFactory<? extends ProtocolConnection<?,?,?,?,?>> connections) {
+        return new BackendReadiness(
+                ReadyTimeoutConfiguration.get(configuration),
+                selector,
+                connections);
+    }
+
+    @Configurable(path="backend", arg="readyTimeout", key="readyTimeout", value="60000", type=ConfigValueType.NUMBER, help="milliseconds to wait at startup for a reachable server (0 to wait indefinitely)")
+    public static class ReadyTimeoutConfiguration implements Function<Configuration, Long> {
+
+        public static Long get(Configuration configuration) {
+            return new ReadyTimeoutConfiguration().apply(configuration);
+        }
+
+        @Override
+        public Long apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getLong(configurable.key());
+        }
+    }
+
+    protected final Logger logger;
+    protected final long timeoutMillis;
+    protected final ServerSelector selector;
+    protected final ClientConnectionFactory<? extends ProtocolConnection<?,?,?,?,?>> connections;
+
+    public BackendReadiness(
+            long timeoutMillis,
+            ServerSelector selector,
+            ClientConnectionFactory<? extends ProtocolConnection<?,?,?,?,?>> connections) {
+        this.logger = LogManager.getLogger(this);
+        this.timeoutMillis = timeoutMillis;
+        this.selector = selector;
+        this.connections = connections;
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+        long start = System.nanoTime();
+        while (true) {
+            ServerInetAddressView reachable = probe();
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (reachable != null) {
+                logger.info("Backend {} reachable after {} ms", reachable, millis);
+                return;
+            }
+            if ((timeoutMillis > 0L) && (millis >= timeoutMillis)) {
+                throw new TimeoutException(String.format("no server reachable in %s after %d ms", selector.servers().keySet(), millis));
+            }
+            logger.warn("No server reachable in {} after {} ms", selector.servers().keySet(), millis);
+            Thread.sleep(PROBE_MILLIS);
+        }
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+    }
+
+    /**
+     * Connects to every server and closes each connection once established.
+     *
+     * @return the first server to accept a connection,
+     *  or null if none did within {@link #PROBE_MILLIS}
+     */
+    protected ServerInetAddressView probe() throws InterruptedException {
+        Collection<ServerInetAddressView> servers = selector.servers().keySet();
+        final SettableFuture<ServerInetAddressView> reachable = SettableFuture.create();
+        final AtomicInteger remaining = new AtomicInteger(servers.size());
+        for (final ServerInetAddressView server: servers) {
+            Futures.addCallback(
+                    FixedClientConnectionFactory.create(server.get(), connections).get(),
+                    new FutureCallback<ProtocolConnection<?,?,?,?,?>>() {
+                        @Override
+                        public void onSuccess(ProtocolConnection<?,?,?,?,?> result) {
+                            result.close();
+                            reachable.set(server);
+                        }
+                        @Override
+                        public void onFailure(Throwable t) {
+                            logger.debug("Probe of {} failed", server, t);
+                            if (remaining.decrementAndGet() == 0) {
+                                reachable.set(null);
+                            }
+                        }
+                    });
+        }
+        try {
+            return reachable.get(PROBE_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package edu.uw.zookeeper.proxy;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Dumps binary trace segments as a JSON array of records.
+ *
+ * Usage: BinaryTraceConverter OUTPUT SEGMENT_OR_DIRECTORY...
+ */
+public class BinaryTraceConverter {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BinaryTraceConverter OUTPUT SEGMENT_OR_DIRECTORY...");
+            System.exit(1);
+        }
+        OutputStream out = new FileOutputStream(args[0]);
+        try {
+            BinaryTraceConverter converter = new BinaryTraceConverter(new ObjectMapper());
+            converter.convert(Arrays.copyOfRange(args, 1, args.length), out);
+        } finally {
+            out.close();
+        }
+    }
+
+    protected final ObjectMapper mapper;
+
+    public BinaryTraceConverter(ObjectMapper mapper) {
+        this.mapper = mapper;
+    }
+
+    public void convert(String[] inputs, OutputStream out) throws IOException {
+        JsonGenerator json = mapper.getFactory().createGenerator(out, JsonEncoding.UTF8);
+        json.writeStartArray();
+        for (String input: inputs) {
+            File file = new File(input);
+            if (file.isDirectory()) {
+                String[] names = file.list();
+                Arrays.sort(names);
+                for (String name: names) {
+                    if (name.startsWith(BinaryTraceWriter.SEGMENT_PREFIX) && name.endsWith(BinaryTraceWriter.SEGMENT_SUFFIX)) {
+                        convert(new File(file, name), json);
+                    }
+                }
+            } else {
+                convert(file, json);
+            }
+        }
+        json.writeEndArray();
+        json.flush();
+    }
+
+    protected void convert(File segment, JsonGenerator json) throws IOException {
+        BinaryTraceReader reader = BinaryTraceReader.open(segment);
+        while (reader.hasNext()) {
+            BinaryTraceReader.Record record = reader.next();
+            json.writeStartObject();
+            json.writeStringField("type", record.isRequest() ? "request" : "response");
+            json.writeNumberField("timestamp", record.getTimestamp());
+            json.writeNumberField("nanos", record.getNanos());
+            json.writeNumberField("sessionId", record.getSessionId());
+            json.writeNumberField("xid", record.getXid());
+            if (record.isRequest()) {
+                json.writeNumberField("opcode", record.getOpcode());
+                if (record.getPath() != null) {
+                    json.writeStringField("path", record.getPath());
+                }
+            } else {
+                json.writeNumberField("zxid", record.getZxid());
+                json.writeNumberField("err", record.getErr());
+            }
+            json.writeEndObject();
+        }
+    }
+}
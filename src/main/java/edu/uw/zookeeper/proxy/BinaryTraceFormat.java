@@ -0,0 +1,63 @@
+package edu.uw.zookeeper.proxy;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Layout of binary trace segments.
+ *
+ * A segment starts with a header of magic (int), version (byte),
+ * wall clock millis (long) and nanoTime (long) taken at the same instant.
+ * Records follow until a zero type byte.
+ *
+ * Every record starts with its type (byte), the nanoTime delta from the previous record
+ * (varint), the session id (long) and the xid (int).
+ * A request then has its opcode (zigzag varint) and path id (varint, 0 for no path).
+ * A response then has its zxid (long) and error code (zigzag varint).
+ * A path record precedes the first use of each path id in a segment
+ * and has the id (varint), the byte length (varint) and the UTF-8 bytes, with no common fields.
+ */
+public abstract class BinaryTraceFormat {
+
+    public static final int MAGIC = 0x5a4b5054; // "ZKPT"
+    public static final byte VERSION = 1;
+    public static final int HEADER_LENGTH = 4 + 1 + 8 + 8;
+
+    public static final byte END = 0;
+    public static final byte REQUEST = 1;
+    public static final byte RESPONSE = 2;
+    public static final byte PATH = 3;
+
+    // upper bound for the fixed part of a request or response record
+    public static final int MAX_RECORD_LENGTH = 1 + 10 + 8 + 4 + 10 + 8 + 5;
+
+    public static void putVarLong(ByteBuffer buf, long value) {
+        while ((value & ~0x7FL) != 0L) {
+            buf.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    public static long getVarLong(ByteBuffer buf) {
+        long value = 0L;
+        int shift = 0;
+        byte b;
+        do {
+            b = buf.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    public static void putZigZag(ByteBuffer buf, int value) {
+        putVarLong(buf, ((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL);
+    }
+
+    public static int getZigZag(ByteBuffer buf) {
+        int value = (int) getVarLong(buf);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private BinaryTraceFormat() {}
+}
@@ -0,0 +1,172 @@
+package edu.uw.zookeeper.proxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Maps;
+
+/**
+ * Iterates over the request and response records of one binary trace segment.
+ */
+public class BinaryTraceReader extends AbstractIterator<BinaryTraceReader.Record> {
+
+    public static BinaryTraceReader open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            return new BinaryTraceReader(buffer);
+        } finally {
+            raf.close();
+        }
+    }
+
+    public static class Record {
+
+        protected final byte type;
+        protected final long timestamp;
+        protected final long nanos;
+        protected final long sessionId;
+        protected final int xid;
+        protected final int opcode;
+        protected final String path;
+        protected final long zxid;
+        protected final int err;
+
+        public Record(byte type, long timestamp, long nanos, long sessionId, int xid, int opcode, String path, long zxid, int err) {
+            this.type = type;
+            this.timestamp = timestamp;
+            this.nanos = nanos;
+            this.sessionId = sessionId;
+            this.xid = xid;
+            this.opcode = opcode;
+            this.path = path;
+            this.zxid = zxid;
+            this.err = err;
+        }
+
+        public boolean isRequest() {
+            return type == BinaryTraceFormat.REQUEST;
+        }
+
+        /**
+         * Wall clock millis.
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * System.nanoTime() of the writer.
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        public long getSessionId() {
+            return sessionId;
+        }
+
+        public int getXid() {
+            return xid;
+        }
+
+        public int getOpcode() {
+            return opcode;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getZxid() {
+            return zxid;
+        }
+
+        public int getErr() {
+            return err;
+        }
+
+        @Override
+        public String toString() {
+            return Objects.toStringHelper(this)
+                    .add("type", type)
+                    .add("nanos", nanos)
+                    .add("sessionId", sessionId)
+                    .add("xid", xid)
+                    .add("opcode", opcode)
+                    .add("path", path)
+                    .add("zxid", zxid)
+                    .add("err", err).toString();
+        }
+    }
+
+    protected final ByteBuffer buffer;
+    protected final long baseMillis;
+    protected final long baseNanos;
+    protected final Map<Integer, String> paths;
+    protected long nanos;
+
+    protected BinaryTraceReader(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if ((buffer.remaining() < BinaryTraceFormat.HEADER_LENGTH) 
+                || (buffer.getInt() != BinaryTraceFormat.MAGIC)) {
+            throw new IOException("not a trace segment");
+        }
+        byte version = buffer.get();
+        if (version != BinaryTraceFormat.VERSION) {
+            throw new IOException(String.format("unsupported version %d", version));
+        }
+        this.baseMillis = buffer.getLong();
+        this.baseNanos = buffer.getLong();
+        this.nanos = baseNanos;
+        this.paths = Maps.newHashMap();
+    }
+
+    @Override
+    protected Record computeNext() {
+        while (buffer.hasRemaining()) {
+            byte type = buffer.get();
+            switch (type) {
+            case BinaryTraceFormat.END:
+                return endOfData();
+            case BinaryTraceFormat.PATH:
+            {
+                int id = (int) BinaryTraceFormat.getVarLong(buffer);
+                byte[] bytes = new byte[(int) BinaryTraceFormat.getVarLong(buffer)];
+                buffer.get(bytes);
+                paths.put(Integer.valueOf(id), new String(bytes, Charsets.UTF_8));
+                break;
+            }
+            case BinaryTraceFormat.REQUEST:
+            case BinaryTraceFormat.RESPONSE:
+            {
+                nanos += BinaryTraceFormat.getVarLong(buffer);
+                long timestamp = baseMillis + (nanos - baseNanos) / 1000000L;
+                long sessionId = buffer.getLong();
+                int xid = buffer.getInt();
+                if (type == BinaryTraceFormat.REQUEST) {
+                    int opcode = BinaryTraceFormat.getZigZag(buffer);
+                    int pathId = (int) BinaryTraceFormat.getVarLong(buffer);
+                    String path = (pathId == 0) ? null : paths.get(Integer.valueOf(pathId));
+                    return new Record(type, timestamp, nanos, sessionId, xid, opcode, path, 0L, 0);
+                } else {
+                    long zxid = buffer.getLong();
+                    int err = BinaryTraceFormat.getZigZag(buffer);
+                    return new Record(type, timestamp, nanos, sessionId, xid, 0, null, zxid, err);
+                }
+            }
+            default:
+                throw new NoSuchElementException(String.format("unknown record type %d", type));
+            }
+        }
+        return endOfData();
+    }
+}
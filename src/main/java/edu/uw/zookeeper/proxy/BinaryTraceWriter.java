@@ -0,0 +1,261 @@
+package edu.uw.zookeeper.proxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.typesafe.config.ConfigValueType;
+
+import edu.uw.zookeeper.common.Configurable;
+import edu.uw.zookeeper.common.Configuration;
+import edu.uw.zookeeper.protocol.Message;
+import edu.uw.zookeeper.protocol.Operation;
+import edu.uw.zookeeper.protocol.proto.Records;
+
+/**
+ * Appends binary trace records to preallocated, memory-mapped segment files,
+ * keeping at most a fixed number of segments.
+ */
+public class BinaryTraceWriter extends AbstractIdleService implements TraceRingBuffer.Consumer {
+
+    public static BinaryTraceWriter fromConfiguration(Configuration configuration) {
+        return newInstance(
+                new File(TraceDirectoryConfiguration.get(configuration)),
+                DEFAULT_SEGMENT_BYTES,
+                TraceSegmentsConfiguration.get(configuration));
+    }
+
+    public static BinaryTraceWriter newInstance(File directory, int segmentBytes, int maxSegments) {
+        return new BinaryTraceWriter(directory, segmentBytes, maxSegments);
+    }
+
+    public static enum Format {
+        JSON, BINARY;
+    }
+
+    @Configurable(path="trace", arg="traceFormat", key="format", value="json", help="json|binary")
+    public static class TraceFormatConfiguration implements Function<Configuration, Format> {
+
+        public static Format get(Configuration configuration) {
+            return new TraceFormatConfiguration().apply(configuration);
+        }
+
+        @Override
+        public Format apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return Format.valueOf(configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getString(configurable.key()).toUpperCase());
+        }
+    }
+
+    @Configurable(path="trace", arg="traceDirectory", key="directory", value="trace", help="directory for binary trace segments")
+    public static class TraceDirectoryConfiguration implements Function<Configuration, String> {
+
+        public static String get(Configuration configuration) {
+            return new TraceDirectoryConfiguration().apply(configuration);
+        }
+
+        @Override
+        public String apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getString(configurable.key());
+        }
+    }
+
+    @Configurable(path="trace", arg="traceSegments", key="segments", value="16", type=ConfigValueType.NUMBER, help="binary trace segments to keep")
+    public static class TraceSegmentsConfiguration implements Function<Configuration, Integer> {
+
+        public static Integer get(Configuration configuration) {
+            return new TraceSegmentsConfiguration().apply(configuration);
+        }
+
+        @Override
+        public Integer apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getInt(configurable.key());
+        }
+    }
+
+    public static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+    public static final String SEGMENT_PREFIX = "trace-";
+    public static final String SEGMENT_SUFFIX = ".bin";
+
+    public static String segmentName(long index) {
+        return String.format("%s%012d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX);
+    }
+
+    protected final Logger logger;
+    protected final File directory;
+    protected final int segmentBytes;
+    protected final int maxSegments;
+    protected final Map<String, Integer> paths;
+    protected long segment;
+    protected MappedByteBuffer buffer;
+    protected long nanos;
+
+    protected BinaryTraceWriter(File directory, int segmentBytes, int maxSegments) {
+        this.logger = LogManager.getLogger(this);
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = maxSegments;
+        this.paths = Maps.newHashMap();
+        this.segment = 0L;
+        this.buffer = null;
+        this.nanos = 0L;
+    }
+
+    public File directory() {
+        return directory;
+    }
+
+    public static String pathOf(Records.Request record) {
+        return (record instanceof Records.PathGetter) ? ((Records.PathGetter) record).getPath() : null;
+    }
+
+    public static int errorOf(Message.ServerResponse<?> response) {
+        return (response.record() instanceof Operation.Error)
+                ? ((Operation.Error) response.record()).error().intValue() : 0;
+    }
+
+    public void request(long sessionId, Message.ClientRequest<?> request, long nanoTime) {
+        Records.Request record = request.record();
+        request(nanoTime, sessionId, request.xid(), record.opcode().intValue(), pathOf(record));
+    }
+
+    public void response(long sessionId, Message.ServerResponse<?> response, long nanoTime) {
+        response(nanoTime, sessionId, response.xid(), response.zxid(), errorOf(response));
+    }
+
+    @Override
+    public synchronized void request(long nanoTime, long sessionId, int xid, int opcode, String path) {
+        if (buffer == null) {
+            return;
+        }
+        int pathId = 0;
+        if (path != null) {
+            Integer id = paths.get(path);
+            byte[] bytes = (id == null) ? path.getBytes(Charsets.UTF_8) : null;
+            if (ensure(BinaryTraceFormat.MAX_RECORD_LENGTH + ((bytes == null) ? 0 : 10 + bytes.length)) && (id != null)) {
+                // paths are interned per segment
+                id = null;
+                bytes = path.getBytes(Charsets.UTF_8);
+            }
+            if (id == null) {
+                id = Integer.valueOf(paths.size() + 1);
+                paths.put(path, id);
+                buffer.put(BinaryTraceFormat.PATH);
+                BinaryTraceFormat.putVarLong(buffer, id.longValue());
+                BinaryTraceFormat.putVarLong(buffer, bytes.length);
+                buffer.put(bytes);
+            }
+            pathId = id.intValue();
+        } else {
+            ensure(BinaryTraceFormat.MAX_RECORD_LENGTH);
+        }
+        putCommon(BinaryTraceFormat.REQUEST, nanoTime, sessionId, xid);
+        BinaryTraceFormat.putZigZag(buffer, opcode);
+        BinaryTraceFormat.putVarLong(buffer, pathId);
+    }
+
+    @Override
+    public synchronized void response(long nanoTime, long sessionId, int xid, long zxid, int err) {
+        if (buffer == null) {
+            return;
+        }
+        ensure(BinaryTraceFormat.MAX_RECORD_LENGTH);
+        putCommon(BinaryTraceFormat.RESPONSE, nanoTime, sessionId, xid);
+        buffer.putLong(zxid);
+        BinaryTraceFormat.putZigZag(buffer, err);
+    }
+
+    @Override
+    protected synchronized void startUp() throws Exception {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException(String.valueOf(directory));
+        }
+        for (String name: directory.list()) {
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                long index = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                segment = Math.max(segment, index + 1);
+            }
+        }
+        rotate();
+    }
+
+    @Override
+    protected synchronized void shutDown() throws Exception {
+        if (buffer != null) {
+            buffer.force();
+            buffer = null;
+        }
+    }
+
+    protected void putCommon(byte type, long nanoTime, long sessionId, int xid) {
+        buffer.put(type);
+        BinaryTraceFormat.putVarLong(buffer, Math.max(0L, nanoTime - nanos));
+        nanos = Math.max(nanos, nanoTime);
+        buffer.putLong(sessionId);
+        buffer.putInt(xid);
+    }
+
+    /**
+     * @return true if a new segment was started
+     */
+    protected boolean ensure(int length) {
+        // keep one byte for the end marker
+        if (buffer.remaining() < length + 1) {
+            try {
+                rotate();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    protected void rotate() throws IOException {
+        if (buffer != null) {
+            buffer.force();
+        }
+        File file = new File(directory, segmentName(segment));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(segmentBytes);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        } finally {
+            // the mapping stays valid after the file is closed
+            raf.close();
+        }
+        long expired = segment - maxSegments;
+        if (expired >= 0L) {
+            File old = new File(directory, segmentName(expired));
+            if (old.exists() && !old.delete()) {
+                logger.warn("Unable to delete {}", old);
+            }
+        }
+        segment++;
+        paths.clear();
+        nanos = System.nanoTime();
+        buffer.putInt(BinaryTraceFormat.MAGIC);
+        buffer.put(BinaryTraceFormat.VERSION);
+        buffer.putLong(System.currentTimeMillis());
+        buffer.putLong(nanos);
+        logger.debug("Tracing to {}", file);
+    }
+}
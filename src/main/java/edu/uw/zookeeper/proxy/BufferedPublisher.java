@@ -0,0 +1,113 @@
+package edu.uw.zookeeper.proxy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.google.common.base.Objects;
+import com.google.common.util.concurrent.AbstractExecutionThreadService;
+
+import edu.uw.zookeeper.common.Configuration;
+import edu.uw.zookeeper.common.Publisher;
+
+/**
+ * Samples the trace events of the default JSON tracing path by backend connection,
+ * and hands them to the trace publisher through a bounded ring buffer on a thread of its own.
+ * Callers never block; events that do not fit are dropped.
+ *
+ * Events are published by the connection codec, which does not expose sessions or xids,
+ * so only the session sample rate applies here. It is checked for every event,
+ * so a change of rate applies to connections already open.
+ */
+public class BufferedPublisher extends AbstractExecutionThreadService implements Publisher {
+
+    public static BufferedPublisher fromConfiguration(Configuration configuration, Publisher delegate) {
+        return new BufferedPublisher(
+                TraceSampler.fromConfiguration(configuration),
+                TraceRingBuffer.newInstance(BufferedTracer.BufferSizeConfiguration.get(configuration)),
+                delegate);
+    }
+
+    protected static final int DRAIN_BATCH = 1024;
+    protected static final long IDLE_NANOS = TimeUnit.MICROSECONDS.toNanos(100L);
+
+    protected final TraceSampler sampler;
+    protected final TraceRingBuffer buffer;
+    protected final Publisher delegate;
+    protected final AtomicLong connections;
+
+    public BufferedPublisher(
+            TraceSampler sampler,
+            TraceRingBuffer buffer,
+            Publisher delegate) {
+        this.sampler = sampler;
+        this.buffer = buffer;
+        this.delegate = delegate;
+        this.connections = new AtomicLong(0L);
+    }
+
+    public TraceSampler sampler() {
+        return sampler;
+    }
+
+    public long dropped() {
+        return buffer.dropped();
+    }
+
+    /**
+     * @return where a new connection publishes its events, which discards them while it is not sampled
+     */
+    public Publisher forConnection() {
+        return new ConnectionPublisher(connections.incrementAndGet());
+    }
+
+    @Override
+    public void post(Object event) {
+        buffer.offer(event);
+    }
+
+    public StringBuilder mntr(StringBuilder output) {
+        output.append("zk_proxy_trace_session_sample_rate\t").append(sampler.getSessionRate()).append('\n');
+        output.append("zk_proxy_trace_dropped\t").append(dropped()).append('\n');
+        return output;
+    }
+
+    @Override
+    protected void run() throws Exception {
+        while (isRunning()) {
+            if (buffer.drain(delegate, DRAIN_BATCH) == 0) {
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+        while (buffer.drain(delegate, DRAIN_BATCH) > 0) {}
+    }
+
+    @Override
+    protected String serviceName() {
+        return getClass().getSimpleName();
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("sampler", sampler)
+                .add("capacity", buffer.capacity())
+                .add("dropped", dropped()).toString();
+    }
+
+    protected final class ConnectionPublisher implements Publisher {
+
+        protected final long id;
+
+        public ConnectionPublisher(long id) {
+            this.id = id;
+        }
+
+        @Override
+        public void post(Object event) {
+            if (sampler.sampleSession(id)) {
+                BufferedPublisher.this.post(event);
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package edu.uw.zookeeper.proxy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.google.common.base.Function;
+import com.google.common.base.Objects;
+import com.google.common.util.concurrent.AbstractExecutionThreadService;
+import com.typesafe.config.ConfigValueType;
+
+import edu.uw.zookeeper.common.Configurable;
+import edu.uw.zookeeper.common.Configuration;
+import edu.uw.zookeeper.protocol.Message;
+import edu.uw.zookeeper.protocol.proto.Records;
+
+/**
+ * Samples trace records on the calling thread and hands them to a writer thread
+ * through a bounded ring buffer. Callers never block; records that do not fit are dropped.
+ */
+public class BufferedTracer extends AbstractExecutionThreadService {
+
+    public static BufferedTracer fromConfiguration(Configuration configuration, TraceRingBuffer.Consumer writer) {
+        return new BufferedTracer(
+                TraceSampler.fromConfiguration(configuration),
+                TraceRingBuffer.newInstance(BufferSizeConfiguration.get(configuration)),
+                writer);
+    }
+
+    @Configurable(path="trace", arg="traceBuffer", key="bufferSize", value="65536", type=ConfigValueType.NUMBER, help="trace records buffered ahead of the writer")
+    public static class BufferSizeConfiguration implements Function<Configuration, Integer> {
+
+        public static Integer get(Configuration configuration) {
+            return new BufferSizeConfiguration().apply(configuration);
+        }
+
+        @Override
+        public Integer apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getInt(configurable.key());
+        }
+    }
+
+    protected static final int DRAIN_BATCH = 1024;
+    protected static final long IDLE_NANOS = TimeUnit.MICROSECONDS.toNanos(100L);
+
+    protected final TraceSampler sampler;
+    protected final TraceRingBuffer buffer;
+    protected final TraceRingBuffer.Consumer writer;
+
+    public BufferedTracer(
+            TraceSampler sampler,
+            TraceRingBuffer buffer,
+            TraceRingBuffer.Consumer writer) {
+        this.sampler = sampler;
+        this.buffer = buffer;
+        this.writer = writer;
+    }
+
+    public TraceSampler sampler() {
+        return sampler;
+    }
+
+    public long dropped() {
+        return buffer.dropped();
+    }
+
+    public TraceRingBuffer.Consumer writer() {
+        return writer;
+    }
+
+    public void request(long sessionId, Message.ClientRequest<?> request, long nanoTime) {
+        Records.Request record = request.record();
+        int opcode = record.opcode().intValue();
+        if (sampler.sample(sessionId, request.xid(), opcode)) {
+            buffer.offerRequest(nanoTime, sessionId, request.xid(), opcode, BinaryTraceWriter.pathOf(record));
+        }
+    }
+
+    public void response(long sessionId, Message.ClientRequest<?> request, Message.ServerResponse<?> response, long nanoTime) {
+        if (sampler.sample(sessionId, request.xid(), request.record().opcode().intValue())) {
+            buffer.offerResponse(nanoTime, sessionId, response.xid(), response.zxid(), BinaryTraceWriter.errorOf(response));
+        }
+    }
+
+    public StringBuilder mntr(StringBuilder output) {
+        output.append("zk_proxy_trace_sample_rate\t").append(sampler.getRate()).append('\n');
+        output.append("zk_proxy_trace_session_sample_rate\t").append(sampler.getSessionRate()).append('\n');
+        output.append("zk_proxy_trace_dropped\t").append(dropped()).append('\n');
+        return output;
+    }
+
+    @Override
+    protected void run() throws Exception {
+        while (isRunning()) {
+            if (buffer.drain(writer, DRAIN_BATCH) == 0) {
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+        while (buffer.drain(writer, DRAIN_BATCH) > 0) {}
+    }
+
+    @Override
+    protected String serviceName() {
+        return getClass().getSimpleName();
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("sampler", sampler)
+                .add("capacity", buffer.capacity())
+                .add("dropped", buffer.dropped()).toString();
+    }
+}
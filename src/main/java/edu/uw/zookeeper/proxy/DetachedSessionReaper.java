@@ -0,0 +1,38 @@
+package edu.uw.zookeeper.proxy;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Expires sessions whose client has not reattached within the session timeout.
+ */
+public class DetachedSessionReaper implements Runnable {
+
+    public static final long INTERVAL_MILLIS = 1000L;
+
+    protected final Logger logger;
+    protected final LongConcurrentHashMap<ProxySessionExecutor> executors;
+
+    public DetachedSessionReaper(LongConcurrentHashMap<ProxySessionExecutor> executors) {
+        this.logger = LogManager.getLogger(this);
+        this.executors = executors;
+    }
+
+    @Override
+    public void run() {
+        long now = System.nanoTime();
+        for (ProxySessionExecutor executor: executors.values()) {
+            try {
+                if (!executor.connected().isDone()) {
+                    continue;
+                }
+                if (executor.expireIfDetached(executors, now)) {
+                    logger.debug("Expired detached session {}", executor);
+                }
+            } catch (Exception e) {
+                // the session of a failed connect is not available
+                logger.warn("Error expiring {}", executor, e);
+            }
+        }
+    }
+}
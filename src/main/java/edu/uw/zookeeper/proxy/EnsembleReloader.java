@@ -0,0 +1,229 @@
+package edu.uw.zookeeper.proxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import com.typesafe.config.ConfigValueType;
+
+import edu.uw.zookeeper.EnsembleView;
+import edu.uw.zookeeper.ServerInetAddressView;
+import edu.uw.zookeeper.common.Configurable;
+import edu.uw.zookeeper.common.Configuration;
+
+/**
+ * Replaces the backend ensemble from a file when the file changes,
+ * or on the <code>rlod</code> command.
+ *
+ * New sessions use the new ensemble at once.
+ * Sessions on removed servers are drained a few at a time by dropping their backend connection,
+ * so their clients reconnect and renew the same session on one of the remaining servers.
+ * Their client factories and warm connection pools are dropped, and idle pooled connections closed.
+ */
+public class EnsembleReloader implements Runnable {
+
+    public static final long INTERVAL_MILLIS = 1000L;
+
+    /**
+     * @return null if no servers file is configured
+     */
+    public static EnsembleReloader fromConfiguration(
+            Configuration configuration,
+            ServerSelector selector,
+            LongConcurrentHashMap<ProxySessionExecutor> executors) {
+        String file = ServersFileConfiguration.get(configuration);
+        if (file.trim().isEmpty()) {
+            return null;
+        }
+        return new EnsembleReloader(
+                new File(file.trim()),
+                DrainRateConfiguration.get(configuration),
+                selector,
+                executors);
+    }
+
+    @Configurable(path="backend", arg="serversFile", key="serversFile", value="", help="file of address:port,... reloaded when changed (empty to disable)")
+    public static class ServersFileConfiguration implements Function<Configuration, String> {
+
+        public static String get(Configuration configuration) {
+            return new ServersFileConfiguration().apply(configuration);
+        }
+
+        @Override
+        public String apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getString(configurable.key());
+        }
+    }
+
+    @Configurable(path="backend", arg="drainRate", key="drainRate", value="10", type=ConfigValueType.NUMBER, help="sessions per second moved off removed servers")
+    public static class DrainRateConfiguration implements Function<Configuration, Integer> {
+
+        public static Integer get(Configuration configuration) {
+            return new DrainRateConfiguration().apply(configuration);
+        }
+
+        @Override
+        public Integer apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getInt(configurable.key());
+        }
+    }
+
+    protected final Logger logger;
+    protected final File file;
+    protected final int drainPerInterval;
+    protected final ServerSelector selector;
+    protected final LongConcurrentHashMap<ProxySessionExecutor> executors;
+    // guarded by this
+    protected final Set<SocketAddress> draining;
+    protected long lastModified;
+    protected final AtomicLong reloads;
+    protected final AtomicLong drained;
+
+    public EnsembleReloader(
+            File file,
+            int drainRate,
+            ServerSelector selector,
+            LongConcurrentHashMap<ProxySessionExecutor> executors) {
+        this.logger = LogManager.getLogger(this);
+        this.file = file;
+        this.drainPerInterval = Math.max(1, (int) (drainRate * INTERVAL_MILLIS / 1000L));
+        this.selector = selector;
+        this.executors = executors;
+        this.draining = Sets.newHashSet();
+        this.lastModified = file.lastModified();
+        this.reloads = new AtomicLong(0L);
+        this.drained = new AtomicLong(0L);
+    }
+
+    @Override
+    public void run() {
+        try {
+            long modified = file.lastModified();
+            boolean changed;
+            synchronized (this) {
+                changed = (modified != 0L) && (modified != lastModified);
+            }
+            if (changed) {
+                reload();
+            }
+            drain();
+        } catch (Exception e) {
+            logger.warn("Error reloading {}", file, e);
+        }
+    }
+
+    /**
+     * @return a line describing the outcome
+     */
+    public synchronized String reload() {
+        lastModified = file.lastModified();
+        EnsembleView<ServerInetAddressView> ensemble;
+        try {
+            ensemble = read();
+        } catch (Exception e) {
+            logger.warn("Ignoring servers file {}", file, e);
+            return "error: " + e.getMessage();
+        }
+        List<ServerInetAddressView> removed = selector.update(ensemble);
+        reloads.incrementAndGet();
+        for (ServerInetAddressView server: removed) {
+            draining.add(server.get());
+        }
+        for (ServerInetAddressView server: ensemble) {
+            draining.remove(server.get());
+        }
+        return "servers: " + EnsembleView.toString(ensemble) + ", removed: " + removed.size();
+    }
+
+    public synchronized int draining() {
+        return draining.size();
+    }
+
+    public StringBuilder mntr(StringBuilder output) {
+        output.append("zk_proxy_ensemble_reloads\t").append(reloads.get()).append('\n');
+        output.append("zk_proxy_draining_servers\t").append(draining()).append('\n');
+        output.append("zk_proxy_drained_sessions\t").append(drained.get()).append('\n');
+        return output;
+    }
+
+    /**
+     * One line or comma per server, with <code>#</code> comments.
+     */
+    protected EnsembleView<ServerInetAddressView> read() throws IOException {
+        List<String> servers = Lists.newArrayList();
+        for (String line: Files.readLines(file, Charsets.UTF_8)) {
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            line = line.trim();
+            if (!line.isEmpty()) {
+                servers.add(line);
+            }
+        }
+        if (servers.isEmpty()) {
+            throw new IllegalArgumentException("no servers");
+        }
+        return ServerInetAddressView.ensembleFromString(Joiner.on(',').join(servers));
+    }
+
+    protected void drain() {
+        Set<SocketAddress> draining;
+        synchronized (this) {
+            if (this.draining.isEmpty()) {
+                return;
+            }
+            draining = Sets.newHashSet(this.draining);
+        }
+        int budget = drainPerInterval;
+        boolean remaining = false;
+        Iterator<ProxySessionExecutor> itr = executors.values().iterator();
+        while (itr.hasNext()) {
+            ProxySessionExecutor executor = itr.next();
+            // multiplexed backend sessions are not ours to move
+            if ((executor instanceof MultiplexedSessionExecutor) || !executor.connected().isDone()) {
+                continue;
+            }
+            if (!draining.contains(executor.server())) {
+                continue;
+            }
+            if (budget == 0) {
+                remaining = true;
+                break;
+            }
+            --budget;
+            itr.remove();
+            drained.incrementAndGet();
+            logger.debug("Draining {} from {}", executor.session(), executor.server());
+            try {
+                executor.expire();
+            } catch (Exception e) {
+                logger.warn("Error draining {}", executor.session(), e);
+            }
+        }
+        if (!remaining) {
+            synchronized (this) {
+                this.draining.removeAll(draining);
+            }
+        }
+    }
+}
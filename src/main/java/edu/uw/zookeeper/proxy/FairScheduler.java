@@ -0,0 +1,501 @@
+package edu.uw.zookeeper.proxy;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Function;
+import com.google.common.base.Objects;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.typesafe.config.ConfigValueType;
+
+import edu.uw.zookeeper.common.Configurable;
+import edu.uw.zookeeper.common.Configuration;
+import edu.uw.zookeeper.protocol.Message;
+import edu.uw.zookeeper.protocol.proto.OpCode;
+import edu.uw.zookeeper.protocol.proto.Records;
+
+/**
+ * Shares a budget of in-flight backend requests among classes of sessions
+ * by deficit round robin over estimated request bytes.
+ *
+ * A session is put in a class by the path of its first request with a path,
+ * and stays there, so its requests are dispatched in the order submitted.
+ * Sessions within a class take turns.
+ *
+ * Session-level requests (pings, closes and credentials) do not wait for the budget:
+ * each is dispatched right after the request the session submitted before it.
+ */
+public class FairScheduler {
+
+    public static final String DEFAULT_CLASS = "default";
+
+    // bytes a class of weight one may send per round
+    public static final int QUANTUM_BYTES = 1024;
+
+    // dispatched past the budget, since the backend session depends on them
+    public static final Set<OpCode> SESSION_OPCODES = EnumSet.of(OpCode.PING, OpCode.CLOSE_SESSION, OpCode.AUTH);
+
+    /**
+     * @return null if no classes are configured
+     */
+    public static FairScheduler fromConfiguration(Configuration configuration) {
+        String classes = ClassesConfiguration.get(configuration);
+        if (classes.trim().isEmpty()) {
+            return null;
+        }
+        return newInstance(classes, InFlightConfiguration.get(configuration));
+    }
+
+    /**
+     * @param classes comma-separated <code>name:weight[:prefix]...</code>,
+     *  for example <code>interactive:8:/app,batch:1:/jobs:/etl</code>;
+     *  sessions matching no prefix are in the {@value #DEFAULT_CLASS} class, of weight one unless listed
+     */
+    public static FairScheduler newInstance(String classes, int inFlight) {
+        Map<String, ServiceClass> byName = Maps.newLinkedHashMap();
+        List<Map.Entry<String, ServiceClass>> prefixes = Lists.newArrayList();
+        for (String entry: Splitter.on(',').trimResults().omitEmptyStrings().split(classes)) {
+            List<String> fields = Splitter.on(':').trimResults().splitToList(entry);
+            if (fields.size() < 2) {
+                throw new IllegalArgumentException(entry);
+            }
+            ServiceClass serviceClass = new ServiceClass(fields.get(0), Integer.parseInt(fields.get(1)));
+            byName.put(serviceClass.name(), serviceClass);
+            for (String prefix: fields.subList(2, fields.size())) {
+                prefixes.add(Maps.immutableEntry(prefix, serviceClass));
+            }
+        }
+        if (!byName.containsKey(DEFAULT_CLASS)) {
+            byName.put(DEFAULT_CLASS, new ServiceClass(DEFAULT_CLASS, 1));
+        }
+        // longest prefix first
+        Collections.sort(prefixes, new Comparator<Map.Entry<String, ServiceClass>>() {
+            @Override
+            public int compare(Map.Entry<String, ServiceClass> a, Map.Entry<String, ServiceClass> b) {
+                return b.getKey().length() - a.getKey().length();
+            }
+        });
+        return new FairScheduler(
+                ImmutableList.copyOf(byName.values()),
+                ImmutableList.copyOf(prefixes),
+                byName.get(DEFAULT_CLASS),
+                inFlight);
+    }
+
+    @Configurable(path="scheduler", arg="classes", key="classes", value="", help="name:weight[:prefix]... comma-separated (empty to disable)")
+    public static class ClassesConfiguration implements Function<Configuration, String> {
+
+        public static String get(Configuration configuration) {
+            return new ClassesConfiguration().apply(configuration);
+        }
+
+        @Override
+        public String apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getString(configurable.key());
+        }
+    }
+
+    @Configurable(path="scheduler", arg="inFlight", key="inFlight", value="1000", type=ConfigValueType.NUMBER, help="backend requests in flight before requests are queued")
+    public static class InFlightConfiguration implements Function<Configuration, Integer> {
+
+        public static Integer get(Configuration configuration) {
+            return new InFlightConfiguration().apply(configuration);
+        }
+
+        @Override
+        public Integer apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getInt(configurable.key());
+        }
+    }
+
+    /**
+     * Sends a dispatched request to the backend.
+     */
+    public static interface Dispatcher {
+        ListenableFuture<Message.ServerResponse<?>> dispatch(Message.ClientRequest<?> request);
+    }
+
+    protected final ImmutableList<ServiceClass> classes;
+    protected final ImmutableList<Map.Entry<String, ServiceClass>> prefixes;
+    protected final ServiceClass defaultClass;
+    protected final int maxInFlight;
+    // guarded by this
+    protected final Deque<ServiceClass> active;
+    // session-level requests with nothing of their session queued ahead
+    protected final List<Pending> bypassed;
+    protected int inFlight;
+    protected boolean draining;
+
+    protected FairScheduler(
+            ImmutableList<ServiceClass> classes,
+            ImmutableList<Map.Entry<String, ServiceClass>> prefixes,
+            ServiceClass defaultClass,
+            int maxInFlight) {
+        this.classes = classes;
+        this.prefixes = prefixes;
+        this.defaultClass = defaultClass;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.active = new ArrayDeque<ServiceClass>(classes.size());
+        this.bypassed = Lists.newArrayList();
+        this.inFlight = 0;
+        this.draining = false;
+    }
+
+    public List<ServiceClass> classes() {
+        return classes;
+    }
+
+    /**
+     * @return null until the session sends a request with a path
+     */
+    public ServiceClass classify(Records.Request record) {
+        if (!(record instanceof Records.PathGetter)) {
+            return null;
+        }
+        String path = ((Records.PathGetter) record).getPath();
+        if (path == null) {
+            return null;
+        }
+        for (Map.Entry<String, ServiceClass> prefix: prefixes) {
+            if (path.startsWith(prefix.getKey())) {
+                return prefix.getValue();
+            }
+        }
+        return defaultClass;
+    }
+
+    public SessionQueue newQueue(Dispatcher dispatcher) {
+        return new SessionQueue(dispatcher);
+    }
+
+    /**
+     * Queues the request, or dispatches it at once if there is room.
+     *
+     * @param queue the submitting session's queue
+     */
+    public ListenableFuture<Message.ServerResponse<?>> submit(
+            SessionQueue queue,
+            Message.ClientRequest<?> request) {
+        Pending pending = new Pending(queue, request);
+        synchronized (this) {
+            queue.add(pending);
+        }
+        drain();
+        return pending.future();
+    }
+
+    public StringBuilder mntr(StringBuilder output) {
+        for (ServiceClass serviceClass: classes) {
+            serviceClass.mntr(output);
+        }
+        return output;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("classes", classes)
+                .add("maxInFlight", maxInFlight).toString();
+    }
+
+    /**
+     * Dispatches outside the lock, one thread at a time so a session's requests stay in order.
+     */
+    protected void drain() {
+        while (true) {
+            List<Pending> batch = Lists.newArrayList();
+            synchronized (this) {
+                if (draining) {
+                    return;
+                }
+                select(batch);
+                if (batch.isEmpty()) {
+                    return;
+                }
+                draining = true;
+            }
+            try {
+                for (Pending pending: batch) {
+                    pending.dispatch();
+                }
+            } finally {
+                synchronized (this) {
+                    draining = false;
+                }
+            }
+        }
+    }
+
+    // called with this held
+    protected void select(List<Pending> batch) {
+        batch.addAll(bypassed);
+        bypassed.clear();
+        while ((inFlight < maxInFlight) && !active.isEmpty()) {
+            ServiceClass serviceClass = active.peekFirst();
+            if (!serviceClass.served) {
+                serviceClass.deficit += serviceClass.quantum;
+                serviceClass.served = true;
+            }
+            Pending next = serviceClass.peek();
+            if (next.bytes <= serviceClass.deficit) {
+                serviceClass.deficit -= next.bytes;
+                serviceClass.poll();
+                batch.add(next);
+                inFlight++;
+                if (next.following != null) {
+                    batch.addAll(next.following);
+                }
+                if (serviceClass.isEmpty()) {
+                    serviceClass.deficit = 0L;
+                    serviceClass.served = false;
+                    active.pollFirst();
+                }
+            } else {
+                // out of credit for this round
+                serviceClass.served = false;
+                active.addLast(active.pollFirst());
+            }
+        }
+    }
+
+    protected void completed() {
+        synchronized (this) {
+            inFlight--;
+        }
+        drain();
+    }
+
+    /**
+     * Requests of one session, in order.
+     */
+    public class SessionQueue {
+
+        protected final Dispatcher dispatcher;
+        protected volatile ServiceClass serviceClass;
+        // guarded by FairScheduler.this
+        protected final Deque<Pending> queued;
+
+        public SessionQueue(Dispatcher dispatcher) {
+            this.dispatcher = dispatcher;
+            this.serviceClass = null;
+            this.queued = new ArrayDeque<Pending>();
+        }
+
+        public Dispatcher dispatcher() {
+            return dispatcher;
+        }
+
+        /**
+         * @return null until classified
+         */
+        public ServiceClass serviceClass() {
+            return serviceClass;
+        }
+
+        // called with FairScheduler.this held
+        protected void add(Pending pending) {
+            if (pending.bypass) {
+                Pending last = queued.peekLast();
+                if (last == null) {
+                    bypassed.add(pending);
+                } else {
+                    // in order after the request ahead of it
+                    last.follow(pending);
+                }
+                return;
+            }
+            if ((this.serviceClass == null) && queued.isEmpty()) {
+                // only when nothing is queued, so earlier requests can not be overtaken
+                this.serviceClass = classify(pending.request.record());
+            }
+            ServiceClass serviceClass = (this.serviceClass == null) ? defaultClass : this.serviceClass;
+            pending.serviceClass = serviceClass;
+            queued.addLast(pending);
+            serviceClass.queued++;
+            if (queued.size() == 1) {
+                if (serviceClass.sessions.isEmpty()) {
+                    active.addLast(serviceClass);
+                }
+                serviceClass.sessions.addLast(this);
+            }
+        }
+    }
+
+    protected class Pending implements FutureCallback<Message.ServerResponse<?>> {
+
+        protected final SessionQueue queue;
+        protected final Message.ClientRequest<?> request;
+        protected final int bytes;
+        protected final long queuedAt;
+        protected final SettableFuture<Message.ServerResponse<?>> future;
+        // not counted against the budget
+        protected final boolean bypass;
+        protected ServiceClass serviceClass;
+        // guarded by FairScheduler.this, null until a session-level request follows this one
+        protected List<Pending> following;
+
+        public Pending(SessionQueue queue, Message.ClientRequest<?> request) {
+            this.queue = queue;
+            this.request = request;
+            this.bytes = AdmissionControl.estimateBytes(request);
+            this.queuedAt = System.nanoTime();
+            this.future = SettableFuture.create();
+            this.bypass = SESSION_OPCODES.contains(request.record().opcode());
+            this.serviceClass = null;
+            this.following = null;
+        }
+
+        public ListenableFuture<Message.ServerResponse<?>> future() {
+            return future;
+        }
+
+        // called with FairScheduler.this held
+        protected void follow(Pending pending) {
+            if (following == null) {
+                following = Lists.newArrayListWithCapacity(1);
+            }
+            following.add(pending);
+        }
+
+        public void dispatch() {
+            if (serviceClass != null) {
+                serviceClass.dispatched(System.nanoTime() - queuedAt);
+            }
+            ListenableFuture<Message.ServerResponse<?>> sent;
+            try {
+                sent = queue.dispatcher().dispatch(request);
+            } catch (Exception e) {
+                sent = Futures.immediateFailedFuture(e);
+            }
+            Futures.addCallback(sent, this);
+        }
+
+        @Override
+        public void onSuccess(Message.ServerResponse<?> result) {
+            if (!bypass) {
+                completed();
+            }
+            future.set(result);
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+            if (!bypass) {
+                completed();
+            }
+            future.setException(t);
+        }
+    }
+
+    /**
+     * A tenant or priority class.
+     */
+    public static class ServiceClass {
+
+        protected final String name;
+        protected final int weight;
+        protected final long quantum;
+        // guarded by the scheduler
+        protected final Deque<FairScheduler.SessionQueue> sessions;
+        protected long deficit;
+        protected boolean served;
+        protected volatile int queued;
+        protected volatile long dispatched;
+        protected volatile long waitNanos;
+        protected volatile long maxWaitNanos;
+
+        public ServiceClass(String name, int weight) {
+            this.name = name;
+            this.weight = Math.max(1, weight);
+            this.quantum = (long) this.weight * QUANTUM_BYTES;
+            this.sessions = new ArrayDeque<FairScheduler.SessionQueue>();
+            this.deficit = 0L;
+            this.served = false;
+            this.queued = 0;
+            this.dispatched = 0L;
+            this.waitNanos = 0L;
+            this.maxWaitNanos = 0L;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public int weight() {
+            return weight;
+        }
+
+        public int queued() {
+            return queued;
+        }
+
+        public StringBuilder mntr(StringBuilder output) {
+            long dispatched = this.dispatched;
+            String prefix = "zk_proxy_class_" + name + "_";
+            output.append(prefix).append("queued\t").append(queued).append('\n');
+            output.append(prefix).append("dispatched\t").append(dispatched).append('\n');
+            output.append(prefix).append("wait_avg_us\t").append((dispatched == 0L) ? 0L : TimeUnit.NANOSECONDS.toMicros(waitNanos / dispatched)).append('\n');
+            output.append(prefix).append("wait_max_us\t").append(TimeUnit.NANOSECONDS.toMicros(maxWaitNanos)).append('\n');
+            return output;
+        }
+
+        @Override
+        public String toString() {
+            return Objects.toStringHelper(this)
+                    .add("name", name)
+                    .add("weight", weight)
+                    .add("queued", queued).toString();
+        }
+
+        // called with the scheduler held
+        protected boolean isEmpty() {
+            return sessions.isEmpty();
+        }
+
+        // called with the scheduler held
+        protected FairScheduler.Pending peek() {
+            return sessions.peekFirst().queued.peekFirst();
+        }
+
+        // called with the scheduler held
+        protected FairScheduler.Pending poll() {
+            FairScheduler.SessionQueue session = sessions.pollFirst();
+            FairScheduler.Pending next = session.queued.pollFirst();
+            if (!session.queued.isEmpty()) {
+                // next session's turn
+                sessions.addLast(session);
+            }
+            queued--;
+            return next;
+        }
+
+        // called by the one draining thread
+        protected void dispatched(long wait) {
+            dispatched++;
+            waitNanos += wait;
+            if (wait > maxWaitNanos) {
+                maxWaitNanos = wait;
+            }
+        }
+    }
+}
@@ -0,0 +1,435 @@
+package edu.uw.zookeeper.proxy;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Concurrent map keyed by primitive longs, such as session ids.
+ *
+ * Segments are open-addressed tables with linear probing of immutable nodes.
+ * Reads take no locks; writes lock one segment.
+ * Keys are stored unboxed, so lookups through the long methods do not allocate.
+ * Iterators are weakly consistent.
+ */
+public class LongConcurrentHashMap<V> extends AbstractMap<Long, V> implements ConcurrentMap<Long, V> {
+
+    public static <V> LongConcurrentHashMap<V> newInstance() {
+        return new LongConcurrentHashMap<V>(DEFAULT_SEGMENTS, DEFAULT_CAPACITY);
+    }
+
+    public static <V> LongConcurrentHashMap<V> newInstance(int segments, int capacity) {
+        return new LongConcurrentHashMap<V>(segments, capacity);
+    }
+
+    public static final int DEFAULT_SEGMENTS = 16;
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    // marks a removed entry, so probing continues past it
+    protected static final Object TOMBSTONE = new Object();
+
+    protected static long hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    protected static int powerOfTwo(int value) {
+        return (value <= 1) ? 1 : Integer.highestOneBit(value - 1) << 1;
+    }
+
+    protected final Segment[] segments;
+    protected final int segmentShift;
+
+    @SuppressWarnings("unchecked")
+    protected LongConcurrentHashMap(int segments, int capacity) {
+        int n = powerOfTwo(segments);
+        this.segments = (Segment[]) new LongConcurrentHashMap.Segment[n];
+        this.segmentShift = 64 - Integer.numberOfTrailingZeros(n);
+        int segmentCapacity = Math.max(8, powerOfTwo(capacity / n));
+        for (int i=0; i<n; ++i) {
+            this.segments[i] = new Segment(segmentCapacity);
+        }
+    }
+
+    public V get(long key) {
+        long hash = hash(key);
+        return segment(hash).get(key, hash);
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    public V put(long key, V value) {
+        long hash = hash(key);
+        return segment(hash).put(key, hash, value, false);
+    }
+
+    public V putIfAbsent(long key, V value) {
+        long hash = hash(key);
+        return segment(hash).put(key, hash, value, true);
+    }
+
+    public V remove(long key) {
+        long hash = hash(key);
+        return segment(hash).remove(key, hash, null);
+    }
+
+    public boolean remove(long key, Object value) {
+        if (value == null) {
+            return false;
+        }
+        long hash = hash(key);
+        return segment(hash).remove(key, hash, value) != null;
+    }
+
+    public V replace(long key, V value) {
+        long hash = hash(key);
+        return segment(hash).replace(key, hash, null, value);
+    }
+
+    public boolean replace(long key, V oldValue, V newValue) {
+        if (oldValue == null) {
+            throw new NullPointerException();
+        }
+        long hash = hash(key);
+        return segment(hash).replace(key, hash, oldValue, newValue) != null;
+    }
+
+    @Override
+    public V get(Object key) {
+        return (key instanceof Long) ? get(((Long) key).longValue()) : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public V put(Long key, V value) {
+        return put(key.longValue(), value);
+    }
+
+    @Override
+    public V putIfAbsent(Long key, V value) {
+        return putIfAbsent(key.longValue(), value);
+    }
+
+    @Override
+    public V remove(Object key) {
+        return (key instanceof Long) ? remove(((Long) key).longValue()) : null;
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        return (key instanceof Long) && remove(((Long) key).longValue(), value);
+    }
+
+    @Override
+    public V replace(Long key, V value) {
+        return replace(key.longValue(), value);
+    }
+
+    @Override
+    public boolean replace(Long key, V oldValue, V newValue) {
+        return replace(key.longValue(), oldValue, newValue);
+    }
+
+    @Override
+    public int size() {
+        long size = 0L;
+        for (Segment segment: segments) {
+            size += segment.size;
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (Segment segment: segments) {
+            if (segment.size > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        for (Segment segment: segments) {
+            segment.clear();
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<Long, V>> entrySet() {
+        return new AbstractSet<Map.Entry<Long, V>>() {
+            @Override
+            public Iterator<Map.Entry<Long, V>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return LongConcurrentHashMap.this.size();
+            }
+        };
+    }
+
+    protected Segment segment(long hash) {
+        return segments[(int) (hash >>> segmentShift) & (segments.length - 1)];
+    }
+
+    /**
+     * Immutable, so a reader sees a key and its value together.
+     */
+    protected static final class Node {
+
+        protected final long key;
+        protected final Object value;
+
+        public Node(long key, Object value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    protected static final class Table {
+
+        // null for never used, TOMBSTONE for removed, otherwise a Node
+        protected final AtomicReferenceArray<Object> nodes;
+        protected final int mask;
+
+        public Table(int capacity) {
+            this.nodes = new AtomicReferenceArray<Object>(capacity);
+            this.mask = capacity - 1;
+        }
+
+        public int capacity() {
+            return nodes.length();
+        }
+    }
+
+    protected final class Segment {
+
+        protected volatile Table table;
+        protected volatile int size;
+        // guarded by this
+        protected int used;
+
+        public Segment(int capacity) {
+            this.table = new Table(capacity);
+            this.size = 0;
+            this.used = 0;
+        }
+
+        @SuppressWarnings("unchecked")
+        public V get(long key, long hash) {
+            Table table = this.table;
+            int i = (int) hash & table.mask;
+            while (true) {
+                Object node = table.nodes.get(i);
+                if (node == null) {
+                    return null;
+                }
+                if ((node != TOMBSTONE) && (((Node) node).key == key)) {
+                    return (V) ((Node) node).value;
+                }
+                i = (i + 1) & table.mask;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        public synchronized V put(long key, long hash, V value, boolean onlyIfAbsent) {
+            if (value == null) {
+                throw new NullPointerException();
+            }
+            Table table = this.table;
+            int i = (int) hash & table.mask;
+            int free = -1;
+            while (true) {
+                Object prev = table.nodes.get(i);
+                if (prev == null) {
+                    break;
+                }
+                if (prev == TOMBSTONE) {
+                    if (free < 0) {
+                        free = i;
+                    }
+                } else if (((Node) prev).key == key) {
+                    if (!onlyIfAbsent) {
+                        table.nodes.set(i, new Node(key, value));
+                    }
+                    return (V) ((Node) prev).value;
+                }
+                i = (i + 1) & table.mask;
+            }
+            if (free >= 0) {
+                table.nodes.set(free, new Node(key, value));
+            } else {
+                table.nodes.set(i, new Node(key, value));
+                used++;
+            }
+            size = size + 1;
+            if (used * 4 >= table.capacity() * 3) {
+                resize();
+            }
+            return null;
+        }
+
+        /**
+         * @param expected null to remove any value
+         */
+        @SuppressWarnings("unchecked")
+        public synchronized V remove(long key, long hash, Object expected) {
+            Table table = this.table;
+            int i = (int) hash & table.mask;
+            while (true) {
+                Object node = table.nodes.get(i);
+                if (node == null) {
+                    return null;
+                }
+                if ((node != TOMBSTONE) && (((Node) node).key == key)) {
+                    Object value = ((Node) node).value;
+                    if ((expected != null) && !expected.equals(value)) {
+                        return null;
+                    }
+                    table.nodes.set(i, TOMBSTONE);
+                    size = size - 1;
+                    return (V) value;
+                }
+                i = (i + 1) & table.mask;
+            }
+        }
+
+        /**
+         * @param expected null to replace any value
+         */
+        @SuppressWarnings("unchecked")
+        public synchronized V replace(long key, long hash, Object expected, V value) {
+            if (value == null) {
+                throw new NullPointerException();
+            }
+            Table table = this.table;
+            int i = (int) hash & table.mask;
+            while (true) {
+                Object node = table.nodes.get(i);
+                if (node == null) {
+                    return null;
+                }
+                if ((node != TOMBSTONE) && (((Node) node).key == key)) {
+                    Object prev = ((Node) node).value;
+                    if ((expected != null) && !expected.equals(prev)) {
+                        return null;
+                    }
+                    table.nodes.set(i, new Node(key, value));
+                    return (V) prev;
+                }
+                i = (i + 1) & table.mask;
+            }
+        }
+
+        public synchronized void clear() {
+            table = new Table(table.capacity());
+            size = 0;
+            used = 0;
+        }
+
+        /**
+         * Copies live entries into a new table, dropping tombstones.
+         * Readers of the old table still see a consistent view.
+         */
+        protected void resize() {
+            Table old = this.table;
+            int capacity = old.capacity();
+            if (size * 2 >= capacity) {
+                capacity <<= 1;
+            }
+            Table table = new Table(capacity);
+            for (int i=0; i<old.capacity(); ++i) {
+                Object node = old.nodes.get(i);
+                if ((node != null) && (node != TOMBSTONE)) {
+                    int j = (int) hash(((Node) node).key) & table.mask;
+                    while (table.nodes.get(j) != null) {
+                        j = (j + 1) & table.mask;
+                    }
+                    table.nodes.lazySet(j, node);
+                }
+            }
+            used = size;
+            this.table = table;
+        }
+    }
+
+    protected final class EntryIterator implements Iterator<Map.Entry<Long, V>> {
+
+        protected int segment;
+        protected Table table;
+        protected int index;
+        protected Map.Entry<Long, V> next;
+        protected Map.Entry<Long, V> last;
+
+        public EntryIterator() {
+            this.segment = 0;
+            this.table = segments[0].table;
+            this.index = 0;
+            this.next = null;
+            this.last = null;
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<Long, V> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            last = next;
+            advance();
+            return last;
+        }
+
+        @Override
+        public void remove() {
+            if (last == null) {
+                throw new IllegalStateException();
+            }
+            LongConcurrentHashMap.this.remove(last.getKey().longValue(), last.getValue());
+            last = null;
+        }
+
+        @SuppressWarnings("unchecked")
+        protected void advance() {
+            next = null;
+            while (true) {
+                while (index < table.capacity()) {
+                    int i = index++;
+                    Object node = table.nodes.get(i);
+                    if ((node != null) && (node != TOMBSTONE)) {
+                        next = new AbstractMap.SimpleImmutableEntry<Long, V>(Long.valueOf(((Node) node).key), (V) ((Node) node).value);
+                        return;
+                    }
+                }
+                if (++segment >= segments.length) {
+                    return;
+                }
+                table = segments[segment].table;
+                index = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package edu.uw.zookeeper.proxy;
+
+import java.net.SocketAddress;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import edu.uw.zookeeper.protocol.Message;
+import edu.uw.zookeeper.protocol.ProtocolResponseMessage;
+import edu.uw.zookeeper.protocol.ProtocolState;
+import edu.uw.zookeeper.protocol.Session;
+import edu.uw.zookeeper.protocol.client.MessageClientExecutor;
+import edu.uw.zookeeper.protocol.proto.ICreateRequest;
+import edu.uw.zookeeper.protocol.proto.IDisconnectResponse;
+import edu.uw.zookeeper.protocol.proto.IMultiRequest;
+import edu.uw.zookeeper.protocol.proto.OpCode;
+import edu.uw.zookeeper.protocol.proto.Records;
+
+/**
+ * Frontend session backed by a shared backend session.
+ *
+ * Anything the backend ties to its session would be shared by every frontend session of the member:
+ * credentials would apply to all of them, and ephemeral nodes would outlive the session that created them.
+ * So authentication and ephemeral creates are rejected with UNIMPLEMENTED.
+ */
+public class MultiplexedSessionExecutor extends ProxySessionExecutor {
+
+    public static MultiplexedSessionExecutor newInstance(
+            Session session,
+            MultiplexingClientPool.Member member,
+            MessageClientExecutor<?> client,
+            ProxyFeatures features) {
+        // cache entries are owned by backend sessions, which are shared here
+        return new MultiplexedSessionExecutor(session, member, client, features.setCache(null));
+    }
+
+    protected final Session frontend;
+    protected final MultiplexingClientPool.Member member;
+
+    public MultiplexedSessionExecutor(
+            Session session,
+            MultiplexingClientPool.Member member,
+            MessageClientExecutor<?> client,
+            ProxyFeatures features) {
+        super(client, features);
+        this.frontend = session;
+        this.member = member;
+    }
+
+    @Override
+    public Session session() {
+        return frontend;
+    }
+
+    @Override
+    public ListenableFuture<Session> connected() {
+        return Futures.immediateFuture(frontend);
+    }
+
+    @Override
+    public ListenableFuture<Message.ServerResponse<?>> submit(Message.ClientRequest<?> request) {
+        if (request.record().opcode() == OpCode.CLOSE_SESSION) {
+            // the backend session is shared, so only the frontend session goes away
+            member.unregister(this);
+            Message.ServerResponse<?> response = ProtocolResponseMessage.of(
+                    request.xid(), member.lastZxid(), new IDisconnectResponse());
+            return Futures.<Message.ServerResponse<?>>immediateFuture(response);
+        }
+        return super.submit(request);
+    }
+
+    @Override
+    protected KeeperException.Code unsupported(Records.Request record) {
+        if ((record.opcode() == OpCode.AUTH) || isEphemeral(record)) {
+            return KeeperException.Code.UNIMPLEMENTED;
+        }
+        return null;
+    }
+
+    /**
+     * Including creates within a multi.
+     */
+    protected static boolean isEphemeral(Records.Request record) {
+        if (record instanceof ICreateRequest) {
+            return isEphemeral((ICreateRequest) record);
+        } else if (record instanceof IMultiRequest) {
+            for (Records.MultiOpRequest op: (IMultiRequest) record) {
+                if ((op instanceof ICreateRequest) && isEphemeral((ICreateRequest) op)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    protected static boolean isEphemeral(ICreateRequest record) {
+        // set for both EPHEMERAL and EPHEMERAL_SEQUENTIAL
+        return (record.getFlags() & CreateMode.EPHEMERAL.toFlag()) != 0;
+    }
+
+    @Override
+    protected ListenableFuture<Message.ServerResponse<?>> forward(Message.ClientRequest<?> request) {
+        return member.submit(this, request);
+    }
+
+    /**
+     * The member's current backend, which replaces the one this session connected through if that was lost.
+     */
+    @Override
+    protected SocketAddress server() {
+        MessageClientExecutor<?> backend = member.current();
+        return ((backend != null) ? backend : client).connection().remoteAddress();
+    }
+
+    @Override
+    public ProtocolState state() {
+        MessageClientExecutor<?> backend = member.current();
+        return ((backend != null) ? backend : client).connection().codec().state();
+    }
+
+    /**
+     * Only the frontend session goes away, the shared backend session stays.
+     */
+    @Override
+    public void expire() {
+        member.unregister(this);
+    }
+}
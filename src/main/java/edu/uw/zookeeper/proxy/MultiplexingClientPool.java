@@ -0,0 +1,382 @@
+package edu.uw.zookeeper.proxy;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Watcher;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import edu.uw.zookeeper.common.Automaton;
+import edu.uw.zookeeper.common.DefaultsFactory;
+import edu.uw.zookeeper.protocol.ConnectMessage;
+import edu.uw.zookeeper.protocol.Message;
+import edu.uw.zookeeper.protocol.Operation;
+import edu.uw.zookeeper.protocol.ProtocolRequestMessage;
+import edu.uw.zookeeper.protocol.ProtocolResponseMessage;
+import edu.uw.zookeeper.protocol.ProtocolState;
+import edu.uw.zookeeper.protocol.SessionListener;
+import edu.uw.zookeeper.protocol.client.MessageClientExecutor;
+import edu.uw.zookeeper.protocol.proto.IWatcherEvent;
+import edu.uw.zookeeper.protocol.proto.OpCode;
+import edu.uw.zookeeper.protocol.proto.Records;
+
+/**
+ * Fixed-size pool of backend sessions shared by many frontend sessions.
+ *
+ * Frontend xids are rewritten to backend-unique xids on the way out and restored on the way back.
+ * Watches are tracked per frontend session so that backend notifications are only delivered
+ * to the sessions that registered them.
+ */
+public class MultiplexingClientPool {
+
+    // delay before replacing a backend session that could not be established
+    public static final long RETRY_MILLIS = 1000L;
+
+    public static MultiplexingClientPool newInstance(
+            int size,
+            DefaultsFactory<ConnectMessage.Request, ? extends ListenableFuture<? extends MessageClientExecutor<?>>> clientFactory,
+            ScheduledExecutorService scheduler) {
+        ImmutableList.Builder<Member> members = ImmutableList.builder();
+        for (int i=0; i<size; ++i) {
+            Member member = new Member(clientFactory, scheduler);
+            member.connect();
+            members.add(member);
+        }
+        return new MultiplexingClientPool(members.build());
+    }
+
+    public static enum WatchType {
+        DATA, CHILD;
+
+        public static WatchType forRequest(OpCode opcode) {
+            switch (opcode) {
+            case EXISTS:
+            case GET_DATA:
+                return DATA;
+            case GET_CHILDREN:
+            case GET_CHILDREN2:
+                return CHILD;
+            default:
+                return null;
+            }
+        }
+    }
+
+    protected final Logger logger;
+    protected final ImmutableList<Member> members;
+
+    protected MultiplexingClientPool(
+            ImmutableList<Member> members) {
+        this.logger = LogManager.getLogger(this);
+        this.members = members;
+    }
+
+    public List<Member> members() {
+        return members;
+    }
+
+    public Member get(long sessionId) {
+        int index = (int) ((sessionId & Long.MAX_VALUE) % members.size());
+        return members.get(index);
+    }
+
+    /**
+     * One shared backend session, replaced whenever it is lost or cannot be established,
+     * so the frontend sessions hashed to this member keep working.
+     * Backend watches do not survive a replacement.
+     */
+    public static class Member implements SessionListener {
+
+        protected final Logger logger;
+        protected final DefaultsFactory<ConnectMessage.Request, ? extends ListenableFuture<? extends MessageClientExecutor<?>>> clientFactory;
+        protected final ScheduledExecutorService scheduler;
+        // replaced by connect
+        protected volatile ListenableFuture<? extends MessageClientExecutor<?>> client;
+        // xid assignment and submission must be atomic to keep backend order equal to xid order
+        protected final Object lock;
+        protected int nextXid;
+        protected final AtomicLong lastZxid;
+        protected final ConcurrentMap<Long, MultiplexedSessionExecutor> sessions;
+        protected final ConcurrentMap<String, Set<MultiplexedSessionExecutor>> dataWatches;
+        protected final ConcurrentMap<String, Set<MultiplexedSessionExecutor>> childWatches;
+
+        public Member(
+                DefaultsFactory<ConnectMessage.Request, ? extends ListenableFuture<? extends MessageClientExecutor<?>>> clientFactory,
+                ScheduledExecutorService scheduler) {
+            this.logger = LogManager.getLogger(this);
+            this.clientFactory = clientFactory;
+            this.scheduler = scheduler;
+            this.client = null;
+            this.lock = new Object();
+            this.nextXid = 1;
+            this.lastZxid = new AtomicLong(0L);
+            this.sessions = new MapMaker().makeMap();
+            this.dataWatches = new MapMaker().makeMap();
+            this.childWatches = new MapMaker().makeMap();
+        }
+
+        /**
+         * @return the current backend session, which may still be connecting
+         */
+        public ListenableFuture<? extends MessageClientExecutor<?>> client() {
+            return client;
+        }
+
+        /**
+         * @return null if the current backend session is not established
+         */
+        public MessageClientExecutor<?> current() {
+            ListenableFuture<? extends MessageClientExecutor<?>> client = this.client;
+            if ((client == null) || !client.isDone()) {
+                return null;
+            }
+            try {
+                return Futures.getUnchecked(client);
+            } catch (RuntimeException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Starts a new backend session.
+         */
+        public synchronized void connect() {
+            final ListenableFuture<? extends MessageClientExecutor<?>> client = clientFactory.get();
+            this.client = client;
+            Futures.addCallback(client, new FutureCallback<MessageClientExecutor<?>>() {
+                @Override
+                public void onSuccess(MessageClientExecutor<?> result) {
+                    result.subscribe(new BackendListener(client));
+                    Futures.addCallback(result.session(), new FutureCallback<ConnectMessage.Response>() {
+                        @Override
+                        public void onSuccess(ConnectMessage.Response response) {
+                            if (!(response instanceof ConnectMessage.Response.Valid)) {
+                                replace(client, RETRY_MILLIS);
+                            }
+                        }
+                        @Override
+                        public void onFailure(Throwable t) {
+                            logger.warn("Backend session handshake failed", t);
+                            replace(client, RETRY_MILLIS);
+                        }
+                    });
+                }
+                @Override
+                public void onFailure(Throwable t) {
+                    logger.warn("Backend connect failed", t);
+                    replace(client, RETRY_MILLIS);
+                }
+            });
+        }
+
+        /**
+         * Replaces the backend session after a delay, unless it was already replaced.
+         */
+        protected void replace(
+                final ListenableFuture<? extends MessageClientExecutor<?>> lost,
+                long delayMillis) {
+            synchronized (this) {
+                if (client != lost) {
+                    return;
+                }
+                // watches of the lost backend session will never fire
+                dataWatches.clear();
+                childWatches.clear();
+            }
+            Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (Member.this) {
+                        if (client != lost) {
+                            return;
+                        }
+                        logger.info("Replacing backend session of {} frontend sessions", sessions.size());
+                        connect();
+                    }
+                }
+            };
+            if (delayMillis > 0L) {
+                scheduler.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+            } else {
+                task.run();
+            }
+        }
+
+        public long lastZxid() {
+            return lastZxid.get();
+        }
+
+        public void register(MultiplexedSessionExecutor session) {
+            sessions.put(Long.valueOf(session.session().id()), session);
+        }
+
+        public void unregister(MultiplexedSessionExecutor session) {
+            sessions.remove(Long.valueOf(session.session().id()), session);
+            for (Map<String, Set<MultiplexedSessionExecutor>> watches: ImmutableList.of(dataWatches, childWatches)) {
+                for (Set<MultiplexedSessionExecutor> watchers: watches.values()) {
+                    watchers.remove(session);
+                }
+            }
+        }
+
+        /**
+         * Fails with connection loss while the backend session is being replaced.
+         */
+        public ListenableFuture<Message.ServerResponse<?>> submit(
+                MultiplexedSessionExecutor session,
+                Message.ClientRequest<?> request) {
+            MessageClientExecutor<?> backend = current();
+            if (backend == null) {
+                return Futures.immediateFailedFuture(new KeeperException.ConnectionLossException());
+            }
+            ListenableFuture<Message.ServerResponse<?>> future;
+            synchronized (lock) {
+                int xid = nextXid;
+                // xids must stay positive, negative values are reserved
+                nextXid = (xid == Integer.MAX_VALUE) ? 1 : xid + 1;
+                future = backend.submit(ProtocolRequestMessage.of(xid, request.record()));
+            }
+            return Futures.transform(future, new ResponseTask(session, request));
+        }
+
+        @Override
+        public void handleAutomatonTransition(Automaton.Transition<ProtocolState> transition) {
+            for (MultiplexedSessionExecutor session: sessions.values()) {
+                session.handleAutomatonTransition(transition);
+            }
+        }
+
+        @Override
+        public void handleNotification(
+                Operation.ProtocolResponse<IWatcherEvent> notification) {
+            IWatcherEvent event = notification.record();
+            Set<MultiplexedSessionExecutor> watchers = Sets.newHashSet();
+            String path = event.getPath();
+            Watcher.Event.EventType type = Watcher.Event.EventType.fromInt(event.getType());
+            switch (type) {
+            case NodeCreated:
+            case NodeDataChanged:
+                drain(dataWatches, path, watchers);
+                break;
+            case NodeChildrenChanged:
+                drain(childWatches, path, watchers);
+                break;
+            case NodeDeleted:
+                drain(dataWatches, path, watchers);
+                drain(childWatches, path, watchers);
+                break;
+            default:
+                // connection state events go to everyone
+                watchers.addAll(sessions.values());
+                break;
+            }
+            for (MultiplexedSessionExecutor session: watchers) {
+                session.handleNotification(notification);
+            }
+        }
+
+        protected void watch(WatchType type, String path, MultiplexedSessionExecutor session) {
+            ConcurrentMap<String, Set<MultiplexedSessionExecutor>> watches = (type == WatchType.DATA) ? dataWatches : childWatches;
+            Set<MultiplexedSessionExecutor> watchers = watches.get(path);
+            if (watchers == null) {
+                watchers = Sets.newSetFromMap(new MapMaker().<MultiplexedSessionExecutor, Boolean>makeMap());
+                Set<MultiplexedSessionExecutor> prev = watches.putIfAbsent(path, watchers);
+                if (prev != null) {
+                    watchers = prev;
+                }
+            }
+            watchers.add(session);
+        }
+
+        protected void drain(
+                ConcurrentMap<String, Set<MultiplexedSessionExecutor>> watches,
+                String path,
+                Set<MultiplexedSessionExecutor> output) {
+            // watches are one-shot
+            Set<MultiplexedSessionExecutor> watchers = watches.remove(path);
+            if (watchers != null) {
+                output.addAll(watchers);
+            }
+        }
+
+        /**
+         * Ignores a replaced backend session, and replaces the current one when it is lost.
+         */
+        protected class BackendListener implements SessionListener {
+
+            protected final ListenableFuture<? extends MessageClientExecutor<?>> backend;
+
+            public BackendListener(
+                    ListenableFuture<? extends MessageClientExecutor<?>> backend) {
+                this.backend = backend;
+            }
+
+            @Override
+            public void handleAutomatonTransition(Automaton.Transition<ProtocolState> transition) {
+                if (client != backend) {
+                    return;
+                }
+                Member.this.handleAutomatonTransition(transition);
+                if (transition.from() == ProtocolState.CONNECTED) {
+                    replace(backend, 0L);
+                }
+            }
+
+            @Override
+            public void handleNotification(
+                    Operation.ProtocolResponse<IWatcherEvent> notification) {
+                if (client == backend) {
+                    Member.this.handleNotification(notification);
+                }
+            }
+        }
+
+        protected class ResponseTask implements Function<Message.ServerResponse<?>, Message.ServerResponse<?>> {
+
+            protected final MultiplexedSessionExecutor session;
+            protected final Message.ClientRequest<?> request;
+
+            public ResponseTask(
+                    MultiplexedSessionExecutor session,
+                    Message.ClientRequest<?> request) {
+                this.session = session;
+                this.request = request;
+            }
+
+            @Override
+            public Message.ServerResponse<?> apply(Message.ServerResponse<?> input) {
+                long zxid = input.zxid();
+                long prev = lastZxid.get();
+                while (zxid > prev && !lastZxid.compareAndSet(prev, zxid)) {
+                    prev = lastZxid.get();
+                }
+                Records.Request record = request.record();
+                if ((record instanceof Records.WatchGetter)
+                        && ((Records.WatchGetter) record).getWatch()
+                        && (!(input.record() instanceof Operation.Error) 
+                                || (record.opcode() == OpCode.EXISTS))) {
+                    WatchType type = WatchType.forRequest(record.opcode());
+                    if (type != null) {
+                        watch(type, ((Records.PathGetter) record).getPath(), session);
+                    }
+                }
+                return ProtocolResponseMessage.of(request.xid(), zxid, input.record());
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package edu.uw.zookeeper.proxy;
+
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import edu.uw.zookeeper.common.TaskExecutor;
+import edu.uw.zookeeper.protocol.ConnectMessage;
+import edu.uw.zookeeper.protocol.Session;
+import edu.uw.zookeeper.protocol.client.MessageClientExecutor;
+
+public class MultiplexingConnectExecutor implements TaskExecutor<ConnectMessage.Request, ConnectMessage.Response> {
+
+    public static final int PASSWORD_BYTES = 16;
+
+    public static MultiplexingConnectExecutor create(
+            LongConcurrentHashMap<ProxySessionExecutor> sessions,
+            MultiplexingClientPool pool,
+            ProxyFeatures features) {
+        return new MultiplexingConnectExecutor(
+                sessions,
+                pool,
+                features,
+                new AtomicLong((System.currentTimeMillis() << 24) >>> 8),
+                new SecureRandom());
+    }
+
+    protected final Logger logger;
+    protected final LongConcurrentHashMap<ProxySessionExecutor> executors;
+    protected final MultiplexingClientPool pool;
+    protected final ProxyFeatures features;
+    protected final AtomicLong nextSessionId;
+    // session ids are sequential, so only the password keeps a client from renewing another's session
+    protected final Random passwords;
+
+    public MultiplexingConnectExecutor(
+            LongConcurrentHashMap<ProxySessionExecutor> executors,
+            MultiplexingClientPool pool,
+            ProxyFeatures features,
+            AtomicLong nextSessionId,
+            Random passwords) {
+        this.logger = LogManager.getLogger(this);
+        this.executors = executors;
+        this.pool = pool;
+        this.features = features;
+        this.nextSessionId = nextSessionId;
+        this.passwords = passwords;
+    }
+
+    @Override
+    public ListenableFuture<ConnectMessage.Response> submit(ConnectMessage.Request request) {
+        if (request instanceof ConnectMessage.Request.RenewRequest) {
+            ConnectMessage.Response response = ProxyConnectExecutor.renew(executors, request);
+            if (response != null) {
+                return Futures.immediateFuture(response);
+            }
+        }
+        long sessionId = nextSessionId.incrementAndGet();
+        MultiplexingClientPool.Member member = pool.get(sessionId);
+        return new ConnectTask(sessionId, member, request);
+    }
+
+    /**
+     * Waits for the shared backend client and then its session handshake,
+     * listening to both steps with one object that is also the returned future.
+     */
+    protected class ConnectTask extends AbstractFuture<ConnectMessage.Response> implements Runnable {
+
+        protected final long sessionId;
+        protected final MultiplexingClientPool.Member member;
+        protected final ConnectMessage.Request request;
+        // the member's backend session when we started, which the member may replace
+        protected final ListenableFuture<? extends MessageClientExecutor<?>> future;
+        // null until the backend client is ready
+        protected volatile MessageClientExecutor<?> client;
+
+        public ConnectTask(
+                long sessionId,
+                MultiplexingClientPool.Member member,
+                ConnectMessage.Request request) {
+            this.sessionId = sessionId;
+            this.member = member;
+            this.request = request;
+            this.future = member.client();
+            this.client = null;
+            future.addListener(this, ProxyConnectExecutor.SAME_THREAD);
+        }
+
+        @Override
+        public void run() {
+            try {
+                MessageClientExecutor<?> client = this.client;
+                if (client == null) {
+                    client = Uninterruptibles.getUninterruptibly(future);
+                    this.client = client;
+                    client.session().addListener(this, ProxyConnectExecutor.SAME_THREAD);
+                } else {
+                    set(connected(client, Uninterruptibles.getUninterruptibly(client.session())));
+                }
+            } catch (ExecutionException e) {
+                setException(e.getCause());
+            } catch (Throwable t) {
+                setException(t);
+            }
+        }
+
+        protected ConnectMessage.Response connected(
+                MessageClientExecutor<?> client,
+                ConnectMessage.Response input) {
+            logger.entry(input);
+            if (!(input instanceof ConnectMessage.Response.Valid)) {
+                return logger.exit(input);
+            }
+            // the frontend session has its own password, and the timeout its client asked for
+            byte[] password = new byte[PASSWORD_BYTES];
+            passwords.nextBytes(password);
+            int timeOut = (request.getTimeOut() > 0) ? request.getTimeOut() : input.getTimeOut();
+            Session session = Session.create(sessionId, Session.Parameters.create(timeOut, password));
+            MultiplexedSessionExecutor executor = MultiplexedSessionExecutor.newInstance(session, member, client, features);
+            member.register(executor);
+            executors.put(sessionId, executor);
+            return logger.exit(ConnectMessage.Response.Valid.newInstance(session, request.getReadOnly(), request.legacy()));
+        }
+    }
+}
@@ -3,9 +3,28 @@ package edu.uw.zookeeper.proxy;
 import java.net.SocketAddress;
 import java.util.concurrent.ThreadFactory;
 
+import org.apache.logging.log4j.LogManager;
+
+import com.google.common.base.Function;
+import com.typesafe.config.ConfigValueType;
+
 import io.netty.bootstrap.Bootstrap;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.EventExecutor;
+import edu.uw.zookeeper.common.Configurable;
+import edu.uw.zookeeper.common.Configuration;
 import edu.uw.zookeeper.common.Factory;
 import edu.uw.zookeeper.common.ParameterizedFactory;
 import edu.uw.zookeeper.common.Reference;
@@ -14,7 +33,6 @@ import edu.uw.zookeeper.netty.DaemonThreadFactory;
 import edu.uw.zookeeper.netty.EventLoopGroupService;
 import edu.uw.zookeeper.netty.client.NettyClientModule;
 import edu.uw.zookeeper.netty.client.NioClientBootstrapFactory;
-import edu.uw.zookeeper.netty.NioEventLoopGroupFactory;
 import edu.uw.zookeeper.netty.server.NioServerBootstrapFactory;
 import edu.uw.zookeeper.netty.server.NettyServerModule;
 
@@ -23,39 +41,266 @@ public class NettyModule {
     public static NettyModule newInstance(RuntimeModule runtime) {
         return new NettyModule(runtime);
     }
-    
-    public static enum EventLoopGroupFactory implements ParameterizedFactory<RuntimeModule, Reference<? extends EventLoopGroup>> {
-        INSTANCE;
-        
+
+    public static enum Transport {
+        NIO, EPOLL;
+
+        public Class<? extends Channel> socketChannel() {
+            switch (this) {
+            case EPOLL:
+                return EpollSocketChannel.class;
+            default:
+                return NioSocketChannel.class;
+            }
+        }
+
+        public static Transport fromConfiguration(Configuration configuration) {
+            Transport transport = valueOf(TransportConfiguration.get(configuration).toUpperCase());
+            if ((transport == EPOLL) && !Epoll.isAvailable()) {
+                LogManager.getLogger(Transport.class).warn("epoll unavailable, falling back to nio", Epoll.unavailabilityCause());
+                transport = NIO;
+            }
+            return transport;
+        }
+    }
+
+    @Configurable(path="net", arg="transport", key="transport", value="nio", help="nio|epoll")
+    public static class TransportConfiguration implements Function<Configuration, String> {
+
+        public static String get(Configuration configuration) {
+            return new TransportConfiguration().apply(configuration);
+        }
+
+        @Override
+        public String apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getString(configurable.key());
+        }
+    }
+
+    @Configurable(path="net", arg="affinity", key="affinity", value="false", type=ConfigValueType.BOOLEAN, help="open each backend connection on the event loop of its client connection")
+    public static class AffinityConfiguration implements Function<Configuration, Boolean> {
+
+        public static Boolean get(Configuration configuration) {
+            return new AffinityConfiguration().apply(configuration);
+        }
+
         @Override
-        public Reference<? extends EventLoopGroup> get(RuntimeModule main) {
+        public Boolean apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getBoolean(configurable.key());
+        }
+    }
+
+    @Configurable(path="net", arg="serverThreads", key="serverThreads", value="0", type=ConfigValueType.NUMBER, help="frontend event loop threads (0 for default)")
+    public static class ServerThreadsConfiguration implements Function<Configuration, Integer> {
+
+        public static Integer get(Configuration configuration) {
+            return new ServerThreadsConfiguration().apply(configuration);
+        }
+
+        @Override
+        public Integer apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getInt(configurable.key());
+        }
+    }
+
+    @Configurable(path="net", arg="clientThreads", key="clientThreads", value="0", type=ConfigValueType.NUMBER, help="backend event loop threads (0 for default)")
+    public static class ClientThreadsConfiguration implements Function<Configuration, Integer> {
+
+        public static Integer get(Configuration configuration) {
+            return new ClientThreadsConfiguration().apply(configuration);
+        }
+
+        @Override
+        public Integer apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getInt(configurable.key());
+        }
+    }
+
+    public static class EventLoopGroupFactory implements ParameterizedFactory<ThreadFactory, EventLoopGroup> {
+
+        public static Reference<? extends EventLoopGroup> get(RuntimeModule main, Transport transport, int nThreads) {
             ThreadFactory threads = DaemonThreadFactory.getInstance().get(main.getThreadFactory().get());
             return EventLoopGroupService.factory(
-                    NioEventLoopGroupFactory.DEFAULT,
+                    new EventLoopGroupFactory(transport, nThreads),
                     main.getServiceMonitor()).get(threads);
         }
+
+        protected final Transport transport;
+        protected final int nThreads;
+
+        public EventLoopGroupFactory(Transport transport, int nThreads) {
+            this.transport = transport;
+            this.nThreads = nThreads;
+        }
+
+        @Override
+        public EventLoopGroup get(ThreadFactory threads) {
+            switch (transport) {
+            case EPOLL:
+                return new EpollEventLoopGroup(nThreads, threads);
+            default:
+                return new NioEventLoopGroup(nThreads, threads);
+            }
+        }
+    }
+
+    /**
+     * With an affinity group, a connection made from one of its event loops
+     * is registered on that same event loop.
+     */
+    public static class ClientBootstrapFactory implements Factory<Bootstrap> {
+
+        public static ClientBootstrapFactory newInstance(
+                Transport transport,
+                Reference<? extends EventLoopGroup> group,
+                Reference<? extends EventLoopGroup> affinity) {
+            return new ClientBootstrapFactory(transport, group, affinity);
+        }
+
+        public static EventLoop currentEventLoop(EventLoopGroup group) {
+            for (EventExecutor executor: group) {
+                if (executor.inEventLoop()) {
+                    return (EventLoop) executor;
+                }
+            }
+            return null;
+        }
+
+        protected final Transport transport;
+        protected final Reference<? extends EventLoopGroup> group;
+        protected final Reference<? extends EventLoopGroup> affinity;
+
+        public ClientBootstrapFactory(
+                Transport transport,
+                Reference<? extends EventLoopGroup> group,
+                Reference<? extends EventLoopGroup> affinity) {
+            this.transport = transport;
+            this.group = group;
+            this.affinity = affinity;
+        }
+
+        @Override
+        public Bootstrap get() {
+            EventLoopGroup group = null;
+            if (affinity != null) {
+                group = currentEventLoop(affinity.get());
+            }
+            if (group == null) {
+                group = this.group.get();
+            }
+            Bootstrap bootstrap = new Bootstrap()
+                .group(group)
+                .channel(transport.socketChannel())
+                .option(ChannelOption.TCP_NODELAY, Boolean.TRUE);
+            if (transport == Transport.EPOLL) {
+                bootstrap.option(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED);
+            }
+            return bootstrap;
+        }
+    }
+
+    public static class EpollServerBootstrapFactory implements Factory<ServerBootstrap> {
+
+        public static EpollServerBootstrapFactory newInstance(Reference<? extends EventLoopGroup> group) {
+            return new EpollServerBootstrapFactory(group);
+        }
+
+        protected final Reference<? extends EventLoopGroup> group;
+
+        public EpollServerBootstrapFactory(Reference<? extends EventLoopGroup> group) {
+            this.group = group;
+        }
+
+        @Override
+        public ServerBootstrap get() {
+            return new ServerBootstrap()
+                .group(group.get())
+                .channel(EpollServerSocketChannel.class)
+                .option(EpollChannelOption.SO_REUSEPORT, Boolean.TRUE)
+                .option(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED)
+                .childOption(ChannelOption.TCP_NODELAY, Boolean.TRUE)
+                .childOption(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED);
+        }
     }
 
-    protected final Reference<? extends EventLoopGroup> groupFactory;
+    protected final Transport transport;
+    protected final Reference<? extends EventLoopGroup> serverGroup;
+    protected final Reference<? extends EventLoopGroup> clientGroup;
+    protected final Factory<ServerBootstrap> serverBootstrapFactory;
+    protected final Factory<Bootstrap> clientBootstrapFactory;
+    protected final ReadThrottle throttle;
     protected final NettyClientModule nettyClient;
-    protected final NettyServerModule nettyServer;    
-    
+    protected final NettyServerModule nettyServer;
+
     public NettyModule(RuntimeModule runtime) {
-        // shared eventloopgroup
-        this.groupFactory = EventLoopGroupFactory.INSTANCE.get(runtime);
-        
+        Configuration configuration = runtime.getConfiguration();
+        this.transport = Transport.fromConfiguration(configuration);
+
+        // separate eventloopgroups so that neither side can starve the other
+        this.serverGroup = EventLoopGroupFactory.get(runtime, transport, ServerThreadsConfiguration.get(configuration));
+        this.clientGroup = EventLoopGroupFactory.get(runtime, transport, ClientThreadsConfiguration.get(configuration));
+
         // client
-        final Factory<Bootstrap> bootstrapFactory = 
-                NioClientBootstrapFactory.newInstance(groupFactory);        
-        this.nettyClient = 
+        // with affinity, a backend connection opened while handling a client connect
+        // shares the client's event loop, so a proxied request never changes threads
+        final Factory<Bootstrap> bootstrapFactory;
+        Reference<? extends EventLoopGroup> affinity = AffinityConfiguration.get(configuration) ? serverGroup : null;
+        switch (transport) {
+        case EPOLL:
+            bootstrapFactory = ClientBootstrapFactory.newInstance(transport, clientGroup, affinity);
+            this.serverBootstrapFactory = EpollServerBootstrapFactory.newInstance(serverGroup);
+            break;
+        default:
+            bootstrapFactory = (affinity == null) 
+                    ? NioClientBootstrapFactory.newInstance(clientGroup) 
+                    : ClientBootstrapFactory.newInstance(transport, clientGroup, affinity);
+            this.serverBootstrapFactory = NioServerBootstrapFactory.newInstance(serverGroup);
+            break;
+        }
+        this.clientBootstrapFactory = bootstrapFactory;
+        this.nettyClient =
                 NettyClientModule.newInstance(bootstrapFactory);
 
         // server
-        final ParameterizedFactory<SocketAddress, ServerBootstrap> serverBootstrapFactory = 
-                NioServerBootstrapFactory.ParameterizedDecorator.newInstance(
-                        NioServerBootstrapFactory.newInstance(groupFactory));
-        this.nettyServer = 
-                NettyServerModule.newInstance(serverBootstrapFactory);
+        this.throttle = ReadThrottle.fromConfiguration(configuration);
+        final ParameterizedFactory<SocketAddress, ServerBootstrap> parameterizedServerBootstrapFactory =
+                NioServerBootstrapFactory.ParameterizedDecorator.newInstance(throttle.decorate(serverBootstrapFactory));
+        this.nettyServer =
+                NettyServerModule.newInstance(parameterizedServerBootstrapFactory);
+    }
+
+    public Transport transport() {
+        return transport;
+    }
+
+    public Factory<ServerBootstrap> serverBootstraps() {
+        return serverBootstrapFactory;
+    }
+
+    /**
+     * Bootstraps of the backend connections made by {@link #clients()}.
+     */
+    public Factory<Bootstrap> clientBootstraps() {
+        return clientBootstrapFactory;
+    }
+
+    /**
+     * Pauses reads on connections accepted by {@link #servers()}.
+     */
+    public ReadThrottle throttle() {
+        return throttle;
     }
 
     public NettyClientModule clients() {
@@ -0,0 +1,257 @@
+package edu.uw.zookeeper.proxy;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.AbstractIdleService;
+
+import edu.uw.zookeeper.common.Configurable;
+import edu.uw.zookeeper.common.Configuration;
+
+/**
+ * Relays ZooKeeper frames between a client connection and its own backend connection
+ * without decoding them.
+ *
+ * Frames are retained slices of the inbound buffers and are written
+ * to the peer channel as they are, so no payload is copied or materialized.
+ * Only the frame header is read.
+ *
+ * Backend connections are made like those of the proxy itself, to a server chosen
+ * from the current ensemble, so they follow the transport, thread and affinity settings
+ * and ensemble reloads.
+ */
+public class PassthroughServer extends AbstractIdleService {
+
+    public static PassthroughServer newInstance(
+            InetSocketAddress address,
+            ServerSelector selector,
+            NettyModule netModule) {
+        return new PassthroughServer(address, selector, netModule);
+    }
+
+    @Configurable(arg="passthrough", key="passthroughAddress", value="", help="address:port to relay undecoded frames on (empty to disable)")
+    public static class PassthroughConfiguration implements Function<Configuration, String> {
+
+        public static String get(Configuration configuration) {
+            return new PassthroughConfiguration().apply(configuration);
+        }
+
+        @Override
+        public String apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getString(configurable.key());
+        }
+    }
+
+    // must accommodate jute.maxbuffer
+    public static final int MAX_FRAME_LENGTH = 4 * 1024 * 1024;
+
+    protected final Logger logger;
+    protected final InetSocketAddress address;
+    protected final ServerSelector selector;
+    protected final NettyModule netModule;
+    protected final AtomicLong requests;
+    protected final AtomicLong responses;
+    protected volatile Channel channel;
+
+    protected PassthroughServer(
+            InetSocketAddress address,
+            ServerSelector selector,
+            NettyModule netModule) {
+        this.logger = LogManager.getLogger(this);
+        this.address = address;
+        this.selector = selector;
+        this.netModule = netModule;
+        this.requests = new AtomicLong(0L);
+        this.responses = new AtomicLong(0L);
+        this.channel = null;
+    }
+
+    public long requests() {
+        return requests.get();
+    }
+
+    public long responses() {
+        return responses.get();
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+        channel = netModule.serverBootstraps().get()
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) throws Exception {
+                        ch.pipeline().addLast(
+                                new SliceFrameDecoder(),
+                                new FrontendHandler());
+                    }
+                })
+                .bind(address).sync().channel();
+        logger.info("Relaying frames on {}", channel.localAddress());
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+        if (channel != null) {
+            channel.close().sync();
+        }
+    }
+
+    protected InetSocketAddress nextServer() {
+        return selector.select().get();
+    }
+
+    protected static void closeOnFlush(Channel channel) {
+        if (channel.isActive()) {
+            channel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    /**
+     * Frames as retained slices of the inbound buffer,
+     * where the stock decoder would copy each frame.
+     */
+    protected static class SliceFrameDecoder extends LengthFieldBasedFrameDecoder {
+
+        public SliceFrameDecoder() {
+            super(MAX_FRAME_LENGTH, 0, 4);
+        }
+
+        @Override
+        protected ByteBuf extractFrame(ChannelHandlerContext ctx, ByteBuf buffer, int index, int length) {
+            return buffer.slice(index, length).retain();
+        }
+    }
+
+    protected abstract static class RelayHandler extends ChannelInboundHandlerAdapter {
+
+        protected Channel peer;
+
+        protected RelayHandler(Channel peer) {
+            this.peer = peer;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            ByteBuf frame = (ByteBuf) msg;
+            handleFrame(frame);
+            peer.write(frame);
+            if (!peer.isWritable()) {
+                ctx.channel().config().setAutoRead(false);
+            }
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+            peer.flush();
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+            if (ctx.channel().isWritable() && (peer != null)) {
+                peer.config().setAutoRead(true);
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            if (peer != null) {
+                closeOnFlush(peer);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            closeOnFlush(ctx.channel());
+        }
+
+        protected abstract void handleFrame(ByteBuf frame);
+    }
+
+    protected class FrontendHandler extends RelayHandler {
+
+        protected boolean connected;
+
+        public FrontendHandler() {
+            super(null);
+            this.connected = false;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            final Channel frontend = ctx.channel();
+            frontend.config().setAutoRead(false);
+            InetSocketAddress server = nextServer();
+            // with affinity, registered on the event loop of the client connection
+            ChannelFuture future = netModule.clientBootstraps().get()
+                .option(ChannelOption.AUTO_READ, Boolean.FALSE)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) throws Exception {
+                        ch.pipeline().addLast(
+                                new SliceFrameDecoder(),
+                                new BackendHandler(frontend));
+                    }
+                })
+                .connect(server);
+            peer = future.channel();
+            future.addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (future.isSuccess()) {
+                        frontend.config().setAutoRead(true);
+                        future.channel().config().setAutoRead(true);
+                    } else {
+                        logger.warn("Failed to connect to backend", future.cause());
+                        frontend.close();
+                    }
+                }
+            });
+        }
+
+        @Override
+        protected void handleFrame(ByteBuf frame) {
+            // the first frame is the ConnectRequest, which has no request header
+            // xids and the session are the backend's own, so nothing needs rewriting
+            if (connected) {
+                requests.incrementAndGet();
+                if (logger.isTraceEnabled() && (frame.readableBytes() >= 12)) {
+                    logger.trace("xid={} opcode={}", 
+                            frame.getInt(frame.readerIndex() + 4), 
+                            frame.getInt(frame.readerIndex() + 8));
+                }
+            } else {
+                connected = true;
+            }
+        }
+    }
+
+    protected class BackendHandler extends RelayHandler {
+
+        public BackendHandler(Channel frontend) {
+            super(frontend);
+        }
+
+        @Override
+        protected void handleFrame(ByteBuf frame) {
+            responses.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package edu.uw.zookeeper.proxy;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.AbstractIdleService;
+
+/**
+ * Runs tasks with a fixed delay on a shared scheduler while running,
+ * so periodic work starts and stops with the services it depends on.
+ *
+ * Tasks must be added before the service is started.
+ */
+public class PeriodicTasks extends AbstractIdleService {
+
+    public static PeriodicTasks newInstance(ScheduledExecutorService scheduler) {
+        return new PeriodicTasks(scheduler);
+    }
+
+    protected final ScheduledExecutorService scheduler;
+    protected final List<Task> tasks;
+    // guarded by this
+    protected final List<ScheduledFuture<?>> scheduled;
+
+    protected PeriodicTasks(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+        this.tasks = new CopyOnWriteArrayList<Task>();
+        this.scheduled = Lists.newArrayList();
+    }
+
+    public PeriodicTasks add(Runnable task, long intervalMillis) {
+        if (state() != State.NEW) {
+            throw new IllegalStateException(String.valueOf(state()));
+        }
+        tasks.add(new Task(task, intervalMillis));
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("tasks", tasks).toString();
+    }
+
+    @Override
+    protected synchronized void startUp() throws Exception {
+        for (Task task: tasks) {
+            scheduled.add(scheduler.scheduleWithFixedDelay(
+                    task.task, task.intervalMillis, task.intervalMillis, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Override
+    protected synchronized void shutDown() throws Exception {
+        for (ScheduledFuture<?> future: scheduled) {
+            future.cancel(false);
+        }
+        scheduled.clear();
+    }
+
+    protected static final class Task {
+
+        protected final Runnable task;
+        protected final long intervalMillis;
+
+        public Task(Runnable task, long intervalMillis) {
+            this.task = task;
+            this.intervalMillis = intervalMillis;
+        }
+
+        @Override
+        public String toString() {
+            return Objects.toStringHelper(this)
+                    .add("task", task)
+                    .add("intervalMillis", intervalMillis).toString();
+        }
+    }
+}
@@ -1,91 +1,149 @@
 package edu.uw.zookeeper.proxy;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentMap;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import com.google.common.base.Function;
-import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.AbstractFuture;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
+
 import edu.uw.zookeeper.common.DefaultsFactory;
 import edu.uw.zookeeper.common.TaskExecutor;
 import edu.uw.zookeeper.protocol.ConnectMessage;
+import edu.uw.zookeeper.protocol.Session;
 import edu.uw.zookeeper.protocol.client.MessageClientExecutor;
 
 public class ProxyConnectExecutor implements TaskExecutor<ConnectMessage.Request, ConnectMessage.Response> {
 
+    protected static final Executor SAME_THREAD = MoreExecutors.sameThreadExecutor();
+
+    /**
+     * Reattaches a client to a session the proxy still holds, without a new backend session.
+     * 
+     * @return null if the session is not held by the proxy
+     */
+    public static ConnectMessage.Response renew(LongConcurrentHashMap<ProxySessionExecutor> executors, ConnectMessage.Request request) {
+        ProxySessionExecutor executor = executors.get(request.getSessionId());
+        if (executor == null) {
+            return null;
+        }
+        Session session = executor.session();
+        if (!Arrays.equals(session.parameters().password(), request.getPasswd())) {
+            return ConnectMessage.Response.Invalid.newInstance(request.getReadOnly(), request.legacy());
+        }
+        if (!executor.renewed()) {
+            // expired in the meantime
+            return null;
+        }
+        return ConnectMessage.Response.Valid.newInstance(session, request.getReadOnly(), request.legacy());
+    }
+
     public static ProxyConnectExecutor create(
-            ConcurrentMap<Long, ProxySessionExecutor> sessions,
+            LongConcurrentHashMap<ProxySessionExecutor> sessions,
             DefaultsFactory<ConnectMessage.Request, ? extends ListenableFuture<? extends MessageClientExecutor<?>>> clientFactory) {
+        return create(sessions, clientFactory, ProxyFeatures.none());
+    }
+
+    public static ProxyConnectExecutor create(
+            LongConcurrentHashMap<ProxySessionExecutor> sessions,
+            DefaultsFactory<ConnectMessage.Request, ? extends ListenableFuture<? extends MessageClientExecutor<?>>> clientFactory,
+            ProxyFeatures features) {
         return new ProxyConnectExecutor(
                 sessions, 
-                clientFactory);
+                clientFactory,
+                features);
     }
     
     protected final Logger logger;
-    protected final Map<Long, ProxySessionExecutor> executors;
+    protected final LongConcurrentHashMap<ProxySessionExecutor> executors;
     protected final DefaultsFactory<ConnectMessage.Request, ? extends ListenableFuture<? extends MessageClientExecutor<?>>> clientFactory;
+    protected final ProxyFeatures features;
 
     public ProxyConnectExecutor(
-            ConcurrentMap<Long, ProxySessionExecutor> executors,
-            DefaultsFactory<ConnectMessage.Request, ? extends ListenableFuture<? extends MessageClientExecutor<?>>> clientFactory) {
+            LongConcurrentHashMap<ProxySessionExecutor> executors,
+            DefaultsFactory<ConnectMessage.Request, ? extends ListenableFuture<? extends MessageClientExecutor<?>>> clientFactory,
+            ProxyFeatures features) {
         this.logger = LogManager.getLogger(this);
         this.executors = executors;
         this.clientFactory = clientFactory;
+        this.features = features;
     }
     
     @Override
     public ListenableFuture<ConnectMessage.Response> submit(ConnectMessage.Request request) {
         if (request instanceof ConnectMessage.Request.RenewRequest) {
-            ProxySessionExecutor executor = executors.get(Long.valueOf(request.getSessionId()));
-            if (executor != null) {
-                return Futures.immediateFuture(ConnectMessage.Response.Valid.newInstance(executor.session(), request.getReadOnly(), request.legacy()));
+            ConnectMessage.Response response = renew(executors, request);
+            if (response != null) {
+                return Futures.immediateFuture(response);
             }
         }
-        return Futures.transform(
-                clientFactory.get(request),
-                new ConnectTask());
+        return new ConnectTask(clientFactory.get(request));
     }
 
-    protected class ConnectTask implements AsyncFunction<MessageClientExecutor<?>, ConnectMessage.Response> {
-        
-        public ConnectTask() {
-            super();
-        }
+    protected ProxySessionExecutor newExecutor(MessageClientExecutor<?> client) {
+        return ProxySessionExecutor.newInstance(client, features);
+    }
 
-        @Override
-        public ListenableFuture<ConnectMessage.Response> apply(
-                MessageClientExecutor<?> input) throws Exception {
-            return Futures.transform(
-                    input.session(), 
-                    new ConnectedTask(input));
+    /**
+     * Registers a session executor for a newly established backend session.
+     */
+    protected ConnectMessage.Response connected(
+            MessageClientExecutor<?> client,
+            ConnectMessage.Response response) {
+        logger.entry(response);
+        if (response instanceof ConnectMessage.Response.Valid) {
+            ProxySessionExecutor session = newExecutor(client);
+            ProxySessionExecutor prev = executors.putIfAbsent(response.getSessionId(), session);
+            if (prev != null) {
+                // a concurrent renewal got there first, so keep its backend connection
+                logger.debug("Session 0x{} already held", Long.toHexString(response.getSessionId()));
+                client.connection().close();
+            }
         }
+        return logger.exit(response);
     }
-    
-    protected class ConnectedTask implements Function<ConnectMessage.Response, ConnectMessage.Response> {
 
-        protected final MessageClientExecutor<?> client;
-        
-        public ConnectedTask(
-                MessageClientExecutor<?> client) {
-            this.client = client;
+    /**
+     * Waits for the backend client and then its session handshake.
+     * 
+     * One object listens to both steps and is itself the returned future,
+     * instead of a chain of transforms per connect.
+     */
+    protected class ConnectTask extends AbstractFuture<ConnectMessage.Response> implements Runnable {
+
+        protected final ListenableFuture<? extends MessageClientExecutor<?>> future;
+        // null until the backend client is ready
+        protected volatile MessageClientExecutor<?> client;
+
+        public ConnectTask(
+                ListenableFuture<? extends MessageClientExecutor<?>> future) {
+            this.future = future;
+            this.client = null;
+            future.addListener(this, SAME_THREAD);
         }
 
         @Override
-        public ConnectMessage.Response apply(
-                ConnectMessage.Response input) {
-            logger.entry(input);
-            if (input instanceof ConnectMessage.Response.Valid) {
-                ProxySessionExecutor session = ProxySessionExecutor.newInstance(client);
-                ProxySessionExecutor prev = executors.put(input.getSessionId(), session);
-                if (prev != null) {
-                    // TODO
-                    throw new UnsupportedOperationException();
+        public void run() {
+            try {
+                MessageClientExecutor<?> client = this.client;
+                if (client == null) {
+                    client = Uninterruptibles.getUninterruptibly(future);
+                    this.client = client;
+                    client.session().addListener(this, SAME_THREAD);
+                } else {
+                    set(connected(client, Uninterruptibles.getUninterruptibly(client.session())));
                 }
+            } catch (ExecutionException e) {
+                setException(e.getCause());
+            } catch (Throwable t) {
+                setException(t);
             }
-            return logger.exit(input);
         }
     }
 }
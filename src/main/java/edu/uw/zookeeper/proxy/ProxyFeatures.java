@@ -0,0 +1,196 @@
+package edu.uw.zookeeper.proxy;
+
+import com.google.common.base.Objects;
+
+/**
+ * Optional proxy components shared by all sessions.
+ */
+public class ProxyFeatures {
+
+    public static ProxyFeatures none() {
+        return new ProxyFeatures(null, null, null, null, null, null, null, null, null, null);
+    }
+
+    protected final ReadCache cache;
+    protected final ReadCoalescer coalescer;
+    protected final BufferedTracer tracer;
+    protected final ProxyMetrics metrics;
+    protected final ServerSelector selector;
+    protected final AdmissionControl admission;
+    protected final FairScheduler scheduler;
+    protected final SharedWatches watches;
+    protected final ReadRouter router;
+    protected final ShardRouter shards;
+
+    protected ProxyFeatures(
+            ReadCache cache,
+            ReadCoalescer coalescer,
+            BufferedTracer tracer,
+            ProxyMetrics metrics,
+            ServerSelector selector,
+            AdmissionControl admission,
+            FairScheduler scheduler,
+            SharedWatches watches,
+            ReadRouter router,
+            ShardRouter shards) {
+        this.cache = cache;
+        this.coalescer = coalescer;
+        this.tracer = tracer;
+        this.metrics = metrics;
+        this.selector = selector;
+        this.admission = admission;
+        this.scheduler = scheduler;
+        this.watches = watches;
+        this.router = router;
+        this.shards = shards;
+    }
+
+    public ReadCache getCache() {
+        return cache;
+    }
+
+    public ProxyFeatures setCache(ReadCache cache) {
+        if (this.cache == cache) {
+            return this;
+        } else {
+            return newInstance(cache, coalescer, tracer, metrics, selector, admission, scheduler, watches, router, shards);
+        }
+    }
+
+    public ReadCoalescer getCoalescer() {
+        return coalescer;
+    }
+
+    public ProxyFeatures setCoalescer(ReadCoalescer coalescer) {
+        if (this.coalescer == coalescer) {
+            return this;
+        } else {
+            return newInstance(cache, coalescer, tracer, metrics, selector, admission, scheduler, watches, router, shards);
+        }
+    }
+
+    public BufferedTracer getTracer() {
+        return tracer;
+    }
+
+    public ProxyFeatures setTracer(BufferedTracer tracer) {
+        if (this.tracer == tracer) {
+            return this;
+        } else {
+            return newInstance(cache, coalescer, tracer, metrics, selector, admission, scheduler, watches, router, shards);
+        }
+    }
+
+    public ProxyMetrics getMetrics() {
+        return metrics;
+    }
+
+    public ProxyFeatures setMetrics(ProxyMetrics metrics) {
+        if (this.metrics == metrics) {
+            return this;
+        } else {
+            return newInstance(cache, coalescer, tracer, metrics, selector, admission, scheduler, watches, router, shards);
+        }
+    }
+
+    public ServerSelector getSelector() {
+        return selector;
+    }
+
+    public ProxyFeatures setSelector(ServerSelector selector) {
+        if (this.selector == selector) {
+            return this;
+        } else {
+            return newInstance(cache, coalescer, tracer, metrics, selector, admission, scheduler, watches, router, shards);
+        }
+    }
+
+    public AdmissionControl getAdmission() {
+        return admission;
+    }
+
+    public ProxyFeatures setAdmission(AdmissionControl admission) {
+        if (this.admission == admission) {
+            return this;
+        } else {
+            return newInstance(cache, coalescer, tracer, metrics, selector, admission, scheduler, watches, router, shards);
+        }
+    }
+
+    public FairScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public ProxyFeatures setScheduler(FairScheduler scheduler) {
+        if (this.scheduler == scheduler) {
+            return this;
+        } else {
+            return newInstance(cache, coalescer, tracer, metrics, selector, admission, scheduler, watches, router, shards);
+        }
+    }
+
+    public SharedWatches getWatches() {
+        return watches;
+    }
+
+    public ProxyFeatures setWatches(SharedWatches watches) {
+        if (this.watches == watches) {
+            return this;
+        } else {
+            return newInstance(cache, coalescer, tracer, metrics, selector, admission, scheduler, watches, router, shards);
+        }
+    }
+
+    public ReadRouter getRouter() {
+        return router;
+    }
+
+    public ProxyFeatures setRouter(ReadRouter router) {
+        if (this.router == router) {
+            return this;
+        } else {
+            return newInstance(cache, coalescer, tracer, metrics, selector, admission, scheduler, watches, router, shards);
+        }
+    }
+
+    public ShardRouter getShards() {
+        return shards;
+    }
+
+    public ProxyFeatures setShards(ShardRouter shards) {
+        if (this.shards == shards) {
+            return this;
+        } else {
+            return newInstance(cache, coalescer, tracer, metrics, selector, admission, scheduler, watches, router, shards);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("cache", cache)
+                .add("coalescer", coalescer)
+                .add("tracer", tracer)
+                .add("metrics", metrics)
+                .add("selector", selector)
+                .add("admission", admission)
+                .add("scheduler", scheduler)
+                .add("watches", watches)
+                .add("router", router)
+                .add("shards", shards).toString();
+    }
+
+    protected ProxyFeatures newInstance(
+            ReadCache cache,
+            ReadCoalescer coalescer,
+            BufferedTracer tracer,
+            ProxyMetrics metrics,
+            ServerSelector selector,
+            AdmissionControl admission,
+            FairScheduler scheduler,
+            SharedWatches watches,
+            ReadRouter router,
+            ShardRouter shards) {
+        return new ProxyFeatures(cache, coalescer, tracer, metrics, selector, admission, scheduler, watches, router, shards);
+    }
+}
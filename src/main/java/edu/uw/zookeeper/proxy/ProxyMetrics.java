@@ -0,0 +1,298 @@
+package edu.uw.zookeeper.proxy;
+
+import java.net.SocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import com.google.common.collect.MapMaker;
+
+import edu.uw.zookeeper.protocol.proto.OpCode;
+
+/**
+ * Latency distributions per opcode and request counters per backend server.
+ *
+ * Latencies are recorded in microseconds into recorders striped by thread,
+ * so event loop threads rarely share one, and are folded into cumulative
+ * histograms only when read.
+ */
+public class ProxyMetrics {
+
+    public static ProxyMetrics newInstance() {
+        return new ProxyMetrics(Runtime.getRuntime().availableProcessors());
+    }
+
+    public static enum LatencyType {
+        // from request to response as seen by the client
+        CLIENT,
+        // from forwarding to the backend response
+        BACKEND,
+        // client latency less backend latency, or all of it if answered by the proxy alone
+        PROXY,
+        // client latency of a read answered by a cached or coalesced response
+        SHARED;
+    }
+
+    protected static final OpCode[] OPCODES = OpCode.values();
+    protected static final int SIGNIFICANT_DIGITS = 3;
+
+    protected final int stripes;
+    // indexed by opcode ordinal, then latency type, created on first use
+    protected final AtomicReferenceArray<Latency[]> latencies;
+    protected final Latency total;
+    protected final AtomicLong received;
+    protected final AtomicLong sent;
+    protected final AtomicLong outstanding;
+    protected final ConcurrentMap<SocketAddress, ServerCounters> servers;
+
+    protected ProxyMetrics(int concurrency) {
+        this.stripes = Integer.highestOneBit(Math.max(1, concurrency - 1)) << 1;
+        this.latencies = new AtomicReferenceArray<Latency[]>(OPCODES.length);
+        this.total = new Latency(stripes);
+        this.received = new AtomicLong(0L);
+        this.sent = new AtomicLong(0L);
+        this.outstanding = new AtomicLong(0L);
+        this.servers = new MapMaker().makeMap();
+    }
+
+    public long received() {
+        return received.get();
+    }
+
+    public long sent() {
+        return sent.get();
+    }
+
+    public long outstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * @return start time in nanoseconds
+     */
+    public long started() {
+        received.incrementAndGet();
+        outstanding.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * @return send time in nanoseconds
+     */
+    public long forwarded(SocketAddress server) {
+        ServerCounters counters = server(server);
+        counters.requests.incrementAndGet();
+        counters.outstanding.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * Completes a request answered by the proxy alone.
+     */
+    public void completed(OpCode opcode, long start) {
+        completed(opcode, start, LatencyType.PROXY);
+    }
+
+    /**
+     * Completes a request without a timed backend round trip of its own.
+     * 
+     * @param type where the client latency is also recorded, or null for nowhere else
+     */
+    public void completed(OpCode opcode, long start, LatencyType type) {
+        long now = System.nanoTime();
+        long client = micros(now - start);
+        total.record(client);
+        Latency[] latency = latencies(opcode);
+        latency[LatencyType.CLIENT.ordinal()].record(client);
+        if (type != null) {
+            latency[type.ordinal()].record(client);
+        }
+        done();
+    }
+
+    public void completed(OpCode opcode, SocketAddress server, long start, long sent, boolean error) {
+        long now = System.nanoTime();
+        long client = micros(now - start);
+        long backend = micros(now - sent);
+        total.record(client);
+        Latency[] latency = latencies(opcode);
+        latency[LatencyType.CLIENT.ordinal()].record(client);
+        latency[LatencyType.BACKEND.ordinal()].record(backend);
+        latency[LatencyType.PROXY.ordinal()].record(Math.max(0L, client - backend));
+        ServerCounters counters = server(server);
+        counters.outstanding.decrementAndGet();
+        if (error) {
+            counters.errors.incrementAndGet();
+        }
+        done();
+    }
+
+    /**
+     * @param server null if the request was not forwarded
+     */
+    public void failed(SocketAddress server) {
+        if (server != null) {
+            ServerCounters counters = server(server);
+            counters.outstanding.decrementAndGet();
+            counters.failures.incrementAndGet();
+        }
+        done();
+    }
+
+    public Histogram getLatency() {
+        return total.snapshot();
+    }
+
+    /**
+     * @return null if no request with this opcode has completed
+     */
+    public Histogram getLatency(OpCode opcode, LatencyType type) {
+        Latency[] latency = latencies.get(opcode.ordinal());
+        return (latency == null) ? null : latency[type.ordinal()].snapshot();
+    }
+
+    /**
+     * Appends metrics as tab-separated key value lines, compatible with the mntr command.
+     * Standard latencies are in milliseconds, proxy latencies in microseconds.
+     */
+    public StringBuilder mntr(StringBuilder output) {
+        Histogram latency = getLatency();
+        long count = latency.getTotalCount();
+        put(output, "zk_avg_latency", (count == 0L) ? 0L : TimeUnit.MICROSECONDS.toMillis((long) latency.getMean()));
+        put(output, "zk_max_latency", (count == 0L) ? 0L : TimeUnit.MICROSECONDS.toMillis(latency.getMaxValue()));
+        put(output, "zk_min_latency", (count == 0L) ? 0L : TimeUnit.MICROSECONDS.toMillis(latency.getMinValue()));
+        put(output, "zk_packets_received", received());
+        put(output, "zk_packets_sent", sent());
+        put(output, "zk_outstanding_requests", outstanding());
+        for (OpCode opcode: OPCODES) {
+            Latency[] latencies = this.latencies.get(opcode.ordinal());
+            if (latencies == null) {
+                continue;
+            }
+            for (LatencyType type: LatencyType.values()) {
+                Histogram histogram = latencies[type.ordinal()].snapshot();
+                if (histogram.getTotalCount() == 0L) {
+                    continue;
+                }
+                String prefix = new StringBuilder("zk_proxy_")
+                    .append(opcode.name().toLowerCase()).append('_')
+                    .append(type.name().toLowerCase()).append('_').toString();
+                put(output, prefix + "count", histogram.getTotalCount());
+                put(output, prefix + "avg_us", (long) histogram.getMean());
+                put(output, prefix + "min_us", histogram.getMinValue());
+                put(output, prefix + "p50_us", histogram.getValueAtPercentile(50.0));
+                put(output, prefix + "p99_us", histogram.getValueAtPercentile(99.0));
+                put(output, prefix + "p999_us", histogram.getValueAtPercentile(99.9));
+                put(output, prefix + "max_us", histogram.getMaxValue());
+            }
+        }
+        for (Map.Entry<SocketAddress, ServerCounters> entry: servers.entrySet()) {
+            String prefix = "zk_proxy_backend_" + key(entry.getKey()) + "_";
+            ServerCounters counters = entry.getValue();
+            put(output, prefix + "requests", counters.requests.get());
+            put(output, prefix + "errors", counters.errors.get());
+            put(output, prefix + "failures", counters.failures.get());
+            put(output, prefix + "outstanding", counters.outstanding.get());
+        }
+        return output;
+    }
+
+    /**
+     * Appends a summary in the style of the stat command.
+     */
+    public StringBuilder stat(StringBuilder output) {
+        Histogram latency = getLatency();
+        boolean empty = (latency.getTotalCount() == 0L);
+        output.append("Latency min/avg/max: ")
+            .append(empty ? 0L : TimeUnit.MICROSECONDS.toMillis(latency.getMinValue())).append('/')
+            .append(empty ? 0L : TimeUnit.MICROSECONDS.toMillis((long) latency.getMean())).append('/')
+            .append(empty ? 0L : TimeUnit.MICROSECONDS.toMillis(latency.getMaxValue())).append('\n');
+        output.append("Received: ").append(received()).append('\n');
+        output.append("Sent: ").append(sent()).append('\n');
+        output.append("Outstanding: ").append(outstanding()).append('\n');
+        return output;
+    }
+
+    protected void done() {
+        sent.incrementAndGet();
+        outstanding.decrementAndGet();
+    }
+
+    protected Latency[] latencies(OpCode opcode) {
+        int index = opcode.ordinal();
+        Latency[] latency = latencies.get(index);
+        if (latency == null) {
+            latency = new Latency[LatencyType.values().length];
+            for (int i=0; i<latency.length; ++i) {
+                latency[i] = new Latency(stripes);
+            }
+            if (!latencies.compareAndSet(index, null, latency)) {
+                latency = latencies.get(index);
+            }
+        }
+        return latency;
+    }
+
+    protected ServerCounters server(SocketAddress server) {
+        ServerCounters counters = servers.get(server);
+        if (counters == null) {
+            counters = new ServerCounters();
+            ServerCounters prev = servers.putIfAbsent(server, counters);
+            if (prev != null) {
+                counters = prev;
+            }
+        }
+        return counters;
+    }
+
+    protected static long micros(long nanos) {
+        return Math.max(0L, TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    protected static String key(SocketAddress address) {
+        return String.valueOf(address).replaceAll("[^A-Za-z0-9]+", "_").replaceAll("^_|_$", "");
+    }
+
+    protected static void put(StringBuilder output, String key, long value) {
+        output.append(key).append('\t').append(value).append('\n');
+    }
+
+    protected static final class ServerCounters {
+        protected final AtomicLong requests = new AtomicLong(0L);
+        protected final AtomicLong errors = new AtomicLong(0L);
+        protected final AtomicLong failures = new AtomicLong(0L);
+        protected final AtomicLong outstanding = new AtomicLong(0L);
+    }
+
+    protected static final class Latency {
+
+        protected final Recorder[] recorders;
+        // guarded by this
+        protected final Histogram cumulative;
+
+        public Latency(int stripes) {
+            this.recorders = new Recorder[stripes];
+            for (int i=0; i<stripes; ++i) {
+                recorders[i] = new Recorder(SIGNIFICANT_DIGITS);
+            }
+            this.cumulative = new Histogram(SIGNIFICANT_DIGITS);
+        }
+
+        public void record(long value) {
+            int stripe = (int) (Thread.currentThread().getId() & (recorders.length - 1));
+            recorders[stripe].recordValue(value);
+        }
+
+        public synchronized Histogram snapshot() {
+            for (Recorder recorder: recorders) {
+                cumulative.add(recorder.getIntervalHistogram());
+            }
+            return cumulative.copy();
+        }
+    }
+}
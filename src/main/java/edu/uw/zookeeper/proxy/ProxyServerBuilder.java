@@ -2,9 +2,11 @@ package edu.uw.zookeeper.proxy;
 
 import java.util.List;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.Service;
 
+import edu.uw.zookeeper.ServerInetAddressView;
 import edu.uw.zookeeper.common.RuntimeModule;
 import edu.uw.zookeeper.protocol.server.ServerConnectionsHandler;
 import edu.uw.zookeeper.server.SimpleServerBuilder;
@@ -37,15 +39,59 @@ public class ProxyServerBuilder extends SimpleServerBuilder<ProxyServerExecutorB
         return new ProxyServerBuilder(server, connections);
     }
 
+    /**
+     * Services in three stages, started in order.
+     * 
+     * The tracers, the backend client stack and the passthrough relay are independent,
+     * so they start in parallel. Then startup waits for a reachable backend server,
+     * and only then binds the client port.
+     */
     @Override
     protected List<Service> doBuild() {
-        List<Service> services = Lists.newLinkedList();
+        List<Service> independent = Lists.newArrayList();
         if (getServerBuilder() instanceof TracingProxyServerBuilder) {
-            services.add(((TracingProxyServerBuilder) getServerBuilder()).getTracingBuilder().build());
+            TracingProxyServerBuilder tracing = (TracingProxyServerBuilder) getServerBuilder();
+            independent.add(ServiceGroup.serial(ImmutableList.<Service>of(
+                    tracing.getTracingBuilder().build(), 
+                    tracing.getPublisher())));
         }
-        for (Service e: getServerBuilder().getClientBuilder().build()) {
-            services.add(e);
+        BufferedTracer tracer = getServerBuilder().getFeatures().getTracer();
+        if (tracer != null) {
+            if (tracer.writer() instanceof Service) {
+                independent.add(ServiceGroup.serial(ImmutableList.<Service>of(
+                        (Service) tracer.writer(), 
+                        tracer)));
+            } else {
+                independent.add(tracer);
+            }
+        }
+        // the client executors, including those of the shards, need their connection factory
+        ProxyServerExecutorBuilder.ClientBuilder clients = getServerBuilder().getClientBuilder();
+        List<Service> backend = Lists.<Service>newArrayList(clients.build());
+        ShardRouter shards = getServerBuilder().getFeatures().getShards();
+        if (shards != null) {
+            List<Service> shardClients = Lists.newArrayList();
+            for (ShardRouter.Shard shard: shards.shards()) {
+                shardClients.add(shard.clients());
+            }
+            backend.add(ServiceGroup.parallel(shardClients));
         }
+        // periodic tasks probe and reconnect through the clients
+        backend.add(getServerBuilder().getTasks());
+        independent.add(ServiceGroup.serial(backend));
+        String passthrough = PassthroughServer.PassthroughConfiguration.get(getRuntimeModule().getConfiguration());
+        if (!passthrough.isEmpty()) {
+            independent.add(PassthroughServer.newInstance(
+                    ServerInetAddressView.fromString(passthrough).get(), 
+                    clients.getServerSelector(), 
+                    getServerBuilder().getNetModule()));
+        }
+        List<Service> services = Lists.newLinkedList();
+        services.add(ServiceGroup.parallel(independent));
+        services.add(BackendReadiness.fromConfiguration(
+                getRuntimeModule().getConfiguration(), 
+                clients.getServerSelector(), 
+                clients.getClientConnectionFactory()));
         for (Service e: super.doBuild()) {
             services.add(e);
         }
@@ -1,5 +1,7 @@
 package edu.uw.zookeeper.proxy;
 
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ScheduledExecutorService;
 
@@ -8,17 +10,20 @@ import org.apache.logging.log4j.Logger;
 
 import com.google.common.base.Function;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Service;
 import com.typesafe.config.ConfigFactory;
 import com.typesafe.config.ConfigUtil;
+import com.typesafe.config.ConfigValueType;
 
 import edu.uw.zookeeper.EnsembleView;
 import edu.uw.zookeeper.ZooKeeperApplication;
 import edu.uw.zookeeper.ServerInetAddressView;
 import edu.uw.zookeeper.client.ConnectionClientExecutorsService;
-import edu.uw.zookeeper.client.EnsembleViewFactory;
 import edu.uw.zookeeper.client.FixedClientConnectionFactory;
 import edu.uw.zookeeper.client.ServerViewFactory;
 import edu.uw.zookeeper.common.*;
@@ -41,7 +46,7 @@ import edu.uw.zookeeper.server.SimpleServerExecutor;
 public class ProxyServerExecutorBuilder extends ZooKeeperApplication.ForwardingBuilder<SimpleServerExecutor<ProxySessionExecutor>, ProxyServerExecutorBuilder.ClientBuilder, ProxyServerExecutorBuilder> {
 
     public static ProxyServerExecutorBuilder defaults() {
-        return new ProxyServerExecutorBuilder(null, ClientBuilder.defaults());
+        return new ProxyServerExecutorBuilder(null, null, null, ClientBuilder.defaults());
     }
     
     @Configurable(arg="servers", key="servers", value="127.0.0.1:2081", help="address:port,...")
@@ -68,6 +73,22 @@ public class ProxyServerExecutorBuilder extends ZooKeeperApplication.ForwardingB
         protected EnsembleViewConfiguration() {}
     }
 
+    @Configurable(arg="multiplex", key="multiplexSessions", value="0", type=ConfigValueType.NUMBER, help="backend sessions shared by all clients (0 for one backend session per client)")
+    public static class MultiplexConfiguration implements Function<Configuration, Integer> {
+
+        public static Integer get(Configuration configuration) {
+            return new MultiplexConfiguration().apply(configuration);
+        }
+
+        @Override
+        public Integer apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getInt(configurable.key());
+        }
+    }
+
     public static class FromRequestFactory<C extends ProtocolConnection<? super Message.ClientSession,? extends Operation.Response,?,?,?>> implements DefaultsFactory<ConnectMessage.Request, ListenableFuture<MessageClientExecutor<C>>> {
     
         public static <C extends ProtocolConnection<? super Message.ClientSession,? extends Operation.Response,?,?,?>> FromRequestFactory<C> create(
@@ -117,42 +138,196 @@ public class ProxyServerExecutorBuilder extends ZooKeeperApplication.ForwardingB
         public static ServerViewFactories newInstance(
                 ClientConnectionFactory<? extends ProtocolConnection<? super Message.ClientSession,? extends Operation.Response,?,?,?>> connections,
                 ScheduledExecutorService executor) {
-            return new ServerViewFactories(connections, executor);
+            return newInstance(connections, executor, null);
+        }
+
+        public static ServerViewFactories newInstance(
+                ClientConnectionFactory<? extends ProtocolConnection<? super Message.ClientSession,? extends Operation.Response,?,?,?>> connections,
+                ScheduledExecutorService executor,
+                WarmConnectionPool.Registry pools) {
+            return new ServerViewFactories(connections, executor, pools);
         }
         
         protected final ClientConnectionFactory<? extends ProtocolConnection<? super Message.ClientSession,? extends Operation.Response,?,?,?>> connections;
         protected final ScheduledExecutorService executor;
+        protected final WarmConnectionPool.Registry pools;
         
         protected ServerViewFactories(
                 ClientConnectionFactory<? extends ProtocolConnection<? super Message.ClientSession,? extends Operation.Response,?,?,?>> connections,
-                ScheduledExecutorService executor) {
+                ScheduledExecutorService executor,
+                WarmConnectionPool.Registry pools) {
             this.connections = connections;
             this.executor = executor;
+            this.pools = pools;
         }
     
         @Override
         public ServerViewFactory<ConnectMessage.Request, ? extends MessageClientExecutor<?>> get(ServerInetAddressView view) {
+            Factory<? extends ListenableFuture<? extends ProtocolConnection<? super Message.ClientSession,? extends Operation.Response,?,?,?>>> fixed = 
+                    FixedClientConnectionFactory.create(view.get(), connections);
+            if (pools != null) {
+                fixed = pools.get(view, fixed, (connections instanceof Service) ? (Service) connections : null, executor);
+            }
             return ServerViewFactory.create(
                     view, 
-                    FromRequestFactory.create(
-                            FixedClientConnectionFactory.create(view.get(), connections),
-                            executor), 
+                    FromRequestFactory.create(fixed, executor), 
                     ZxidTracker.zero());
         }
     }
 
+    /**
+     * Connects each new backend session to the server chosen by a ServerSelector,
+     * and feeds connect outcomes back into the server's health.
+     */
+    public static class SelectingClientFactory implements DefaultsFactory<ConnectMessage.Request, ListenableFuture<? extends MessageClientExecutor<?>>>, ServerSelector.Listener {
+
+        public static SelectingClientFactory newInstance(
+                ServerSelector selector,
+                ParameterizedFactory<ServerInetAddressView, ? extends ServerViewFactory<ConnectMessage.Request, ? extends MessageClientExecutor<?>>> factories) {
+            SelectingClientFactory factory = new SelectingClientFactory(selector, factories);
+            selector.addListener(factory);
+            return factory;
+        }
+
+        protected final ServerSelector selector;
+        protected final ParameterizedFactory<ServerInetAddressView, ? extends ServerViewFactory<ConnectMessage.Request, ? extends MessageClientExecutor<?>>> factories;
+        // created on first use, since servers can be added at runtime
+        protected final ConcurrentMap<ServerInetAddressView, ServerViewFactory<ConnectMessage.Request, ? extends MessageClientExecutor<?>>> servers;
+
+        protected SelectingClientFactory(
+                ServerSelector selector,
+                ParameterizedFactory<ServerInetAddressView, ? extends ServerViewFactory<ConnectMessage.Request, ? extends MessageClientExecutor<?>>> factories) {
+            this.selector = selector;
+            this.factories = factories;
+            this.servers = Maps.newConcurrentMap();
+        }
+
+        @Override
+        public ListenableFuture<? extends MessageClientExecutor<?>> get() {
+            return get(ConnectMessage.Request.NewRequest.newInstance());
+        }
+
+        @Override
+        public ListenableFuture<? extends MessageClientExecutor<?>> get(ConnectMessage.Request value) {
+            ServerInetAddressView server;
+            ServerSelector.ServerHealth selected;
+            do {
+                server = selector.select();
+                // the ensemble may have been updated in between
+                selected = selector.servers().get(server);
+            } while (selected == null);
+            final ServerSelector.ServerHealth health = selected;
+            final long start = System.nanoTime();
+            health.started();
+            ListenableFuture<? extends MessageClientExecutor<?>> client = server(server).get(value);
+            Futures.addCallback(
+                    Futures.transform(client, new AsyncFunction<MessageClientExecutor<?>, ConnectMessage.Response>() {
+                        @Override
+                        public ListenableFuture<ConnectMessage.Response> apply(MessageClientExecutor<?> input) {
+                            return input.session();
+                        }
+                    }),
+                    new FutureCallback<ConnectMessage.Response>() {
+                        @Override
+                        public void onSuccess(ConnectMessage.Response result) {
+                            health.connected(System.nanoTime() - start);
+                        }
+                        @Override
+                        public void onFailure(Throwable t) {
+                            health.connectFailed();
+                        }
+                    });
+            return client;
+        }
+
+        /**
+         * Creates the factory of every current server now rather than on its first session,
+         * so warm connection pools start filling as soon as the connection factory runs.
+         */
+        public SelectingClientFactory warm() {
+            for (ServerInetAddressView server: selector.servers().keySet()) {
+                server(server);
+            }
+            return this;
+        }
+
+        /**
+         * Forgets the factories of removed servers.
+         */
+        @Override
+        public void removed(List<ServerInetAddressView> servers) {
+            for (ServerInetAddressView server: servers) {
+                this.servers.remove(server);
+            }
+        }
+
+        protected ServerViewFactory<ConnectMessage.Request, ? extends MessageClientExecutor<?>> server(ServerInetAddressView server) {
+            ServerViewFactory<ConnectMessage.Request, ? extends MessageClientExecutor<?>> factory = servers.get(server);
+            if (factory == null) {
+                factory = factories.get(server);
+                ServerViewFactory<ConnectMessage.Request, ? extends MessageClientExecutor<?>> prev = servers.putIfAbsent(server, factory);
+                if (prev != null) {
+                    factory = prev;
+                }
+            }
+            return factory;
+        }
+    }
+
     public static class ClientBuilder extends ConnectionClientExecutorsService.AbstractBuilder<ConnectionClientExecutorsService<Message.ClientRequest<?>, ConnectMessage.Request, MessageClientExecutor<?>>, ClientBuilder> {
 
         public static ClientBuilder defaults() {
-            return new ClientBuilder(null, null, null, null);
+            return new ClientBuilder(null, null, null, null, null, null);
         }
         
+        protected final ServerSelector serverSelector;
+        protected final WarmConnectionPool.Registry connectionPools;
+
         protected ClientBuilder(
+                ServerSelector serverSelector,
+                WarmConnectionPool.Registry connectionPools,
                 ClientConnectionFactoryBuilder connectionBuilder,
                 ClientConnectionFactory<? extends ProtocolConnection<Message.ClientSession, Message.ServerSession,?,?,?>> clientConnectionFactory,
                 ConnectionClientExecutorsService<Message.ClientRequest<?>, ConnectMessage.Request, MessageClientExecutor<?>> clientExecutors,
                 RuntimeModule runtime) {
             super(connectionBuilder, clientConnectionFactory, clientExecutors, runtime);
+            this.serverSelector = serverSelector;
+            this.connectionPools = connectionPools;
+        }
+
+        public ServerSelector getServerSelector() {
+            return serverSelector;
+        }
+
+        public ClientBuilder setServerSelector(ServerSelector serverSelector) {
+            if (this.serverSelector == serverSelector) {
+                return this;
+            } else {
+                return newInstance(serverSelector, connectionPools, connectionBuilder, clientConnectionFactory, clientExecutors, runtime);
+            }
+        }
+
+        public WarmConnectionPool.Registry getConnectionPools() {
+            return connectionPools;
+        }
+
+        public ClientBuilder setConnectionPools(WarmConnectionPool.Registry connectionPools) {
+            if (this.connectionPools == connectionPools) {
+                return this;
+            } else {
+                return newInstance(serverSelector, connectionPools, connectionBuilder, clientConnectionFactory, clientExecutors, runtime);
+            }
+        }
+
+        @Override
+        public ClientBuilder setDefaults() {
+            if (serverSelector == null) {
+                return setServerSelector(getDefaultServerSelector()).setDefaults();
+            }
+            if (connectionPools == null) {
+                return setConnectionPools(getDefaultConnectionPools()).setDefaults();
+            }
+            return super.setDefaults();
         }
 
         @Override
@@ -161,42 +336,54 @@ public class ProxyServerExecutorBuilder extends ZooKeeperApplication.ForwardingB
                 ClientConnectionFactory<? extends ProtocolConnection<Message.ClientSession, Message.ServerSession,?,?,?>> clientConnectionFactory,
                 ConnectionClientExecutorsService<Message.ClientRequest<?>, ConnectMessage.Request, MessageClientExecutor<?>> clientExecutors,
                 RuntimeModule runtime) {
-            return new ClientBuilder(connectionBuilder, clientConnectionFactory, clientExecutors, runtime);
+            return newInstance(serverSelector, connectionPools, connectionBuilder, clientConnectionFactory, clientExecutors, runtime);
+        }
+
+        protected ClientBuilder newInstance(
+                ServerSelector serverSelector,
+                WarmConnectionPool.Registry connectionPools,
+                ClientConnectionFactoryBuilder connectionBuilder,
+                ClientConnectionFactory<? extends ProtocolConnection<Message.ClientSession, Message.ServerSession,?,?,?>> clientConnectionFactory,
+                ConnectionClientExecutorsService<Message.ClientRequest<?>, ConnectMessage.Request, MessageClientExecutor<?>> clientExecutors,
+                RuntimeModule runtime) {
+            return new ClientBuilder(serverSelector, connectionPools, connectionBuilder, clientConnectionFactory, clientExecutors, runtime);
+        }
+
+        protected ServerSelector getDefaultServerSelector() {
+            return ServerSelector.fromConfiguration(getRuntimeModule().getConfiguration());
+        }
+
+        protected WarmConnectionPool.Registry getDefaultConnectionPools() {
+            return WarmConnectionPool.Registry.fromConfiguration(getRuntimeModule().getConfiguration());
         }
 
         @Override
         protected ConnectionClientExecutorsService<Message.ClientRequest<?>, ConnectMessage.Request, MessageClientExecutor<?>> getDefaultConnectionClientExecutorsService() {
-            EnsembleView<ServerInetAddressView> ensemble = EnsembleViewConfiguration.get(getRuntimeModule().getConfiguration());
-            final EnsembleViewFactory<? extends ServerViewFactory<ConnectMessage.Request, ? extends MessageClientExecutor<?>>> ensembleFactory = 
-                    EnsembleViewFactory.random(
-                        ensemble, 
-                        ServerViewFactories.newInstance(
-                                clientConnectionFactory, 
-                                getRuntimeModule().getExecutors().get(ScheduledExecutorService.class)));
-            ConnectionClientExecutorsService<Message.ClientRequest<?>, ConnectMessage.Request, MessageClientExecutor<?>> service =
-                    ConnectionClientExecutorsService.newInstance(
-                            new DefaultsFactory<ConnectMessage.Request, ListenableFuture<? extends MessageClientExecutor<?>>>() {
-                                @Override
-                                public ListenableFuture<? extends MessageClientExecutor<?>> get(ConnectMessage.Request value) {
-                                    return ensembleFactory.get().get(value);
-                                }
-                                @Override
-                                public ListenableFuture<? extends MessageClientExecutor<?>> get() {
-                                    return ensembleFactory.get().get();
-                                }
-                            });
-            return service;
+            getServerSelector().addListener(getConnectionPools());
+            return ConnectionClientExecutorsService.newInstance(
+                    SelectingClientFactory.newInstance(
+                            getServerSelector(),
+                            ServerViewFactories.newInstance(
+                                    clientConnectionFactory, 
+                                    getRuntimeModule().getExecutors().get(ScheduledExecutorService.class),
+                                    getConnectionPools())).warm());
         }
     }
     
     protected final Logger logger = LogManager.getLogger(getClass());
     protected final NettyModule netModule;
+    protected final ProxyFeatures features;
+    protected final PeriodicTasks tasks;
     
     protected ProxyServerExecutorBuilder(
             NettyModule netModule,
+            ProxyFeatures features,
+            PeriodicTasks tasks,
             ClientBuilder clientBuilder) {
         super(clientBuilder);
         this.netModule = netModule;
+        this.features = features;
+        this.tasks = tasks;
     }
 
     public NettyModule getNetModule() {
@@ -209,6 +396,43 @@ public class ProxyServerExecutorBuilder extends ZooKeeperApplication.ForwardingB
         } else {
             return newInstance(
                     netModule,
+                    features,
+                    tasks,
+                    delegate);
+        }
+    }
+
+    public ProxyFeatures getFeatures() {
+        return features;
+    }
+
+    public ProxyServerExecutorBuilder setFeatures(ProxyFeatures features) {
+        if (this.features == features) {
+            return this;
+        } else {
+            return newInstance(
+                    netModule,
+                    features,
+                    tasks,
+                    delegate);
+        }
+    }
+
+    /**
+     * Periodic work of the built executor, to be started once the backend clients are running.
+     */
+    public PeriodicTasks getTasks() {
+        return tasks;
+    }
+
+    public ProxyServerExecutorBuilder setTasks(PeriodicTasks tasks) {
+        if (this.tasks == tasks) {
+            return this;
+        } else {
+            return newInstance(
+                    netModule,
+                    features,
+                    tasks,
                     delegate);
         }
     }
@@ -223,6 +447,8 @@ public class ProxyServerExecutorBuilder extends ZooKeeperApplication.ForwardingB
             return this;
         } else {
             return newInstance(netModule, 
+                    features,
+                    tasks,
                     clientBuilder);
         }
     }
@@ -236,25 +462,37 @@ public class ProxyServerExecutorBuilder extends ZooKeeperApplication.ForwardingB
         if (getClientBuilder() != clientBuilder) {
             return setClientBuilder(clientBuilder).setDefaults();
         }
+        if (getFeatures() == null) {
+            return setFeatures(getDefaultFeatures()).setDefaults();
+        }
+        if (getTasks() == null) {
+            return setTasks(getDefaultTasks()).setDefaults();
+        }
         return this;
     }
 
     @Override
     protected ProxyServerExecutorBuilder newInstance(
             ClientBuilder clientBuilder) {
-        return newInstance(netModule, clientBuilder);
+        return newInstance(netModule, features, tasks, clientBuilder);
     }
     
     protected ProxyServerExecutorBuilder newInstance(
             NettyModule netModule,
+            ProxyFeatures features,
+            PeriodicTasks tasks,
             ClientBuilder clientBuilder) {
-        return new ProxyServerExecutorBuilder(netModule, clientBuilder);
+        return new ProxyServerExecutorBuilder(netModule, features, tasks, clientBuilder);
     }
 
     protected NettyModule getDefaultNetModule() {
         return NettyModule.newInstance(getRuntimeModule());
     }
 
+    protected PeriodicTasks getDefaultTasks() {
+        return PeriodicTasks.newInstance(getRuntimeModule().getExecutors().get(ScheduledExecutorService.class));
+    }
+
     protected ClientBuilder getDefaultClientBuilder() {
         ClientBuilder builder = getClientBuilder();
         if (builder.getConnectionBuilder() == null) {
@@ -274,24 +512,235 @@ public class ProxyServerExecutorBuilder extends ZooKeeperApplication.ForwardingB
 
     @Override
     protected SimpleServerExecutor<ProxySessionExecutor> doBuild() {
-        ConcurrentMap<Long, ProxySessionExecutor> sessions = new MapMaker().makeMap();
-        ProxyConnectExecutor connectExecutor = ProxyConnectExecutor.create(
-                sessions,
-                getClientBuilder().getConnectionClientExecutors());
+        LongConcurrentHashMap<ProxySessionExecutor> sessions = LongConcurrentHashMap.newInstance();
+        TaskExecutor<ConnectMessage.Request, ConnectMessage.Response> connectExecutor;
+        ProxyFeatures features = getFeatures();
+        PeriodicTasks tasks = getTasks();
+        tasks.add(new DetachedSessionReaper(sessions), DetachedSessionReaper.INTERVAL_MILLIS);
+        EnsembleReloader reloader = EnsembleReloader.fromConfiguration(
+                getRuntimeModule().getConfiguration(), getClientBuilder().getServerSelector(), sessions);
+        if (reloader != null) {
+            tasks.add(reloader, EnsembleReloader.INTERVAL_MILLIS);
+        }
+        if (features.getRouter() != null) {
+            tasks.add(features.getRouter(), ReadRouter.PROBE_MILLIS);
+        }
+        BufferedPublisher publisher = getTracePublisher();
+        TraceSampler sampler = (publisher != null) ? publisher.sampler()
+                : ((features.getTracer() != null) ? features.getTracer().sampler() : null);
+        TraceSamplingReloader sampling = (sampler != null) 
+                ? TraceSamplingReloader.fromConfiguration(getRuntimeModule().getConfiguration(), sampler) : null;
+        if (sampling != null) {
+            // apply the file before the first sessions are traced
+            sampling.run();
+            tasks.add(sampling, TraceSamplingReloader.INTERVAL_MILLIS);
+        }
+        int multiplex = MultiplexConfiguration.get(getRuntimeModule().getConfiguration());
+        if (multiplex > 0) {
+            connectExecutor = MultiplexingConnectExecutor.create(
+                    sessions, 
+                    MultiplexingClientPool.newInstance(
+                            multiplex, 
+                            getClientBuilder().getConnectionClientExecutors(),
+                            getRuntimeModule().getExecutors().get(ScheduledExecutorService.class)),
+                    features);
+        } else {
+            connectExecutor = ProxyConnectExecutor.create(
+                    sessions,
+                    getClientBuilder().getConnectionClientExecutors(),
+                    features);
+        }
         return new SimpleServerExecutor<ProxySessionExecutor>(
                 sessions,
                 connectExecutor,
-                getDefaultAnonymousExecutor());
+                getDefaultAnonymousExecutor(sessions, features, getClientBuilder().getConnectionPools(), reloader, publisher, sampling));
+    }
+
+    /**
+     * @return null unless tracing through the codec
+     */
+    protected BufferedPublisher getTracePublisher() {
+        return null;
+    }
+
+    protected ProxyFeatures getDefaultFeatures() {
+        ProxyFeatures features = ProxyFeatures.none()
+                .setMetrics(ProxyMetrics.newInstance())
+                .setSelector(getClientBuilder().getServerSelector())
+                .setAdmission(AdmissionControl.fromConfiguration(getRuntimeModule().getConfiguration(), getNetModule().throttle()))
+                .setScheduler(FairScheduler.fromConfiguration(getRuntimeModule().getConfiguration()));
+        long cacheBytes = ReadCache.ReadCacheConfiguration.get(getRuntimeModule().getConfiguration());
+        if (cacheBytes > 0L) {
+            features = features.setCache(ReadCache.newInstance(cacheBytes));
+        }
+        if (ReadCoalescer.CoalesceConfiguration.get(getRuntimeModule().getConfiguration())) {
+            features = features.setCoalescer(ReadCoalescer.newInstance());
+        }
+        // multiplexed sessions already share backend watches
+        if (SharedWatches.ShareWatchesConfiguration.get(getRuntimeModule().getConfiguration())
+                && (MultiplexConfiguration.get(getRuntimeModule().getConfiguration()) <= 0)) {
+            features = features.setWatches(SharedWatches.newInstance());
+        }
+        // multiplexed sessions have no backend sessions of their own to add to
+        if (MultiplexConfiguration.get(getRuntimeModule().getConfiguration()) <= 0) {
+            ShardRouter shards = ShardRouter.fromConfiguration(
+                    getRuntimeModule().getConfiguration(),
+                    ServerViewFactories.newInstance(
+                            getClientBuilder().getClientConnectionFactory(),
+                            getRuntimeModule().getExecutors().get(ScheduledExecutorService.class)));
+            if (shards != null) {
+                features = features.setShards(shards);
+            }
+        }
+        if (getClientBuilder().getServerSelector().pinned() != null) {
+            features = features.setRouter(ReadRouter.fromConfiguration(
+                    getRuntimeModule().getConfiguration(),
+                    ServerViewFactories.newInstance(
+                            getClientBuilder().getClientConnectionFactory(),
+                            getRuntimeModule().getExecutors().get(ScheduledExecutorService.class))));
+        }
+        if (TracingProxyServerBuilder.DoTraceConfiguration.get(getRuntimeModule().getConfiguration())
+                && (BinaryTraceWriter.TraceFormatConfiguration.get(getRuntimeModule().getConfiguration()) == BinaryTraceWriter.Format.BINARY)) {
+            // started with the other services by ProxyServerBuilder
+            features = features.setTracer(BufferedTracer.fromConfiguration(
+                    getRuntimeModule().getConfiguration(), 
+                    BinaryTraceWriter.fromConfiguration(getRuntimeModule().getConfiguration())));
+        }
+        return features;
+    }
+
+    protected TaskExecutor<? super FourLetterRequest, ? extends FourLetterResponse> getDefaultAnonymousExecutor(
+            Map<Long, ?> sessions, 
+            ProxyFeatures features, 
+            WarmConnectionPool.Registry pools, 
+            EnsembleReloader reloader,
+            BufferedPublisher publisher,
+            TraceSamplingReloader sampling) {
+        return ProcessorTaskExecutor.of(new FourLetterProcessor(sessions, features, pools, reloader, publisher, sampling));
     }
 
-    protected TaskExecutor<? super FourLetterRequest, ? extends FourLetterResponse> getDefaultAnonymousExecutor() {
-        return ProcessorTaskExecutor.of(
-                new Processor<FourLetterRequest, FourLetterResponse>() {
-                    @Override
-                    public FourLetterResponse apply(
-                            FourLetterRequest input) {
-                        return FourLetterResponse.fromString(input.first().toString() + "\n");
-                    }
-                });
+    /**
+     * Answers monitoring commands from proxy metrics, 
+     * reloads the ensemble and trace sampling on <code>rlod</code>,
+     * answers <code>redy</code> with whether any backend server is usable,
+     * and echoes anything else.
+     * 
+     * The client port is only bound once a backend server was reachable,
+     * so any answer to <code>redy</code> comes after startup has finished.
+     */
+    public static class FourLetterProcessor implements Processor<FourLetterRequest, FourLetterResponse> {
+
+        protected final Map<Long, ?> sessions;
+        protected final ProxyMetrics metrics;
+        protected final ServerSelector selector;
+        protected final ReadCache cache;
+        protected final ReadCoalescer coalescer;
+        protected final AdmissionControl admission;
+        protected final FairScheduler scheduler;
+        protected final SharedWatches watches;
+        protected final ReadRouter router;
+        protected final ShardRouter shards;
+        protected final WarmConnectionPool.Registry pools;
+        protected final EnsembleReloader reloader;
+        protected final BufferedTracer tracer;
+        protected final BufferedPublisher publisher;
+        protected final TraceSamplingReloader sampling;
+
+        public FourLetterProcessor(
+                Map<Long, ?> sessions, 
+                ProxyFeatures features, 
+                WarmConnectionPool.Registry pools, 
+                EnsembleReloader reloader,
+                BufferedPublisher publisher,
+                TraceSamplingReloader sampling) {
+            this.sessions = sessions;
+            this.metrics = features.getMetrics();
+            this.selector = features.getSelector();
+            this.cache = features.getCache();
+            this.coalescer = features.getCoalescer();
+            this.admission = features.getAdmission();
+            this.scheduler = features.getScheduler();
+            this.watches = features.getWatches();
+            this.router = features.getRouter();
+            this.shards = features.getShards();
+            this.pools = pools;
+            this.reloader = reloader;
+            this.tracer = features.getTracer();
+            this.publisher = publisher;
+            this.sampling = sampling;
+        }
+
+        @Override
+        public FourLetterResponse apply(FourLetterRequest input) {
+            String word = input.first().toString();
+            StringBuilder output = new StringBuilder();
+            if ("ruok".equals(word)) {
+                output.append("imok");
+            } else if ("mntr".equals(word)) {
+                output.append("zk_version\t").append(Version.getDefault()).append('\n');
+                output.append("zk_server_state\tproxy\n");
+                output.append("zk_num_alive_connections\t").append(sessions.size()).append('\n');
+                metrics.mntr(output);
+                if (selector != null) {
+                    selector.mntr(output);
+                }
+                if (cache != null) {
+                    cache.mntr(output);
+                }
+                if (coalescer != null) {
+                    coalescer.mntr(output);
+                }
+                if (admission != null) {
+                    admission.mntr(output);
+                }
+                if (scheduler != null) {
+                    scheduler.mntr(output);
+                }
+                if (watches != null) {
+                    watches.mntr(output);
+                }
+                if (router != null) {
+                    router.mntr(output);
+                }
+                if (shards != null) {
+                    shards.mntr(output);
+                }
+                if (pools != null) {
+                    pools.mntr(output);
+                }
+                if (reloader != null) {
+                    reloader.mntr(output);
+                }
+                if (tracer != null) {
+                    tracer.mntr(output);
+                }
+                if (publisher != null) {
+                    publisher.mntr(output);
+                }
+                if (sampling != null) {
+                    sampling.mntr(output);
+                }
+            } else if ("redy".equals(word)) {
+                output.append(((selector == null) || selector.isAvailable()) ? "ready" : "not ready").append('\n');
+            } else if ("rlod".equals(word)) {
+                if ((reloader == null) && (sampling == null)) {
+                    output.append("no servers or sampling file\n");
+                }
+                if (reloader != null) {
+                    output.append(reloader.reload()).append('\n');
+                }
+                if (sampling != null) {
+                    output.append(sampling.reload()).append('\n');
+                }
+            } else if ("stat".equals(word) || "srvr".equals(word)) {
+                output.append(Version.getProjectName()).append(" version: ").append(Version.getDefault()).append('\n');
+                metrics.stat(output);
+                output.append("Connections: ").append(sessions.size()).append('\n');
+                output.append("Mode: proxy\n");
+            } else {
+                output.append(word).append('\n');
+            }
+            return FourLetterResponse.fromString(output.toString());
+        }
     }
 }
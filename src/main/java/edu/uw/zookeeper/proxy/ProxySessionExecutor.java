@@ -1,40 +1,299 @@
 package edu.uw.zookeeper.proxy;
 
+import java.net.SocketAddress;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.zookeeper.KeeperException;
+
+import com.google.common.base.Function;
+import com.google.common.base.Objects;
+import com.google.common.collect.Queues;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
 
+import edu.uw.zookeeper.common.Automaton;
+import edu.uw.zookeeper.protocol.ConnectMessage;
 import edu.uw.zookeeper.protocol.Message;
+import edu.uw.zookeeper.protocol.Operation;
+import edu.uw.zookeeper.protocol.ProtocolResponseMessage;
 import edu.uw.zookeeper.protocol.ProtocolState;
 import edu.uw.zookeeper.protocol.Session;
 import edu.uw.zookeeper.protocol.SessionListener;
 import edu.uw.zookeeper.protocol.client.MessageClientExecutor;
+import edu.uw.zookeeper.protocol.client.ZxidTracker;
+import edu.uw.zookeeper.protocol.proto.IAuthRequest;
+import edu.uw.zookeeper.protocol.proto.IErrorResponse;
+import edu.uw.zookeeper.protocol.proto.IWatcherEvent;
+import edu.uw.zookeeper.protocol.proto.OpCode;
+import edu.uw.zookeeper.protocol.proto.Records;
 import edu.uw.zookeeper.protocol.server.SessionExecutor;
 
-public class ProxySessionExecutor implements SessionExecutor {
+/**
+ * Frontend session backed by its own backend session.
+ *
+ * The session outlives the frontend connection:
+ * notifications that arrive while no connection is attached are buffered
+ * and delivered to the next connection that renews the session.
+ */
+public class ProxySessionExecutor implements SessionExecutor, SessionListener {
+
+    // notifications kept while detached
+    public static final int MAX_BUFFERED = 1024;
+
+    // pending-request slots per session, a power of two
+    public static final int PENDING_SLOTS = 16;
+
+    protected static final Executor SAME_THREAD = MoreExecutors.sameThreadExecutor();
+
+    protected static final Function<ConnectMessage.Response, Session> SESSION = new Function<ConnectMessage.Response, Session>() {
+        @Override
+        public Session apply(ConnectMessage.Response input) {
+            return input.toSession();
+        }
+    };
 
     public static ProxySessionExecutor newInstance(MessageClientExecutor<?> client) {
-        return new ProxySessionExecutor(client);
+        return newInstance(client, ProxyFeatures.none());
+    }
+
+    public static ProxySessionExecutor newInstance(MessageClientExecutor<?> client, ProxyFeatures features) {
+        ProxySessionExecutor executor = new ProxySessionExecutor(client, features);
+        client.subscribe(executor);
+        if (features.getCache() != null) {
+            client.subscribe(executor.new CacheListener());
+        }
+        return executor;
     }
 
     protected final MessageClientExecutor<?> client;
-    
+    protected final ListenableFuture<Session> connected;
+    protected volatile Session session;
+    protected final ProxyFeatures features;
+    protected final ZxidTracker zxids;
+    protected final AtomicInteger pending;
+    protected volatile long sequence;
+    protected final Set<SessionListener> listeners;
+    // guarded by listeners
+    protected final Queue<Operation.ProtocolResponse<IWatcherEvent>> buffered;
+    protected volatile long detachedSince;
+    // guarded by listeners
+    protected boolean expired;
+    // null if not rate limited
+    protected final AdmissionControl.TokenBucket bucket;
+    // created on first use
+    protected FairScheduler.Dispatcher dispatcher;
+    // most recently returned to the caller, which every later response is ordered after
+    protected volatile ListenableFuture<Message.ServerResponse<?>> tail;
+    // null if not sharded
+    protected final ShardRouter.Sessions shards;
+    // created on first use, indexed by xid
+    protected ResponseCallback[] slots;
+    // credentials sent by the client so far
+    protected volatile String auth;
+
     public ProxySessionExecutor(
             MessageClientExecutor<?> client) {
+        this(client, ProxyFeatures.none());
+    }
+
+    public ProxySessionExecutor(
+            MessageClientExecutor<?> client,
+            ProxyFeatures features) {
+        this(client, Futures.transform(client.session(), SESSION), features);
+    }
+
+    protected ProxySessionExecutor(
+            MessageClientExecutor<?> client,
+            ListenableFuture<Session> connected,
+            ProxyFeatures features) {
         this.client = client;
+        this.session = null;
+        this.connected = connected;
+        this.features = features;
+        this.zxids = ZxidTracker.zero();
+        this.pending = new AtomicInteger(0);
+        this.sequence = 0L;
+        this.listeners = new CopyOnWriteArraySet<SessionListener>();
+        this.buffered = Queues.newArrayDeque();
+        this.detachedSince = System.nanoTime();
+        this.expired = false;
+        this.bucket = (features.getAdmission() != null) ? features.getAdmission().newBucket() : null;
+        this.dispatcher = null;
+        this.tail = null;
+        this.shards = (features.getShards() != null) ? features.getShards().newSessions(this) : null;
+        this.slots = null;
+        this.auth = "";
+        Futures.addCallback(connected, new FutureCallback<Session>() {
+            @Override
+            public void onSuccess(Session result) {
+                session = result;
+            }
+            @Override
+            public void onFailure(Throwable t) {
+            }
+        });
     }
 
+    /**
+     * Never blocks.
+     * 
+     * @throws IllegalStateException if the backend session is not yet established
+     */
     @Override
     public Session session() {
-        try {
-            return client.session().get().toSession();
-        } catch (Exception e) {
-            throw new AssertionError(e);
+        Session session = this.session;
+        if (session == null) {
+            if (!connected.isDone()) {
+                throw new IllegalStateException("session pending");
+            }
+            session = Futures.getUnchecked(connected);
         }
+        return session;
     }
 
-    
+    public ListenableFuture<Session> connected() {
+        return connected;
+    }
+
+    /**
+     * Identifies the credentials this session has sent, in order,
+     * so sessions that authenticated the same way can share responses.
+     * 
+     * @return empty if unauthenticated
+     */
+    public String auth() {
+        return auth;
+    }
+
+
     @Override
     public ListenableFuture<Message.ServerResponse<?>> submit(Message.ClientRequest<?> request) {
-        return client.submit(request);
+        ProxyMetrics metrics = features.getMetrics();
+        long start = (metrics != null) ? metrics.started() : System.nanoTime();
+        BufferedTracer tracer = features.getTracer();
+        if (tracer != null) {
+            tracer.request(session().id(), request, start);
+        }
+        KeeperException.Code unsupported = unsupported(request.record());
+        if (unsupported != null) {
+            return reject(request, unsupported, start);
+        }
+        if (request.record().opcode() == OpCode.AUTH) {
+            // the backend applies credentials in order, so later requests are sent with them
+            IAuthRequest record = (IAuthRequest) request.record();
+            auth = new StringBuilder(auth).append(auth.isEmpty() ? "" : ",")
+                    .append(record.getScheme()).append(':')
+                    .append(BaseEncoding.base16().encode(record.getAuth())).toString();
+        }
+        ShardRouter.Shard shard = null;
+        if (shards != null) {
+            ShardRouter sharding = features.getShards();
+            if (!sharding.isSingleShard(request.record())) {
+                return reject(request, KeeperException.Code.BADARGUMENTS, start);
+            }
+            shard = sharding.shard(request.record());
+            if (request.record().opcode() == OpCode.CLOSE_SESSION) {
+                shards.close(request);
+            } else if (request.record().opcode() == OpCode.AUTH) {
+                shards.auth(request);
+            }
+        }
+        ReadCoalescer coalescer = features.getCoalescer();
+        // responses must be in request order, so only short-circuit an idle session
+        if ((shard == null) && isIdle()) {
+            ReadCache cache = features.getCache();
+            if (cache != null) {
+                Message.ServerResponse<?> cached = cache.get(request, auth, zxids.get());
+                if (cached != null) {
+                    if (tracer != null) {
+                        tracer.response(session().id(), request, cached, System.nanoTime());
+                    }
+                    if (metrics != null) {
+                        metrics.completed(request.record().opcode(), start, ProxyMetrics.LatencyType.SHARED);
+                    }
+                    return Futures.<Message.ServerResponse<?>>immediateFuture(cached);
+                }
+            }
+            if (coalescer != null) {
+                ListenableFuture<Message.ServerResponse<?>> shared = coalescer.join(server(), auth, request, sequence);
+                if (shared != null) {
+                    return ordered(track(request, shared, start, null, 0L, null, -1));
+                }
+            }
+        }
+        int bytes = -1;
+        AdmissionControl admission = features.getAdmission();
+        if (admission != null) {
+            bytes = AdmissionControl.estimateBytes(request);
+            KeeperException.Code error = admission.admit(pending.get(), bucket, bytes);
+            if (error != null) {
+                return reject(request, error, start);
+            }
+        }
+        if (shard != null) {
+            return ordered(track(request, shards.submit(shard, request), new ShardCallback(request, start, bytes)));
+        }
+        ReadRouter router = features.getRouter();
+        // like short-circuits, only an idle session can read elsewhere without reordering,
+        // and only an unauthenticated one, as read servers are read through unauthenticated sessions
+        ReadRouter.Replica replica = ((router != null) && auth.isEmpty() && isIdle() && ReadCoalescer.isCoalescable(request.record()))
+                ? router.select(zxids.get()) : null;
+        SocketAddress server = (replica != null) ? replica.address() : server();
+        long sent = (metrics != null) ? metrics.forwarded(server) : System.nanoTime();
+        ServerSelector selector = features.getSelector();
+        ServerSelector.ServerHealth health = (selector != null) ? selector.health(server) : null;
+        if (health != null) {
+            health.started();
+        }
+        if (replica != null) {
+            return ordered(track(request, replica.submit(request), start, server, sent, health, bytes));
+        }
+        if (coalescer != null) {
+            long next = coalescer.next();
+            ListenableFuture<Message.ServerResponse<?>> future = dispatch(request);
+            coalescer.register(server, auth, request, future, next);
+            return ordered(track(request, future, start, server, sent, health, bytes));
+        } else {
+            return ordered(track(request, dispatch(request), start, server, sent, health, bytes));
+        }
+    }
+
+    /**
+     * @return the error to answer with if this session cannot forward the request, or null
+     */
+    protected KeeperException.Code unsupported(Records.Request record) {
+        return null;
+    }
+
+    /**
+     * No response is outstanding, so one can be answered out of band without reordering.
+     */
+    protected boolean isIdle() {
+        ListenableFuture<Message.ServerResponse<?>> tail = this.tail;
+        return (pending.get() == 0) && ((tail == null) || tail.isDone());
+    }
+
+    /**
+     * Orders a response after every response returned before it,
+     * whichever backend, shard or replica each came from.
+     */
+    protected ListenableFuture<Message.ServerResponse<?>> ordered(
+            ListenableFuture<Message.ServerResponse<?>> future) {
+        ListenableFuture<Message.ServerResponse<?>> ordered = after(tail, future);
+        tail = ordered;
+        return ordered;
     }
 
     @Override
@@ -42,13 +301,464 @@ public class ProxySessionExecutor implements SessionExecutor {
         return client.connection().codec().state();
     }
 
+    /**
+     * Attaches a frontend connection, replaying notifications buffered while detached.
+     */
     @Override
     public void subscribe(SessionListener listener) {
-        client.subscribe(listener);
+        synchronized (listeners) {
+            if (listeners.add(listener) && (listeners.size() == 1)) {
+                Operation.ProtocolResponse<IWatcherEvent> notification;
+                while ((notification = buffered.poll()) != null) {
+                    listener.handleNotification(notification);
+                }
+            }
+        }
     }
 
     @Override
     public boolean unsubscribe(SessionListener listener) {
-        return client.unsubscribe(listener);
+        synchronized (listeners) {
+            boolean removed = listeners.remove(listener);
+            if (removed && listeners.isEmpty()) {
+                detachedSince = System.nanoTime();
+            }
+            return removed;
+        }
+    }
+
+    public boolean isAttached() {
+        return !listeners.isEmpty();
+    }
+
+    /**
+     * @return nanoTime when the last frontend connection went away, only meaningful if not attached
+     */
+    public long detachedSince() {
+        return detachedSince;
+    }
+
+    /**
+     * Restarts the detached timeout for a client that is reattaching,
+     * so the session is not expired before its connection attaches.
+     * 
+     * @return false if the session was already expired
+     */
+    public boolean renewed() {
+        synchronized (listeners) {
+            if (expired) {
+                return false;
+            }
+            detachedSince = System.nanoTime();
+            return true;
+        }
+    }
+
+    /**
+     * Removes and expires this session if it has been detached for longer than its timeout.
+     * Checked under the same lock as attaching and renewing, so a reattaching client wins.
+     * 
+     * @return true if expired
+     */
+    public boolean expireIfDetached(LongConcurrentHashMap<ProxySessionExecutor> executors, long now) {
+        synchronized (listeners) {
+            if (expired || !listeners.isEmpty()) {
+                return false;
+            }
+            long timeout = TimeUnit.MILLISECONDS.toNanos(session().parameters().timeOut());
+            if ((now - detachedSince <= timeout) || !executors.remove(session().id(), this)) {
+                return false;
+            }
+            expired = true;
+        }
+        expire();
+        return true;
+    }
+
+    /**
+     * Gives up a session whose client did not come back.
+     *
+     * The backend connection is closed so the backend expires the session as it would a lost client.
+     */
+    public void expire() {
+        client.connection().close();
+        if (shards != null) {
+            shards.expire();
+        }
+    }
+
+    @Override
+    public String toString() {
+        // not session(), which throws until connected
+        return Objects.toStringHelper(this)
+                .add("session", session)
+                .add("pending", pending.get()).toString();
+    }
+
+    @Override
+    public void handleAutomatonTransition(Automaton.Transition<ProtocolState> transition) {
+        SharedWatches watches = features.getWatches();
+        if ((watches != null) && (transition.from() == ProtocolState.CONNECTED)) {
+            // backend watches of this session are gone
+            watches.lost(this);
+        }
+        for (SessionListener listener: listeners) {
+            listener.handleAutomatonTransition(transition);
+        }
+    }
+
+    @Override
+    public void handleNotification(
+            Operation.ProtocolResponse<IWatcherEvent> notification) {
+        ReadCache cache = features.getCache();
+        if (cache != null) {
+            // before delivering, so the client's re-read cannot hit the stale entry
+            cache.invalidate(notification.record());
+        }
+        SharedWatches watches = features.getWatches();
+        if ((watches != null) && watches.notify(this, server(), notification)) {
+            return;
+        }
+        deliver(notification);
+    }
+
+    /**
+     * Delivers a notification that did not come through this session's backend session,
+     * after dropping any cached read it makes stale.
+     */
+    public void changed(
+            Operation.ProtocolResponse<IWatcherEvent> notification) {
+        ReadCache cache = features.getCache();
+        if (cache != null) {
+            cache.invalidate(notification.record());
+        }
+        deliver(notification);
+    }
+
+    /**
+     * Delivers to the attached frontend connection, or buffers until one attaches.
+     */
+    public void deliver(
+            Operation.ProtocolResponse<IWatcherEvent> notification) {
+        synchronized (listeners) {
+            if (listeners.isEmpty()) {
+                if (buffered.size() >= MAX_BUFFERED) {
+                    buffered.poll();
+                }
+                buffered.add(notification);
+                return;
+            }
+        }
+        for (SessionListener listener: listeners) {
+            listener.handleNotification(notification);
+        }
+    }
+
+    protected SocketAddress server() {
+        return client.connection().remoteAddress();
+    }
+
+    protected ListenableFuture<Message.ServerResponse<?>> forward(Message.ClientRequest<?> request) {
+        return client.submit(request);
+    }
+
+    /**
+     * Forwards through shared watches and the scheduler, if any.
+     */
+    protected ListenableFuture<Message.ServerResponse<?>> dispatch(Message.ClientRequest<?> request) {
+        SharedWatches watches = features.getWatches();
+        if (watches != null) {
+            return watches.submit(this, server(), request, dispatcher());
+        }
+        return dispatcher().dispatch(request);
+    }
+
+    protected FairScheduler.Dispatcher dispatcher() {
+        if (dispatcher == null) {
+            FairScheduler.Dispatcher forward = new FairScheduler.Dispatcher() {
+                @Override
+                public ListenableFuture<Message.ServerResponse<?>> dispatch(Message.ClientRequest<?> request) {
+                    return forward(request);
+                }
+            };
+            final FairScheduler scheduler = features.getScheduler();
+            if (scheduler == null) {
+                dispatcher = forward;
+            } else {
+                final FairScheduler.SessionQueue queue = scheduler.newQueue(forward);
+                dispatcher = new FairScheduler.Dispatcher() {
+                    @Override
+                    public ListenableFuture<Message.ServerResponse<?>> dispatch(Message.ClientRequest<?> request) {
+                        return scheduler.submit(queue, request);
+                    }
+                };
+            }
+        }
+        return dispatcher;
+    }
+
+    /**
+     * Answers without forwarding, after any outstanding responses so order is kept.
+     */
+    protected ListenableFuture<Message.ServerResponse<?>> reject(
+            Message.ClientRequest<?> request,
+            KeeperException.Code error,
+            long start) {
+        Message.ServerResponse<?> response = ProtocolResponseMessage.of(
+                request.xid(), zxids.get(), new IErrorResponse(error));
+        BufferedTracer tracer = features.getTracer();
+        if (tracer != null) {
+            tracer.response(session().id(), request, response, System.nanoTime());
+        }
+        ProxyMetrics metrics = features.getMetrics();
+        if (metrics != null) {
+            metrics.completed(request.record().opcode(), start);
+        }
+        return ordered(Futures.<Message.ServerResponse<?>>immediateFuture(response));
+    }
+
+    /**
+     * Holds back a response until the previous one has been answered.
+     */
+    protected ListenableFuture<Message.ServerResponse<?>> after(
+            ListenableFuture<Message.ServerResponse<?>> previous,
+            final ListenableFuture<Message.ServerResponse<?>> future) {
+        if ((previous == null) || previous.isDone()) {
+            return future;
+        }
+        final SettableFuture<Message.ServerResponse<?>> ordered = SettableFuture.create();
+        previous.addListener(new Runnable() {
+            @Override
+            public void run() {
+                Futures.addCallback(future, new FutureCallback<Message.ServerResponse<?>>() {
+                    @Override
+                    public void onSuccess(Message.ServerResponse<?> result) {
+                        ordered.set(result);
+                    }
+                    @Override
+                    public void onFailure(Throwable t) {
+                        ordered.setException(t);
+                    }
+                });
+            }
+        }, SAME_THREAD);
+        return ordered;
+    }
+
+    /**
+     * @param server null if the response is shared with another session's request
+     * @param bytes admitted request bytes, or negative if not admitted
+     */
+    protected ListenableFuture<Message.ServerResponse<?>> track(
+            Message.ClientRequest<?> request, 
+            ListenableFuture<Message.ServerResponse<?>> future,
+            long start,
+            SocketAddress server,
+            long sent,
+            ServerSelector.ServerHealth health,
+            int bytes) {
+        return track(request, future, slot(request.xid()).set(request, start, server, sent, health, bytes));
+    }
+
+    protected ListenableFuture<Message.ServerResponse<?>> track(
+            Message.ClientRequest<?> request, 
+            ListenableFuture<Message.ServerResponse<?>> future,
+            ResponseCallback callback) {
+        pending.incrementAndGet();
+        // same-thread callback, so cache updates stay ordered with notifications
+        callback.listen(future);
+        return future;
+    }
+
+    /**
+     * Pending-request slots are reused by xid, so a steady stream of requests allocates no callbacks.
+     * 
+     * Falls back to a new callback if the xid's slot is still in use.
+     */
+    protected ResponseCallback slot(int xid) {
+        ResponseCallback[] slots = this.slots;
+        if (slots == null) {
+            slots = new ResponseCallback[PENDING_SLOTS];
+            this.slots = slots;
+        }
+        int index = xid & (PENDING_SLOTS - 1);
+        ResponseCallback slot = slots[index];
+        if (slot == null) {
+            slot = new ResponseCallback();
+            slots[index] = slot;
+        } else if (slot.isPending()) {
+            slot = new ResponseCallback();
+        }
+        return slot;
+    }
+
+    /**
+     * Reusable once its response has been handled.
+     * 
+     * Fields are written by the submitting thread before the future is published
+     * and cleared by the completing thread before the future is unpublished.
+     */
+    protected class ResponseCallback implements FutureCallback<Message.ServerResponse<?>>, Runnable {
+
+        protected Message.ClientRequest<?> request;
+        protected long start;
+        protected SocketAddress server;
+        protected long sent;
+        protected ServerSelector.ServerHealth health;
+        protected int bytes;
+        // null when free
+        protected volatile ListenableFuture<Message.ServerResponse<?>> future;
+
+        public ResponseCallback() {
+            this.request = null;
+            this.start = 0L;
+            this.server = null;
+            this.sent = 0L;
+            this.health = null;
+            this.bytes = -1;
+            this.future = null;
+        }
+
+        public ResponseCallback set(
+                Message.ClientRequest<?> request,
+                long start,
+                SocketAddress server,
+                long sent,
+                ServerSelector.ServerHealth health,
+                int bytes) {
+            this.request = request;
+            this.start = start;
+            this.server = server;
+            this.sent = sent;
+            this.health = health;
+            this.bytes = bytes;
+            return this;
+        }
+
+        public boolean isPending() {
+            return (future != null);
+        }
+
+        public void listen(ListenableFuture<Message.ServerResponse<?>> future) {
+            this.future = future;
+            future.addListener(this, SAME_THREAD);
+        }
+
+        @Override
+        public void run() {
+            ListenableFuture<Message.ServerResponse<?>> future = this.future;
+            try {
+                Message.ServerResponse<?> result;
+                try {
+                    result = Uninterruptibles.getUninterruptibly(future);
+                } catch (ExecutionException e) {
+                    onFailure(e.getCause());
+                    return;
+                } catch (CancellationException e) {
+                    onFailure(e);
+                    return;
+                }
+                onSuccess(result);
+            } finally {
+                // even if a listener above threw
+                released();
+                request = null;
+                server = null;
+                health = null;
+                this.future = null;
+            }
+        }
+
+        @Override
+        public void onSuccess(Message.ServerResponse<?> result) {
+            BufferedTracer tracer = features.getTracer();
+            if (tracer != null) {
+                tracer.response(session().id(), request, result, System.nanoTime());
+            }
+            if (health != null) {
+                health.completed(System.nanoTime() - sent);
+            }
+            ProxyMetrics metrics = features.getMetrics();
+            if (metrics != null) {
+                if (server == null) {
+                    // joined another session's read
+                    metrics.completed(request.record().opcode(), start, ProxyMetrics.LatencyType.SHARED);
+                } else {
+                    metrics.completed(request.record().opcode(), server, start, sent, 
+                            (result.record() instanceof Operation.Error));
+                }
+            }
+            zxids.update(result.zxid());
+            ReadCoalescer coalescer = features.getCoalescer();
+            if (coalescer != null) {
+                sequence = coalescer.sequence();
+            }
+            ReadCache cache = features.getCache();
+            if (cache != null) {
+                // at worst filled under credentials sent since the request, which only add rights
+                cache.put(session().id(), auth, request, result);
+            }
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+            if (health != null) {
+                health.failed();
+            }
+            ProxyMetrics metrics = features.getMetrics();
+            if (metrics != null) {
+                metrics.failed(server);
+            }
+        }
+
+        protected void released() {
+            if (bytes >= 0) {
+                features.getAdmission().release(bytes);
+            }
+            pending.decrementAndGet();
+        }
+    }
+
+    /**
+     * For a response from another ensemble, whose zxids mean nothing to our own backend session.
+     */
+    protected class ShardCallback extends ResponseCallback {
+
+        public ShardCallback(
+                Message.ClientRequest<?> request,
+                long start,
+                int bytes) {
+            set(request, start, null, 0L, null, bytes);
+        }
+
+        @Override
+        public void onSuccess(Message.ServerResponse<?> result) {
+            BufferedTracer tracer = features.getTracer();
+            if (tracer != null) {
+                tracer.response(session().id(), request, result, System.nanoTime());
+            }
+            ProxyMetrics metrics = features.getMetrics();
+            if (metrics != null) {
+                // the other ensemble's round trip is not timed apart from the client latency
+                metrics.completed(request.record().opcode(), start, null);
+            }
+        }
+    }
+
+    protected class CacheListener implements SessionListener {
+
+        @Override
+        public void handleAutomatonTransition(Automaton.Transition<ProtocolState> transition) {
+            // notifications may be missed while not connected
+            if (transition.to() != ProtocolState.CONNECTED) {
+                features.getCache().invalidate(session().id());
+            }
+        }
+
+        @Override
+        public void handleNotification(
+                Operation.ProtocolResponse<IWatcherEvent> notification) {
+            // invalidated by the session before it delivers
+        }
     }
 }
@@ -0,0 +1,323 @@
+package edu.uw.zookeeper.proxy;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
+
+import com.google.common.base.Function;
+import com.google.common.base.Objects;
+import com.typesafe.config.ConfigValueType;
+
+import edu.uw.zookeeper.common.Configurable;
+import edu.uw.zookeeper.common.Configuration;
+import edu.uw.zookeeper.protocol.Message;
+import edu.uw.zookeeper.protocol.Operation;
+import edu.uw.zookeeper.protocol.ProtocolResponseMessage;
+import edu.uw.zookeeper.protocol.proto.IExistsResponse;
+import edu.uw.zookeeper.protocol.proto.IGetChildren2Response;
+import edu.uw.zookeeper.protocol.proto.IGetChildrenResponse;
+import edu.uw.zookeeper.protocol.proto.IGetDataResponse;
+import edu.uw.zookeeper.protocol.proto.IWatcherEvent;
+import edu.uw.zookeeper.protocol.proto.OpCode;
+import edu.uw.zookeeper.protocol.proto.Records;
+
+/**
+ * Byte-bounded LRU cache of read responses.
+ *
+ * Only responses to watched reads are cached, so every entry is backed by a
+ * backend watch held by its owning session. An entry is dropped when that watch fires
+ * or when the owning session goes away. Znode data is kept in direct buffers.
+ *
+ * Responses carry no ACL, so an entry is only returned to sessions
+ * that sent the same credentials as the session whose read filled it.
+ * 
+ * Note that a data watch does not fire on child changes, so the child counters
+ * in the stat of a cached getData or exists response may lag behind.
+ */
+public class ReadCache {
+
+    public static ReadCache newInstance(long maxBytes) {
+        return new ReadCache(maxBytes, PooledByteBufAllocator.DEFAULT);
+    }
+
+    @Configurable(arg="cache", key="readCacheBytes", value="0", type=ConfigValueType.NUMBER, help="bytes of read responses to cache (0 to disable)")
+    public static class ReadCacheConfiguration implements Function<Configuration, Long> {
+
+        public static Long get(Configuration configuration) {
+            return new ReadCacheConfiguration().apply(configuration);
+        }
+
+        @Override
+        public Long apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getLong(configurable.key());
+        }
+    }
+
+    public static boolean isCacheable(OpCode opcode) {
+        switch (opcode) {
+        case EXISTS:
+        case GET_DATA:
+        case GET_CHILDREN:
+        case GET_CHILDREN2:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    // rough per-entry overhead for the key, entry and map node
+    protected static final int ENTRY_OVERHEAD = 128;
+    // rough heap size of a Stat
+    protected static final int STAT_BYTES = 88;
+    // rough heap size of a String and its list slot, apart from its characters
+    protected static final int STRING_OVERHEAD = 48;
+
+    /**
+     * Rough heap size of a cached response record.
+     */
+    public static long weigh(Records.Response record) {
+        long weight = 16L;
+        if (record instanceof IGetChildrenResponse) {
+            weight += weigh(((IGetChildrenResponse) record).getChildren());
+        } else if (record instanceof IGetChildren2Response) {
+            weight += weigh(((IGetChildren2Response) record).getChildren()) + STAT_BYTES;
+        } else if (record instanceof IExistsResponse) {
+            weight += STAT_BYTES;
+        }
+        return weight;
+    }
+
+    protected static long weigh(List<String> children) {
+        long weight = 16L;
+        if (children != null) {
+            for (String child: children) {
+                weight += STRING_OVERHEAD + 2L * child.length();
+            }
+        }
+        return weight;
+    }
+
+    protected final long maxBytes;
+    protected final ByteBufAllocator allocator;
+    protected final LinkedHashMap<Key, Entry> entries;
+    protected long bytes;
+    protected long hits;
+    protected long misses;
+
+    protected ReadCache(long maxBytes, ByteBufAllocator allocator) {
+        this.maxBytes = maxBytes;
+        this.allocator = allocator;
+        this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+        this.bytes = 0L;
+        this.hits = 0L;
+        this.misses = 0L;
+    }
+
+    /**
+     * @param auth credentials of the requesting session, as in {@link ProxySessionExecutor#auth()}
+     * @param zxid highest zxid already seen by the requesting session
+     * @return null on a miss
+     */
+    public Message.ServerResponse<?> get(Message.ClientRequest<?> request, String auth, long zxid) {
+        Records.Request record = request.record();
+        if (!isCacheable(record.opcode()) || ((Records.WatchGetter) record).getWatch()) {
+            return null;
+        }
+        Key key = new Key(record.opcode(), ((Records.PathGetter) record).getPath());
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if ((entry == null) || (entry.zxid < zxid) || !entry.auth.equals(auth)) {
+                misses++;
+                return null;
+            }
+            hits++;
+            return ProtocolResponseMessage.of(request.xid(), entry.zxid, entry.toRecord());
+        }
+    }
+
+    public void put(long owner, String auth, Message.ClientRequest<?> request, Message.ServerResponse<?> response) {
+        Records.Request record = request.record();
+        if (!isCacheable(record.opcode())
+                || !((Records.WatchGetter) record).getWatch()
+                || (response.record() instanceof Operation.Error)) {
+            return;
+        }
+        Key key = new Key(record.opcode(), ((Records.PathGetter) record).getPath());
+        Entry entry;
+        if (record.opcode() == OpCode.GET_DATA) {
+            IGetDataResponse data = (IGetDataResponse) response.record();
+            byte[] bytes = data.getData();
+            ByteBuf buf = allocator.directBuffer((bytes == null) ? 0 : bytes.length);
+            if (bytes != null) {
+                buf.writeBytes(bytes);
+            }
+            entry = new Entry(owner, auth, response.zxid(), data.getStat(), buf, null);
+        } else {
+            entry = new Entry(owner, auth, response.zxid(), null, null, response.record());
+        }
+        synchronized (this) {
+            Entry prev = entries.get(key);
+            if ((prev != null) && (prev.zxid > entry.zxid)) {
+                entry.release();
+                return;
+            }
+            remove(key);
+            entries.put(key, entry);
+            bytes += entry.weight(key);
+            Iterator<Map.Entry<Key, Entry>> itr = entries.entrySet().iterator();
+            while ((bytes > maxBytes) && itr.hasNext()) {
+                Map.Entry<Key, Entry> next = itr.next();
+                itr.remove();
+                bytes -= next.getValue().weight(next.getKey());
+                next.getValue().release();
+            }
+        }
+    }
+
+    public void invalidate(IWatcherEvent event) {
+        String path = event.getPath();
+        if (path == null) {
+            return;
+        }
+        Watcher.Event.EventType type = Watcher.Event.EventType.fromInt(event.getType());
+        if (type == Watcher.Event.EventType.None) {
+            return;
+        }
+        // any change to a znode changes its stat, which every cached read includes
+        synchronized (this) {
+            for (OpCode opcode: new OpCode[]{OpCode.EXISTS, OpCode.GET_DATA, OpCode.GET_CHILDREN, OpCode.GET_CHILDREN2}) {
+                remove(new Key(opcode, path));
+            }
+        }
+    }
+
+    public synchronized void invalidate(long owner) {
+        Iterator<Map.Entry<Key, Entry>> itr = entries.entrySet().iterator();
+        while (itr.hasNext()) {
+            Map.Entry<Key, Entry> next = itr.next();
+            if (next.getValue().owner == owner) {
+                itr.remove();
+                bytes -= next.getValue().weight(next.getKey());
+                next.getValue().release();
+            }
+        }
+    }
+
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized StringBuilder mntr(StringBuilder output) {
+        output.append("zk_proxy_cache_entries\t").append(entries.size()).append('\n');
+        output.append("zk_proxy_cache_bytes\t").append(bytes).append('\n');
+        output.append("zk_proxy_cache_hits\t").append(hits).append('\n');
+        output.append("zk_proxy_cache_misses\t").append(misses).append('\n');
+        return output;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return Objects.toStringHelper(this)
+                .add("entries", entries.size())
+                .add("bytes", bytes)
+                .add("hits", hits)
+                .add("misses", misses).toString();
+    }
+
+    protected void remove(Key key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            bytes -= entry.weight(key);
+            entry.release();
+        }
+    }
+
+    protected static final class Key {
+
+        protected final OpCode opcode;
+        protected final String path;
+
+        public Key(OpCode opcode, String path) {
+            this.opcode = opcode;
+            this.path = path;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * opcode.hashCode() + path.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return (opcode == other.opcode) && path.equals(other.path);
+        }
+    }
+
+    protected static final class Entry {
+
+        protected final long owner;
+        protected final String auth;
+        protected final long zxid;
+        protected final Stat stat;
+        protected final ByteBuf data;
+        protected final Records.Response record;
+        // of the response, apart from the key
+        protected final long bytes;
+
+        public Entry(long owner, String auth, long zxid, Stat stat, ByteBuf data, Records.Response record) {
+            this.owner = owner;
+            this.auth = auth;
+            this.zxid = zxid;
+            this.stat = stat;
+            this.data = data;
+            this.record = record;
+            this.bytes = (data != null) ? (data.capacity() + STAT_BYTES) : weigh(record);
+        }
+
+        public long weight(Key key) {
+            return ENTRY_OVERHEAD + 2L * key.path.length() + bytes;
+        }
+
+        public Records.Response toRecord() {
+            if (data != null) {
+                byte[] bytes = new byte[data.readableBytes()];
+                data.getBytes(data.readerIndex(), bytes);
+                return new IGetDataResponse(bytes, stat);
+            } else {
+                return record;
+            }
+        }
+
+        public void release() {
+            if (data != null) {
+                data.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package edu.uw.zookeeper.proxy;
+
+import java.net.SocketAddress;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Function;
+import com.google.common.base.Objects;
+import com.google.common.collect.MapMaker;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.typesafe.config.ConfigValueType;
+
+import edu.uw.zookeeper.common.Configurable;
+import edu.uw.zookeeper.common.Configuration;
+import edu.uw.zookeeper.protocol.Message;
+import edu.uw.zookeeper.protocol.ProtocolResponseMessage;
+import edu.uw.zookeeper.protocol.proto.OpCode;
+import edu.uw.zookeeper.protocol.proto.Records;
+
+/**
+ * Shares one backend request among identical concurrent unwatched reads.
+ *
+ * A read only joins an in-flight request that was sent to the same server after
+ * the joining session received its last response, so the shared response
+ * can not be older than anything the joining session has already seen.
+ * It also only joins a request sent with the same credentials,
+ * as in {@link ProxySessionExecutor#auth()}, so it is answered as the joining session would be.
+ */
+public class ReadCoalescer {
+
+    public static ReadCoalescer newInstance() {
+        return new ReadCoalescer();
+    }
+
+    @Configurable(arg="coalesce", key="coalesceReads", value="false", type=ConfigValueType.BOOLEAN)
+    public static class CoalesceConfiguration implements Function<Configuration, Boolean> {
+
+        public static Boolean get(Configuration configuration) {
+            return new CoalesceConfiguration().apply(configuration);
+        }
+
+        @Override
+        public Boolean apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getBoolean(configurable.key());
+        }
+    }
+
+    public static boolean isCoalescable(Records.Request record) {
+        switch (record.opcode()) {
+        case EXISTS:
+        case GET_DATA:
+        case GET_CHILDREN:
+        case GET_CHILDREN2:
+            return !((Records.WatchGetter) record).getWatch();
+        default:
+            return false;
+        }
+    }
+
+    protected final ConcurrentMap<Key, InFlight> inflight;
+    protected final AtomicLong sequence;
+    protected final AtomicLong issued;
+    protected final AtomicLong coalesced;
+
+    protected ReadCoalescer() {
+        this.inflight = new MapMaker().makeMap();
+        this.sequence = new AtomicLong(0L);
+        this.issued = new AtomicLong(0L);
+        this.coalesced = new AtomicLong(0L);
+    }
+
+    public long sequence() {
+        return sequence.get();
+    }
+
+    /**
+     * Must be called before the request is sent.
+     */
+    public long next() {
+        return sequence.incrementAndGet();
+    }
+
+    public long issued() {
+        return issued.get();
+    }
+
+    public long coalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * @param seen value of {@link #sequence()} when the session received its last response
+     * @return null if there is no request to join
+     */
+    public ListenableFuture<Message.ServerResponse<?>> join(
+            SocketAddress server, String auth, Message.ClientRequest<?> request, long seen) {
+        Records.Request record = request.record();
+        if (!isCoalescable(record)) {
+            return null;
+        }
+        InFlight shared = inflight.get(new Key(server, auth, record.opcode(), ((Records.PathGetter) record).getPath()));
+        if ((shared == null) || (shared.sequence <= seen)) {
+            return null;
+        }
+        coalesced.incrementAndGet();
+        return Futures.transform(shared.future, new XidFunction(request.xid()));
+    }
+
+    public void register(
+            SocketAddress server, String auth, Message.ClientRequest<?> request, ListenableFuture<Message.ServerResponse<?>> future, long sequence) {
+        Records.Request record = request.record();
+        if (!isCoalescable(record)) {
+            return;
+        }
+        final Key key = new Key(server, auth, record.opcode(), ((Records.PathGetter) record).getPath());
+        final InFlight value = new InFlight(sequence, future);
+        if (inflight.putIfAbsent(key, value) == null) {
+            issued.incrementAndGet();
+            future.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    inflight.remove(key, value);
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+    }
+
+    public StringBuilder mntr(StringBuilder output) {
+        output.append("zk_proxy_coalesce_inflight\t").append(inflight.size()).append('\n');
+        output.append("zk_proxy_coalesce_issued\t").append(issued()).append('\n');
+        output.append("zk_proxy_coalesced_reads\t").append(coalesced()).append('\n');
+        return output;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("inflight", inflight.size())
+                .add("issued", issued)
+                .add("coalesced", coalesced).toString();
+    }
+
+    protected static final class InFlight {
+
+        protected final long sequence;
+        protected final ListenableFuture<Message.ServerResponse<?>> future;
+
+        public InFlight(long sequence, ListenableFuture<Message.ServerResponse<?>> future) {
+            this.sequence = sequence;
+            this.future = future;
+        }
+    }
+
+    protected static final class XidFunction implements Function<Message.ServerResponse<?>, Message.ServerResponse<?>> {
+
+        protected final int xid;
+
+        public XidFunction(int xid) {
+            this.xid = xid;
+        }
+
+        @Override
+        public Message.ServerResponse<?> apply(Message.ServerResponse<?> input) {
+            return ProtocolResponseMessage.of(xid, input.zxid(), input.record());
+        }
+    }
+
+    protected static final class Key {
+
+        protected final SocketAddress server;
+        protected final String auth;
+        protected final OpCode opcode;
+        protected final String path;
+
+        public Key(SocketAddress server, String auth, OpCode opcode, String path) {
+            this.server = server;
+            this.auth = auth;
+            this.opcode = opcode;
+            this.path = path;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(server, auth, opcode, path);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return (opcode == other.opcode)
+                    && path.equals(other.path)
+                    && auth.equals(other.auth)
+                    && Objects.equal(server, other.server);
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package edu.uw.zookeeper.proxy;
+
+import java.net.SocketAddress;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.base.Function;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import edu.uw.zookeeper.EnsembleView;
+import edu.uw.zookeeper.ServerInetAddressView;
+import edu.uw.zookeeper.common.Configurable;
+import edu.uw.zookeeper.common.Configuration;
+import edu.uw.zookeeper.common.ParameterizedFactory;
+import edu.uw.zookeeper.client.ServerViewFactory;
+import edu.uw.zookeeper.protocol.ConnectMessage;
+import edu.uw.zookeeper.protocol.Message;
+import edu.uw.zookeeper.protocol.ProtocolRequestMessage;
+import edu.uw.zookeeper.protocol.ProtocolResponseMessage;
+import edu.uw.zookeeper.protocol.client.MessageClientExecutor;
+import edu.uw.zookeeper.protocol.client.ZxidTracker;
+import edu.uw.zookeeper.protocol.proto.IExistsRequest;
+
+/**
+ * Sends unwatched reads of idle sessions to the other ensemble servers,
+ * while sessions, writes and everything else stay on the write server.
+ *
+ * Each read server is used through one backend session shared by all clients,
+ * with xids rewritten as in {@link MultiplexingClientPool}.
+ * A read only goes to a server that has already answered with a zxid
+ * at least as new as the last one the session has seen, so a session reads its own writes.
+ * If no read server is that far along, the read stays on the session's own server.
+ * The shared backend sessions are unauthenticated, so sessions that sent credentials never read elsewhere.
+ * Read servers are probed periodically, so they catch up even when no reads are routed to them.
+ */
+public class ReadRouter implements Runnable {
+
+    /**
+     * @return null if no write server is configured
+     */
+    public static ReadRouter fromConfiguration(
+            Configuration configuration,
+            ParameterizedFactory<ServerInetAddressView, ? extends ServerViewFactory<ConnectMessage.Request, ? extends MessageClientExecutor<?>>> factories) {
+        ServerInetAddressView writeServer = WriteServerConfiguration.get(configuration);
+        if (writeServer == null) {
+            return null;
+        }
+        return newInstance(
+                writeServer,
+                ProxyServerExecutorBuilder.EnsembleViewConfiguration.get(configuration),
+                factories);
+    }
+
+    public static ReadRouter newInstance(
+            ServerInetAddressView writeServer,
+            EnsembleView<ServerInetAddressView> ensemble,
+            ParameterizedFactory<ServerInetAddressView, ? extends ServerViewFactory<ConnectMessage.Request, ? extends MessageClientExecutor<?>>> factories) {
+        ImmutableList.Builder<Replica> replicas = ImmutableList.builder();
+        for (ServerInetAddressView server: ensemble) {
+            if (!server.equals(writeServer)) {
+                replicas.add(new Replica(server, factories.get(server)));
+            }
+        }
+        return new ReadRouter(writeServer, replicas.build());
+    }
+
+    public static final long PROBE_MILLIS = 100L;
+
+    @Configurable(path="backend", arg="writeServer", key="writeServer", value="", help="address:port that takes all sessions and writes, with reads spread over the other servers (empty to disable)")
+    public static class WriteServerConfiguration implements Function<Configuration, ServerInetAddressView> {
+
+        /**
+         * @return null if not configured
+         */
+        public static ServerInetAddressView get(Configuration configuration) {
+            return new WriteServerConfiguration().apply(configuration);
+        }
+
+        @Override
+        public ServerInetAddressView apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            String value = configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getString(configurable.key());
+            return value.trim().isEmpty() ? null : ServerInetAddressView.fromString(value.trim());
+        }
+    }
+
+    protected final Logger logger;
+    protected final ServerInetAddressView writeServer;
+    protected final ImmutableList<Replica> replicas;
+    protected final AtomicLong routed;
+    protected final AtomicLong behind;
+
+    protected ReadRouter(
+            ServerInetAddressView writeServer,
+            ImmutableList<Replica> replicas) {
+        this.logger = LogManager.getLogger(this);
+        this.writeServer = writeServer;
+        this.replicas = replicas;
+        this.routed = new AtomicLong(0L);
+        this.behind = new AtomicLong(0L);
+    }
+
+    public ServerInetAddressView writeServer() {
+        return writeServer;
+    }
+
+    public List<Replica> replicas() {
+        return replicas;
+    }
+
+    /**
+     * @param zxid last zxid seen by the session
+     * @return the least loaded read server that is caught up, or null if there is none
+     */
+    public Replica select(long zxid) {
+        Replica selected = null;
+        for (Replica replica: replicas) {
+            if (!replica.isReady()) {
+                continue;
+            }
+            if (replica.zxid() < zxid) {
+                continue;
+            }
+            if ((selected == null) || (replica.outstanding() < selected.outstanding())) {
+                selected = replica;
+            }
+        }
+        if (selected == null) {
+            if (!replicas.isEmpty()) {
+                behind.incrementAndGet();
+            }
+        } else {
+            routed.incrementAndGet();
+        }
+        return selected;
+    }
+
+    /**
+     * Probes every read server.
+     */
+    @Override
+    public void run() {
+        for (Replica replica: replicas) {
+            try {
+                replica.probe();
+            } catch (Exception e) {
+                logger.warn("Error probing {}", replica, e);
+            }
+        }
+    }
+
+    public StringBuilder mntr(StringBuilder output) {
+        output.append("zk_proxy_reads_routed\t").append(routed.get()).append('\n');
+        output.append("zk_proxy_reads_not_routed\t").append(behind.get()).append('\n');
+        for (Replica replica: replicas) {
+            String prefix = "zk_proxy_backend_" + ProxyMetrics.key(replica.address()) + "_";
+            output.append(prefix).append("read_zxid\t").append(replica.zxid()).append('\n');
+            output.append(prefix).append("read_outstanding\t").append(replica.outstanding()).append('\n');
+        }
+        return output;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("writeServer", writeServer)
+                .add("replicas", replicas).toString();
+    }
+
+    /**
+     * One read server, reached through a shared backend session
+     * that is connected on first use and again after it fails.
+     */
+    public static class Replica {
+
+        protected final Logger logger;
+        protected final ServerInetAddressView server;
+        protected final ServerViewFactory<ConnectMessage.Request, ? extends MessageClientExecutor<?>> factory;
+        protected final ZxidTracker zxids;
+        protected final AtomicInteger outstanding;
+        // xid assignment and submission must be atomic to keep backend order equal to xid order
+        protected final Object lock;
+        protected int nextXid;
+        protected volatile ListenableFuture<? extends MessageClientExecutor<?>> client;
+
+        public Replica(
+                ServerInetAddressView server,
+                ServerViewFactory<ConnectMessage.Request, ? extends MessageClientExecutor<?>> factory) {
+            this.logger = LogManager.getLogger(this);
+            this.server = server;
+            this.factory = factory;
+            this.zxids = ZxidTracker.zero();
+            this.outstanding = new AtomicInteger(0);
+            this.lock = new Object();
+            this.nextXid = 1;
+            this.client = null;
+        }
+
+        public ServerInetAddressView server() {
+            return server;
+        }
+
+        public SocketAddress address() {
+            return server.get();
+        }
+
+        public long zxid() {
+            return zxids.get();
+        }
+
+        public int outstanding() {
+            return outstanding.get();
+        }
+
+        /**
+         * Starts connecting if not connected.
+         */
+        public boolean isReady() {
+            ListenableFuture<? extends MessageClientExecutor<?>> client = connect();
+            if (!client.isDone()) {
+                return false;
+            }
+            try {
+                return client.get().session().isDone();
+            } catch (Exception e) {
+                return false;
+            }
+        }
+
+        /**
+         * Must only be called when ready.
+         */
+        public ListenableFuture<Message.ServerResponse<?>> submit(final Message.ClientRequest<?> request) {
+            final ListenableFuture<? extends MessageClientExecutor<?>> client = this.client;
+            MessageClientExecutor<?> backend = Futures.getUnchecked(client);
+            outstanding.incrementAndGet();
+            ListenableFuture<Message.ServerResponse<?>> future;
+            synchronized (lock) {
+                int xid = nextXid;
+                // xids must stay positive, negative values are reserved
+                nextXid = (xid == Integer.MAX_VALUE) ? 1 : xid + 1;
+                future = backend.submit(ProtocolRequestMessage.of(xid, request.record()));
+            }
+            Futures.addCallback(future, new FutureCallback<Message.ServerResponse<?>>() {
+                @Override
+                public void onSuccess(Message.ServerResponse<?> result) {
+                    zxids.update(result.zxid());
+                    outstanding.decrementAndGet();
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    outstanding.decrementAndGet();
+                    reset(client);
+                }
+            });
+            return Futures.transform(future, new Function<Message.ServerResponse<?>, Message.ServerResponse<?>>() {
+                @Override
+                public Message.ServerResponse<?> apply(Message.ServerResponse<?> input) {
+                    return ProtocolResponseMessage.of(request.xid(), input.zxid(), input.record());
+                }
+            });
+        }
+
+        /**
+         * Reads through the shared backend session, if ready and idle,
+         * so the zxid advances to the server's latest.
+         */
+        public void probe() {
+            if (isReady() && (outstanding() == 0)) {
+                submit(ProtocolRequestMessage.of(0, new IExistsRequest("/", false)));
+            }
+        }
+
+        @Override
+        public String toString() {
+            return Objects.toStringHelper(this)
+                    .add("server", server)
+                    .add("zxid", zxid())
+                    .add("outstanding", outstanding()).toString();
+        }
+
+        protected synchronized ListenableFuture<? extends MessageClientExecutor<?>> connect() {
+            if (client == null) {
+                final ListenableFuture<? extends MessageClientExecutor<?>> client = factory.get();
+                Futures.addCallback(
+                        Futures.transform(client, new AsyncFunction<MessageClientExecutor<?>, ConnectMessage.Response>() {
+                            @Override
+                            public ListenableFuture<ConnectMessage.Response> apply(MessageClientExecutor<?> input) {
+                                return input.session();
+                            }
+                        }),
+                        new FutureCallback<ConnectMessage.Response>() {
+                            @Override
+                            public void onSuccess(ConnectMessage.Response result) {
+                                if (!(result instanceof ConnectMessage.Response.Valid)) {
+                                    reset(client);
+                                }
+                            }
+
+                            @Override
+                            public void onFailure(Throwable t) {
+                                logger.warn("Error connecting to read server {}", server, t);
+                                reset(client);
+                            }
+                        });
+                this.client = client;
+            }
+            return client;
+        }
+
+        /**
+         * Drops and closes the shared backend session, unless it was already replaced.
+         */
+        protected void reset(ListenableFuture<? extends MessageClientExecutor<?>> lost) {
+            synchronized (this) {
+                if (client != lost) {
+                    return;
+                }
+                client = null;
+            }
+            // a connect still in progress is closed once it completes
+            Futures.addCallback(lost, new FutureCallback<MessageClientExecutor<?>>() {
+                @Override
+                public void onSuccess(MessageClientExecutor<?> result) {
+                    result.connection().close();
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package edu.uw.zookeeper.proxy;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.base.Function;
+import com.google.common.base.Objects;
+import com.typesafe.config.ConfigValueType;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import edu.uw.zookeeper.common.Configurable;
+import edu.uw.zookeeper.common.Configuration;
+import edu.uw.zookeeper.common.Factory;
+
+/**
+ * Stops reading from every frontend connection while too many request bytes are outstanding.
+ *
+ * Reading stops when outstanding bytes reach the high watermark
+ * and resumes once they fall to the low watermark.
+ * Installed as the handler of the listening channel, so it sees each accepted connection.
+ */
+@ChannelHandler.Sharable
+public class ReadThrottle extends ChannelInboundHandlerAdapter {
+
+    public static ReadThrottle fromConfiguration(Configuration configuration) {
+        return newInstance(
+                HighWatermarkConfiguration.get(configuration),
+                LowWatermarkConfiguration.get(configuration));
+    }
+
+    public static ReadThrottle newInstance(long high, long low) {
+        return new ReadThrottle(high, low);
+    }
+
+    @Configurable(path="admission", arg="highWatermark", key="highWatermark", value="33554432", type=ConfigValueType.NUMBER, help="outstanding request bytes that stop frontend reads (0 to disable)")
+    public static class HighWatermarkConfiguration implements Function<Configuration, Long> {
+
+        public static Long get(Configuration configuration) {
+            return new HighWatermarkConfiguration().apply(configuration);
+        }
+
+        @Override
+        public Long apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getLong(configurable.key());
+        }
+    }
+
+    @Configurable(path="admission", arg="lowWatermark", key="lowWatermark", value="16777216", type=ConfigValueType.NUMBER, help="outstanding request bytes that resume frontend reads")
+    public static class LowWatermarkConfiguration implements Function<Configuration, Long> {
+
+        public static Long get(Configuration configuration) {
+            return new LowWatermarkConfiguration().apply(configuration);
+        }
+
+        @Override
+        public Long apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getLong(configurable.key());
+        }
+    }
+
+    protected final Logger logger;
+    protected final long high;
+    protected final long low;
+    protected final AtomicLong bytes;
+    protected final AtomicLong pauses;
+    protected final ChannelGroup channels;
+    protected volatile boolean paused;
+
+    protected ReadThrottle(long high, long low) {
+        this.logger = LogManager.getLogger(this);
+        this.high = high;
+        this.low = Math.min(low, high);
+        this.bytes = new AtomicLong(0L);
+        this.pauses = new AtomicLong(0L);
+        this.channels = new DefaultChannelGroup("frontend", GlobalEventExecutor.INSTANCE);
+        this.paused = false;
+    }
+
+    public Factory<ServerBootstrap> decorate(final Factory<ServerBootstrap> bootstraps) {
+        return new Factory<ServerBootstrap>() {
+            @Override
+            public ServerBootstrap get() {
+                return bootstraps.get().handler(ReadThrottle.this);
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return high > 0L;
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    public long bytes() {
+        return bytes.get();
+    }
+
+    public void acquire(long n) {
+        if (!isEnabled()) {
+            return;
+        }
+        if ((bytes.addAndGet(n) >= high) && !paused) {
+            update();
+        }
+    }
+
+    public void release(long n) {
+        if (!isEnabled()) {
+            return;
+        }
+        if ((bytes.addAndGet(-n) <= low) && paused) {
+            update();
+        }
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof Channel) {
+            Channel child = (Channel) msg;
+            // closed channels leave the group by themselves
+            channels.add(child);
+            if (paused) {
+                child.config().setAutoRead(false);
+            }
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    public StringBuilder mntr(StringBuilder output) {
+        output.append("zk_proxy_outstanding_bytes\t").append(bytes()).append('\n');
+        output.append("zk_proxy_read_paused\t").append(paused ? 1 : 0).append('\n');
+        output.append("zk_proxy_read_pauses\t").append(pauses.get()).append('\n');
+        return output;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("high", high)
+                .add("low", low)
+                .add("bytes", bytes())
+                .add("paused", paused).toString();
+    }
+
+    /**
+     * Decides from the current count, so concurrent crossings settle on the right state.
+     */
+    protected synchronized void update() {
+        long bytes = this.bytes.get();
+        boolean pause = paused ? (bytes > low) : (bytes >= high);
+        if (pause == paused) {
+            return;
+        }
+        paused = pause;
+        if (pause) {
+            pauses.incrementAndGet();
+            logger.info("Pausing frontend reads at {} outstanding bytes", bytes);
+        } else {
+            logger.info("Resuming frontend reads at {} outstanding bytes", bytes);
+        }
+        for (Channel channel: channels) {
+            channel.config().setAutoRead(!pause);
+        }
+    }
+}
@@ -0,0 +1,500 @@
+package edu.uw.zookeeper.proxy;
+
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.base.Function;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.typesafe.config.ConfigValueType;
+
+import edu.uw.zookeeper.EnsembleView;
+import edu.uw.zookeeper.ServerInetAddressView;
+import edu.uw.zookeeper.common.Configurable;
+import edu.uw.zookeeper.common.Configuration;
+
+/**
+ * Chooses the backend server for a new session from live per-server health.
+ *
+ * Servers that fail repeatedly are ejected for a while,
+ * with the ejection time doubling for each ejection in a row.
+ * If every server is ejected, all of them are candidates again.
+ * If a write server is configured, every session goes to it instead.
+ * The ensemble can be replaced at runtime, keeping the health of servers that stay.
+ */
+public class ServerSelector {
+
+    public static ServerSelector fromConfiguration(Configuration configuration) {
+        return newInstance(
+                ProxyServerExecutorBuilder.EnsembleViewConfiguration.get(configuration),
+                Policy.valueOf(SelectionConfiguration.get(configuration).toUpperCase()),
+                EjectFailuresConfiguration.get(configuration),
+                TimeUnit.MILLISECONDS.toNanos(EjectTimeConfiguration.get(configuration)),
+                ReadRouter.WriteServerConfiguration.get(configuration));
+    }
+
+    public static ServerSelector newInstance(
+            EnsembleView<ServerInetAddressView> ensemble,
+            Policy policy,
+            int ejectFailures,
+            long ejectNanos) {
+        return newInstance(ensemble, policy, ejectFailures, ejectNanos, null);
+    }
+
+    /**
+     * @param pinned server for every session, or null to select
+     */
+    public static ServerSelector newInstance(
+            EnsembleView<ServerInetAddressView> ensemble,
+            Policy policy,
+            int ejectFailures,
+            long ejectNanos,
+            ServerInetAddressView pinned) {
+        ImmutableMap.Builder<ServerInetAddressView, ServerHealth> servers = ImmutableMap.builder();
+        boolean member = false;
+        for (ServerInetAddressView server: ensemble) {
+            servers.put(server, new ServerHealth(server, ejectFailures, ejectNanos, ServerHealth.PENALTY_NANOS));
+            member = member || server.equals(pinned);
+        }
+        if ((pinned != null) && !member) {
+            servers.put(pinned, new ServerHealth(pinned, ejectFailures, ejectNanos, ServerHealth.PENALTY_NANOS));
+        }
+        return new ServerSelector(policy, ejectFailures, ejectNanos, servers.build(), pinned, new Random());
+    }
+
+    /**
+     * Told of the servers an update removed, to let go of what it holds for them.
+     */
+    public static interface Listener {
+        void removed(List<ServerInetAddressView> servers);
+    }
+
+    public static enum Policy {
+        RANDOM, EWMA, LEAST_OUTSTANDING, POWER_OF_TWO;
+    }
+
+    @Configurable(path="backend", arg="serverSelection", key="selection", value="power_of_two", help="random|ewma|least_outstanding|power_of_two")
+    public static class SelectionConfiguration implements Function<Configuration, String> {
+
+        public static String get(Configuration configuration) {
+            return new SelectionConfiguration().apply(configuration);
+        }
+
+        @Override
+        public String apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getString(configurable.key());
+        }
+    }
+
+    @Configurable(path="backend", arg="ejectFailures", key="ejectFailures", value="3", type=ConfigValueType.NUMBER, help="consecutive failures before a server is ejected")
+    public static class EjectFailuresConfiguration implements Function<Configuration, Integer> {
+
+        public static Integer get(Configuration configuration) {
+            return new EjectFailuresConfiguration().apply(configuration);
+        }
+
+        @Override
+        public Integer apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getInt(configurable.key());
+        }
+    }
+
+    @Configurable(path="backend", arg="ejectMillis", key="ejectMillis", value="10000", type=ConfigValueType.NUMBER, help="initial time a failing server is ejected")
+    public static class EjectTimeConfiguration implements Function<Configuration, Long> {
+
+        public static Long get(Configuration configuration) {
+            return new EjectTimeConfiguration().apply(configuration);
+        }
+
+        @Override
+        public Long apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getLong(configurable.key());
+        }
+    }
+
+    protected final Logger logger;
+    protected final Policy policy;
+    protected final int ejectFailures;
+    protected final long ejectNanos;
+    // replaced together by update
+    protected volatile ImmutableMap<ServerInetAddressView, ServerHealth> servers;
+    protected volatile ImmutableList<ServerHealth> healths;
+    protected final ServerInetAddressView pinned;
+    protected final Random random;
+    protected final List<Listener> listeners;
+
+    protected ServerSelector(
+            Policy policy,
+            int ejectFailures,
+            long ejectNanos,
+            ImmutableMap<ServerInetAddressView, ServerHealth> servers,
+            ServerInetAddressView pinned,
+            Random random) {
+        this.logger = LogManager.getLogger(this);
+        this.policy = policy;
+        this.ejectFailures = ejectFailures;
+        this.ejectNanos = ejectNanos;
+        this.servers = servers;
+        this.healths = servers.values().asList();
+        this.pinned = pinned;
+        this.random = random;
+        this.listeners = new CopyOnWriteArrayList<Listener>();
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public Policy policy() {
+        return policy;
+    }
+
+    public Map<ServerInetAddressView, ServerHealth> servers() {
+        return servers;
+    }
+
+    /**
+     * New sessions go to the new ensemble at once.
+     * Servers that stay keep their health, and a pinned server is always kept.
+     *
+     * @return the servers that were removed
+     */
+    public synchronized List<ServerInetAddressView> update(EnsembleView<ServerInetAddressView> ensemble) {
+        if (!ensemble.iterator().hasNext()) {
+            throw new IllegalArgumentException("empty ensemble");
+        }
+        ImmutableMap<ServerInetAddressView, ServerHealth> previous = servers;
+        // a new server starts out like a typical one, so it is neither flooded nor starved
+        double seed = median(previous.values());
+        ImmutableMap.Builder<ServerInetAddressView, ServerHealth> builder = ImmutableMap.builder();
+        boolean member = false;
+        for (ServerInetAddressView server: ensemble) {
+            ServerHealth health = previous.get(server);
+            builder.put(server, (health != null) ? health : new ServerHealth(server, ejectFailures, ejectNanos, seed));
+            member = member || server.equals(pinned);
+        }
+        if ((pinned != null) && !member) {
+            builder.put(pinned, previous.get(pinned));
+        }
+        ImmutableMap<ServerInetAddressView, ServerHealth> updated = builder.build();
+        List<ServerInetAddressView> removed = Lists.newArrayList();
+        for (ServerInetAddressView server: previous.keySet()) {
+            if (!updated.containsKey(server)) {
+                removed.add(server);
+            }
+        }
+        logger.info("Ensemble updated to {}, removed {}", updated.keySet(), removed);
+        this.healths = updated.values().asList();
+        this.servers = updated;
+        if (!removed.isEmpty()) {
+            for (Listener listener: listeners) {
+                listener.removed(removed);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return null if the address is not an ensemble member
+     */
+    public ServerHealth health(SocketAddress address) {
+        for (ServerHealth health: healths) {
+            if (health.address().equals(address)) {
+                return health;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return false if every server is ejected
+     */
+    public boolean isAvailable() {
+        long now = System.nanoTime();
+        for (ServerHealth health: healths) {
+            if (!health.isEjected(now)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return null if sessions are not pinned
+     */
+    public ServerInetAddressView pinned() {
+        return pinned;
+    }
+
+    public ServerInetAddressView select() {
+        if (pinned != null) {
+            return pinned;
+        }
+        ImmutableList<ServerHealth> healths = this.healths;
+        long now = System.nanoTime();
+        List<ServerHealth> candidates = Lists.newArrayListWithCapacity(healths.size());
+        for (ServerHealth health: healths) {
+            if (!health.isEjected(now)) {
+                candidates.add(health);
+            }
+        }
+        if (candidates.isEmpty()) {
+            logger.warn("All servers ejected: {}", healths);
+            candidates.addAll(healths);
+        }
+        ServerHealth selected;
+        switch (policy) {
+        case EWMA:
+        {
+            selected = min(candidates, false);
+            break;
+        }
+        case LEAST_OUTSTANDING:
+        {
+            selected = min(candidates, true);
+            break;
+        }
+        case POWER_OF_TWO:
+        {
+            selected = random(candidates);
+            if (candidates.size() > 1) {
+                ServerHealth other;
+                do {
+                    other = random(candidates);
+                } while (other == selected);
+                if (other.cost() < selected.cost()) {
+                    selected = other;
+                }
+            }
+            break;
+        }
+        default:
+        {
+            selected = random(candidates);
+            break;
+        }
+        }
+        return selected.server();
+    }
+
+    /**
+     * Appends server health as mntr key value lines.
+     */
+    public StringBuilder mntr(StringBuilder output) {
+        long now = System.nanoTime();
+        for (ServerHealth health: healths) {
+            String prefix = "zk_proxy_backend_" + ProxyMetrics.key(health.address()) + "_";
+            output.append(prefix).append("latency_ewma_us\t").append(TimeUnit.NANOSECONDS.toMicros((long) health.latency())).append('\n');
+            output.append(prefix).append("connect_latency_ewma_us\t").append(TimeUnit.NANOSECONDS.toMicros((long) health.connectLatency())).append('\n');
+            output.append(prefix).append("ejected\t").append(health.isEjected(now) ? 1 : 0).append('\n');
+        }
+        return output;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("policy", policy)
+                .add("pinned", pinned)
+                .add("servers", healths).toString();
+    }
+
+    protected ServerHealth random(List<ServerHealth> candidates) {
+        return candidates.get(random.nextInt(candidates.size()));
+    }
+
+    protected ServerHealth min(List<ServerHealth> candidates, boolean outstanding) {
+        // start at a random offset so ties are spread
+        int offset = random.nextInt(candidates.size());
+        ServerHealth min = null;
+        for (int i=0; i<candidates.size(); ++i) {
+            ServerHealth health = candidates.get((offset + i) % candidates.size());
+            if ((min == null)
+                    || (outstanding ? (health.outstanding() < min.outstanding()) : (health.latency() < min.latency()))) {
+                min = health;
+            }
+        }
+        return min;
+    }
+
+    /**
+     * @return median request latency in nanoseconds, or the penalty if there are no servers
+     */
+    protected static double median(Collection<ServerHealth> healths) {
+        if (healths.isEmpty()) {
+            return ServerHealth.PENALTY_NANOS;
+        }
+        double[] latencies = new double[healths.size()];
+        int i = 0;
+        for (ServerHealth health: healths) {
+            latencies[i++] = health.latency();
+        }
+        Arrays.sort(latencies);
+        return latencies[latencies.length / 2];
+    }
+
+    /**
+     * Live statistics for one backend server.
+     *
+     * Session handshakes are averaged apart from requests,
+     * so only request latency is used to select servers.
+     */
+    public static class ServerHealth {
+
+        // weight of a new sample
+        protected static final double ALPHA = 0.1;
+        // latency sample recorded for a failure, and the initial latency with nothing to compare to
+        public static final double PENALTY_NANOS = TimeUnit.MILLISECONDS.toNanos(100L);
+
+        protected final ServerInetAddressView server;
+        protected final SocketAddress address;
+        protected final int ejectFailures;
+        protected final long ejectNanos;
+        protected final AtomicInteger outstanding;
+        // double bits, in nanoseconds
+        protected final AtomicLong latency;
+        // double bits, in nanoseconds
+        protected final AtomicLong connectLatency;
+        protected final AtomicInteger failures;
+        protected final AtomicInteger ejections;
+        protected volatile long ejectedUntil;
+
+        /**
+         * @param latency initial moving average in nanoseconds
+         */
+        public ServerHealth(ServerInetAddressView server, int ejectFailures, long ejectNanos, double latency) {
+            this.server = server;
+            this.address = server.get();
+            this.ejectFailures = ejectFailures;
+            this.ejectNanos = ejectNanos;
+            this.outstanding = new AtomicInteger(0);
+            this.latency = new AtomicLong(Double.doubleToRawLongBits(latency));
+            this.connectLatency = new AtomicLong(Double.doubleToRawLongBits(latency));
+            this.failures = new AtomicInteger(0);
+            this.ejections = new AtomicInteger(0);
+            this.ejectedUntil = 0L;
+        }
+
+        public ServerInetAddressView server() {
+            return server;
+        }
+
+        public SocketAddress address() {
+            return address;
+        }
+
+        public int outstanding() {
+            return outstanding.get();
+        }
+
+        /**
+         * @return moving average of request latency in nanoseconds
+         */
+        public double latency() {
+            return Double.longBitsToDouble(latency.get());
+        }
+
+        /**
+         * @return moving average of session handshake latency in nanoseconds
+         */
+        public double connectLatency() {
+            return Double.longBitsToDouble(connectLatency.get());
+        }
+
+        public boolean isEjected(long now) {
+            return ejectedUntil - now > 0L;
+        }
+
+        /**
+         * Expected wait for one more request.
+         */
+        public double cost() {
+            return latency() * (outstanding() + 1);
+        }
+
+        public void started() {
+            outstanding.incrementAndGet();
+        }
+
+        public void completed(long nanos) {
+            outstanding.decrementAndGet();
+            failures.set(0);
+            ejections.set(0);
+            sample(latency, nanos);
+        }
+
+        public void failed() {
+            outstanding.decrementAndGet();
+            sample(latency, PENALTY_NANOS);
+            failure();
+        }
+
+        /**
+         * A session handshake started with {@link #started()} completed.
+         */
+        public void connected(long nanos) {
+            outstanding.decrementAndGet();
+            failures.set(0);
+            ejections.set(0);
+            sample(connectLatency, nanos);
+        }
+
+        public void connectFailed() {
+            outstanding.decrementAndGet();
+            sample(connectLatency, PENALTY_NANOS);
+            failure();
+        }
+
+        protected void failure() {
+            if (failures.incrementAndGet() >= ejectFailures) {
+                failures.set(0);
+                int ejection = Math.min(ejections.getAndIncrement(), 6);
+                ejectedUntil = System.nanoTime() + (ejectNanos << ejection);
+                LogManager.getLogger(getClass()).warn("Ejecting {} for {} ms", server, TimeUnit.NANOSECONDS.toMillis(ejectNanos << ejection));
+            }
+        }
+
+        protected static void sample(AtomicLong average, double nanos) {
+            while (true) {
+                long bits = average.get();
+                double prev = Double.longBitsToDouble(bits);
+                double next = prev + ALPHA * (nanos - prev);
+                if (average.compareAndSet(bits, Double.doubleToRawLongBits(next))) {
+                    break;
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return Objects.toStringHelper(this)
+                    .add("server", server)
+                    .add("outstanding", outstanding())
+                    .add("latency", TimeUnit.NANOSECONDS.toMicros((long) latency()))
+                    .add("connectLatency", TimeUnit.NANOSECONDS.toMicros((long) connectLatency()))
+                    .add("ejected", isEjected(System.nanoTime())).toString();
+        }
+    }
+}
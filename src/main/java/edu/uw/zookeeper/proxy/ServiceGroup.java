@@ -0,0 +1,100 @@
+package edu.uw.zookeeper.proxy;
+
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.common.util.concurrent.Service;
+
+/**
+ * Starts and stops services as one, either all at once or one after another.
+ *
+ * If any member fails to start, the members already started are stopped and the group fails.
+ * Stopping a group stops all of its members even if some fail to stop.
+ */
+public class ServiceGroup extends AbstractIdleService {
+
+    public static ServiceGroup parallel(Iterable<? extends Service> services) {
+        return new ServiceGroup(true, ImmutableList.copyOf(services));
+    }
+
+    public static ServiceGroup serial(Iterable<? extends Service> services) {
+        return new ServiceGroup(false, ImmutableList.copyOf(services));
+    }
+
+    protected final Logger logger;
+    protected final boolean parallel;
+    protected final ImmutableList<Service> services;
+
+    protected ServiceGroup(
+            boolean parallel,
+            ImmutableList<Service> services) {
+        this.logger = LogManager.getLogger(this);
+        this.parallel = parallel;
+        this.services = services;
+    }
+
+    public List<Service> services() {
+        return services;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("parallel", parallel)
+                .add("services", services).toString();
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+        long start = System.nanoTime();
+        try {
+            if (parallel) {
+                for (Service service: services) {
+                    service.startAsync();
+                }
+            }
+            for (Service service: services) {
+                if (!parallel) {
+                    service.startAsync();
+                }
+                service.awaitRunning();
+            }
+        } catch (RuntimeException e) {
+            stop();
+            throw e;
+        }
+        logger.debug("Started {} in {} ms", services, (System.nanoTime() - start) / 1000000L);
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+        stop();
+    }
+
+    /**
+     * In reverse order if serial.
+     */
+    protected void stop() {
+        List<Service> services = parallel ? this.services : this.services.reverse();
+        if (parallel) {
+            for (Service service: services) {
+                service.stopAsync();
+            }
+        }
+        for (Service service: services) {
+            if (!parallel) {
+                service.stopAsync();
+            }
+            try {
+                service.awaitTerminated();
+            } catch (IllegalStateException e) {
+                logger.warn("Error stopping {}", service, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,479 @@
+package edu.uw.zookeeper.proxy;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.base.Function;
+import com.google.common.base.Objects;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import edu.uw.zookeeper.EnsembleView;
+import edu.uw.zookeeper.ServerInetAddressView;
+import edu.uw.zookeeper.client.ConnectionClientExecutorsService;
+import edu.uw.zookeeper.client.ServerViewFactory;
+import edu.uw.zookeeper.common.Automaton;
+import edu.uw.zookeeper.common.Configurable;
+import edu.uw.zookeeper.common.Configuration;
+import edu.uw.zookeeper.common.ParameterizedFactory;
+import edu.uw.zookeeper.common.TimeValue;
+import edu.uw.zookeeper.protocol.ConnectMessage;
+import edu.uw.zookeeper.protocol.Message;
+import edu.uw.zookeeper.protocol.Operation;
+import edu.uw.zookeeper.protocol.ProtocolRequestMessage;
+import edu.uw.zookeeper.protocol.ProtocolState;
+import edu.uw.zookeeper.protocol.SessionListener;
+import edu.uw.zookeeper.protocol.client.MessageClientExecutor;
+import edu.uw.zookeeper.protocol.proto.IMultiRequest;
+import edu.uw.zookeeper.protocol.proto.IWatcherEvent;
+import edu.uw.zookeeper.protocol.proto.Records;
+
+/**
+ * Sends requests under configured path prefixes to other ensembles.
+ *
+ * Paths under no prefix stay on the ensemble of the <code>servers</code> list,
+ * where each client session has its backend session.
+ * A client session opens a backend session on another ensemble the first time it uses one of its paths.
+ * Since the ensembles are independent, a multi must stay within one of them,
+ * and losing any of a client's backend sessions expires the client session.
+ * A client's auth requests are sent to every ensemble,
+ * and replayed to a shard session when it is opened, before any other request.
+ */
+public class ShardRouter {
+
+    /**
+     * @return null if no shards are configured
+     */
+    public static ShardRouter fromConfiguration(
+            Configuration configuration,
+            ParameterizedFactory<ServerInetAddressView, ? extends ServerViewFactory<ConnectMessage.Request, ? extends MessageClientExecutor<?>>> factories) {
+        String shards = ShardsConfiguration.get(configuration);
+        if (shards.trim().isEmpty()) {
+            return null;
+        }
+        ImmutableList.Builder<Shard> builder = ImmutableList.builder();
+        for (Map.Entry<String, EnsembleView<ServerInetAddressView>> entry: parse(shards)) {
+            ServerSelector selector = ServerSelector.newInstance(
+                    entry.getValue(),
+                    ServerSelector.Policy.valueOf(ServerSelector.SelectionConfiguration.get(configuration).toUpperCase()),
+                    ServerSelector.EjectFailuresConfiguration.get(configuration),
+                    TimeUnit.MILLISECONDS.toNanos(ServerSelector.EjectTimeConfiguration.get(configuration)));
+            builder.add(new Shard(
+                    entry.getKey(),
+                    selector,
+                    ConnectionClientExecutorsService.newInstance(
+                            ProxyServerExecutorBuilder.SelectingClientFactory.newInstance(selector, factories))));
+        }
+        return newInstance(builder.build());
+    }
+
+    public static ShardRouter newInstance(List<Shard> shards) {
+        List<Shard> sorted = Lists.newArrayList(shards);
+        // longest prefix first
+        Collections.sort(sorted, new Comparator<Shard>() {
+            @Override
+            public int compare(Shard a, Shard b) {
+                return b.prefix().length() - a.prefix().length();
+            }
+        });
+        return new ShardRouter(ImmutableList.copyOf(sorted));
+    }
+
+    /**
+     * @param shards semicolon-separated <code>prefix=address:port,...</code>,
+     *  for example <code>/users=10.0.0.1:2181,10.0.0.2:2181;/jobs=10.0.1.1:2181</code>
+     */
+    public static List<Map.Entry<String, EnsembleView<ServerInetAddressView>>> parse(String shards) {
+        List<Map.Entry<String, EnsembleView<ServerInetAddressView>>> entries = Lists.newArrayList();
+        for (String entry: Splitter.on(';').trimResults().omitEmptyStrings().split(shards)) {
+            List<String> fields = Splitter.on('=').trimResults().splitToList(entry);
+            if ((fields.size() != 2) || !fields.get(0).startsWith("/") || (fields.get(0).length() < 2)) {
+                throw new IllegalArgumentException(entry);
+            }
+            String prefix = fields.get(0);
+            if (prefix.endsWith("/")) {
+                prefix = prefix.substring(0, prefix.length() - 1);
+            }
+            entries.add(Maps.immutableEntry(prefix, ServerInetAddressView.ensembleFromString(fields.get(1))));
+        }
+        return entries;
+    }
+
+    @Configurable(arg="shards", key="shards", value="", help="prefix=address:port,... semicolon-separated, for paths served by other ensembles (empty to disable)")
+    public static class ShardsConfiguration implements Function<Configuration, String> {
+
+        public static String get(Configuration configuration) {
+            return new ShardsConfiguration().apply(configuration);
+        }
+
+        @Override
+        public String apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getString(configurable.key());
+        }
+    }
+
+    protected final ImmutableList<Shard> shards;
+    protected final AtomicLong spanning;
+
+    protected ShardRouter(ImmutableList<Shard> shards) {
+        this.shards = shards;
+        this.spanning = new AtomicLong(0L);
+    }
+
+    public List<Shard> shards() {
+        return shards;
+    }
+
+    /**
+     * @return null if the path is on the default ensemble
+     */
+    public Shard shard(String path) {
+        for (Shard shard: shards) {
+            if (shard.contains(path)) {
+                return shard;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Must only be called if {@link #isSingleShard(Records.Request)}.
+     *
+     * @return null if the request is for the default ensemble
+     */
+    public Shard shard(Records.Request record) {
+        if (record instanceof IMultiRequest) {
+            for (Records.MultiOpRequest op: (IMultiRequest) record) {
+                if (op instanceof Records.PathGetter) {
+                    return shard(((Records.PathGetter) op).getPath());
+                }
+            }
+            return null;
+        }
+        if (record instanceof Records.PathGetter) {
+            String path = ((Records.PathGetter) record).getPath();
+            if (path != null) {
+                return shard(path);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return false for a multi with operations on more than one ensemble
+     */
+    public boolean isSingleShard(Records.Request record) {
+        if (!(record instanceof IMultiRequest)) {
+            return true;
+        }
+        boolean first = true;
+        Shard shard = null;
+        for (Records.MultiOpRequest op: (IMultiRequest) record) {
+            if (!(op instanceof Records.PathGetter)) {
+                continue;
+            }
+            Shard next = shard(((Records.PathGetter) op).getPath());
+            if (first) {
+                shard = next;
+                first = false;
+            } else if (next != shard) {
+                spanning.incrementAndGet();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public Sessions newSessions(ProxySessionExecutor owner) {
+        return new Sessions(owner);
+    }
+
+    public StringBuilder mntr(StringBuilder output) {
+        output.append("zk_proxy_shard_spanning_multis\t").append(spanning.get()).append('\n');
+        for (int i=0; i<shards.size(); ++i) {
+            Shard shard = shards.get(i);
+            String prefix = "zk_proxy_shard_" + i + "_";
+            output.append(prefix).append("prefix\t").append(shard.prefix()).append('\n');
+            output.append(prefix).append("sessions\t").append(shard.sessions()).append('\n');
+            output.append(prefix).append("requests\t").append(shard.requests()).append('\n');
+            shard.selector().mntr(output);
+        }
+        return output;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("shards", shards).toString();
+    }
+
+    /**
+     * An ensemble and the paths under one prefix.
+     */
+    public static class Shard {
+
+        protected final String prefix;
+        protected final String parent;
+        protected final ServerSelector selector;
+        protected final ConnectionClientExecutorsService<Message.ClientRequest<?>, ConnectMessage.Request, MessageClientExecutor<?>> clients;
+        protected final AtomicInteger sessions;
+        protected final AtomicLong requests;
+
+        public Shard(
+                String prefix,
+                ServerSelector selector,
+                ConnectionClientExecutorsService<Message.ClientRequest<?>, ConnectMessage.Request, MessageClientExecutor<?>> clients) {
+            this.prefix = prefix;
+            this.parent = prefix + '/';
+            this.selector = selector;
+            this.clients = clients;
+            this.sessions = new AtomicInteger(0);
+            this.requests = new AtomicLong(0L);
+        }
+
+        public String prefix() {
+            return prefix;
+        }
+
+        public ServerSelector selector() {
+            return selector;
+        }
+
+        /**
+         * To be started and stopped with the proxy.
+         */
+        public ConnectionClientExecutorsService<Message.ClientRequest<?>, ConnectMessage.Request, MessageClientExecutor<?>> clients() {
+            return clients;
+        }
+
+        public int sessions() {
+            return sessions.get();
+        }
+
+        public long requests() {
+            return requests.get();
+        }
+
+        public boolean contains(String path) {
+            return path.equals(prefix) || path.startsWith(parent);
+        }
+
+        @Override
+        public String toString() {
+            return Objects.toStringHelper(this)
+                    .add("prefix", prefix)
+                    .add("servers", selector.servers().keySet()).toString();
+        }
+    }
+
+    /**
+     * Backend sessions of one client session on the other ensembles, opened on first use.
+     */
+    public class Sessions {
+
+        protected final Logger logger;
+        protected final ProxySessionExecutor owner;
+        // guarded by this
+        protected final Map<Shard, ListenableFuture<? extends MessageClientExecutor<?>>> clients;
+        // guarded by this
+        protected final List<Message.ClientRequest<?>> auths;
+        protected boolean closed;
+
+        public Sessions(ProxySessionExecutor owner) {
+            this.logger = LogManager.getLogger(this);
+            this.owner = owner;
+            this.clients = Maps.newHashMap();
+            this.auths = Lists.newArrayList();
+            this.closed = false;
+        }
+
+        public ListenableFuture<Message.ServerResponse<?>> submit(Shard shard, final Message.ClientRequest<?> request) {
+            shard.requests.incrementAndGet();
+            return Futures.transform(client(shard), new AsyncFunction<MessageClientExecutor<?>, Message.ServerResponse<?>>() {
+                @Override
+                public ListenableFuture<Message.ServerResponse<?>> apply(MessageClientExecutor<?> input) {
+                    return input.submit(request);
+                }
+            });
+        }
+
+        /**
+         * Sends an auth request of the client to every open shard session,
+         * and keeps it for shard sessions opened later.
+         */
+        public void auth(Message.ClientRequest<?> request) {
+            final Message.ClientRequest<?> auth = ProtocolRequestMessage.of(request.xid(), request.record());
+            List<ListenableFuture<? extends MessageClientExecutor<?>>> clients;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                auths.add(auth);
+                clients = Lists.newArrayList(this.clients.values());
+            }
+            for (ListenableFuture<? extends MessageClientExecutor<?>> client: clients) {
+                Futures.addCallback(client, new FutureCallback<MessageClientExecutor<?>>() {
+                    @Override
+                    public void onSuccess(MessageClientExecutor<?> result) {
+                        result.submit(auth);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                    }
+                });
+            }
+        }
+
+        /**
+         * Closes every backend session with the client's close request.
+         */
+        public void close(Message.ClientRequest<?> request) {
+            for (ListenableFuture<? extends MessageClientExecutor<?>> client: closed()) {
+                final Message.ClientRequest<?> close = ProtocolRequestMessage.of(request.xid(), request.record());
+                Futures.addCallback(client, new FutureCallback<MessageClientExecutor<?>>() {
+                    @Override
+                    public void onSuccess(MessageClientExecutor<?> result) {
+                        result.submit(close);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                    }
+                });
+            }
+        }
+
+        /**
+         * Drops every backend connection, so the ensembles expire the backend sessions.
+         */
+        public void expire() {
+            for (ListenableFuture<? extends MessageClientExecutor<?>> client: closed()) {
+                Futures.addCallback(client, new FutureCallback<MessageClientExecutor<?>>() {
+                    @Override
+                    public void onSuccess(MessageClientExecutor<?> result) {
+                        result.connection().close();
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                    }
+                });
+            }
+        }
+
+        protected synchronized List<ListenableFuture<? extends MessageClientExecutor<?>>> closed() {
+            closed = true;
+            List<ListenableFuture<? extends MessageClientExecutor<?>>> clients = Lists.newArrayList(this.clients.values());
+            for (Shard shard: this.clients.keySet()) {
+                shard.sessions.decrementAndGet();
+            }
+            this.clients.clear();
+            return clients;
+        }
+
+        protected synchronized ListenableFuture<? extends MessageClientExecutor<?>> client(final Shard shard) {
+            if (closed) {
+                return Futures.immediateFailedFuture(new IllegalStateException("closed"));
+            }
+            ListenableFuture<? extends MessageClientExecutor<?>> client = clients.get(shard);
+            if (client == null) {
+                // same timeout as the client asked for
+                // and authenticated as the client, before the requests waiting on it
+                client = Futures.transform(
+                        shard.clients().get(ConnectMessage.Request.NewRequest.newInstance(
+                                TimeValue.create(owner.session().parameters().timeOut(), TimeUnit.MILLISECONDS), 0L)),
+                        new Replay(ImmutableList.copyOf(auths)));
+                clients.put(shard, client);
+                shard.sessions.incrementAndGet();
+                Futures.addCallback(client, new FutureCallback<MessageClientExecutor<?>>() {
+                    @Override
+                    public void onSuccess(MessageClientExecutor<?> result) {
+                        result.subscribe(new Listener(shard));
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        logger.warn("Error connecting to shard {} for 0x{}", shard, Long.toHexString(owner.session().id()), t);
+                        lost(shard);
+                    }
+                });
+            }
+            return client;
+        }
+
+        /**
+         * Ephemeral nodes and watches on the shard are gone,
+         * so the client session has to go too.
+         */
+        protected void lost(Shard shard) {
+            boolean expire;
+            synchronized (this) {
+                expire = !closed;
+                if (clients.remove(shard) != null) {
+                    shard.sessions.decrementAndGet();
+                }
+            }
+            if (expire) {
+                logger.info("Lost shard {} session of 0x{}", shard, Long.toHexString(owner.session().id()));
+                owner.expire();
+            }
+        }
+
+        protected class Replay implements Function<MessageClientExecutor<?>, MessageClientExecutor<?>> {
+
+            protected final List<Message.ClientRequest<?>> requests;
+
+            public Replay(List<Message.ClientRequest<?>> requests) {
+                this.requests = requests;
+            }
+
+            @Override
+            public MessageClientExecutor<?> apply(MessageClientExecutor<?> input) {
+                for (Message.ClientRequest<?> request: requests) {
+                    input.submit(request);
+                }
+                return input;
+            }
+        }
+
+        protected class Listener implements SessionListener {
+
+            protected final Shard shard;
+
+            public Listener(Shard shard) {
+                this.shard = shard;
+            }
+
+            @Override
+            public void handleAutomatonTransition(Automaton.Transition<ProtocolState> transition) {
+                if (transition.from() == ProtocolState.CONNECTED) {
+                    lost(shard);
+                }
+            }
+
+            @Override
+            public void handleNotification(
+                    Operation.ProtocolResponse<IWatcherEvent> notification) {
+                owner.deliver(notification);
+            }
+        }
+    }
+}
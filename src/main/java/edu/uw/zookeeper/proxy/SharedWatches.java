@@ -0,0 +1,518 @@
+package edu.uw.zookeeper.proxy;
+
+import java.net.SocketAddress;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Watcher;
+
+import com.google.common.base.Function;
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.typesafe.config.ConfigValueType;
+
+import edu.uw.zookeeper.common.Configurable;
+import edu.uw.zookeeper.common.Configuration;
+import edu.uw.zookeeper.protocol.Message;
+import edu.uw.zookeeper.protocol.Operation;
+import edu.uw.zookeeper.protocol.ProtocolRequestMessage;
+import edu.uw.zookeeper.protocol.ProtocolResponseMessage;
+import edu.uw.zookeeper.protocol.proto.IExistsRequest;
+import edu.uw.zookeeper.protocol.proto.IGetChildren2Request;
+import edu.uw.zookeeper.protocol.proto.IGetChildrenRequest;
+import edu.uw.zookeeper.protocol.proto.IGetDataRequest;
+import edu.uw.zookeeper.protocol.proto.IWatcherEvent;
+import edu.uw.zookeeper.protocol.proto.OpCode;
+import edu.uw.zookeeper.protocol.proto.OpCodeXid;
+import edu.uw.zookeeper.protocol.proto.Records;
+
+/**
+ * Keeps one backend watch per server, path and watch type for all sessions
+ * that each have their own backend session.
+ *
+ * The first session to set a watch owns the backend watch.
+ * Once the owner's watch is confirmed, other sessions on the same server
+ * send their watching reads without the watch flag and are added as watchers.
+ * The owner's notification is delivered to every watcher and then forgotten,
+ * so each client still sees a one-shot watch.
+ *
+ * A notification reaches a watcher through the owner's connection,
+ * but the watcher reads through its own. So a watcher's response to a read of a shared path
+ * is held until a barrier read through the owner's backend session returns,
+ * which the backend answers only after any notification it sent the owner before.
+ * A watcher thus sees the notification before it can see the new data.
+ * If the owner's backend session goes away, the remaining watchers are sent
+ * a changed event for the path, since changes can no longer be ruled out,
+ * and any cached read of the path is dropped.
+ */
+public class SharedWatches {
+
+    public static SharedWatches newInstance() {
+        return new SharedWatches();
+    }
+
+    @Configurable(arg="shareWatches", key="shareWatches", value="false", type=ConfigValueType.BOOLEAN, help="one backend watch per path for all sessions on a server")
+    public static class ShareWatchesConfiguration implements Function<Configuration, Boolean> {
+
+        public static Boolean get(Configuration configuration) {
+            return new ShareWatchesConfiguration().apply(configuration);
+        }
+
+        @Override
+        public Boolean apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getBoolean(configurable.key());
+        }
+    }
+
+    /**
+     * @return true if the response means the request left a watch behind
+     */
+    public static boolean isWatchSet(Records.Request record, Message.ServerResponse<?> response) {
+        if (response.record() instanceof Operation.Error) {
+            return (record.opcode() == OpCode.EXISTS)
+                    && (((Operation.Error) response.record()).error() == KeeperException.Code.NONODE);
+        }
+        return true;
+    }
+
+    /**
+     * @return the same read without the watch flag, or null if not a watching read
+     */
+    public static Records.Request unwatched(Records.Request record) {
+        if (!(record instanceof Records.WatchGetter) || !((Records.WatchGetter) record).getWatch()) {
+            return null;
+        }
+        String path = ((Records.PathGetter) record).getPath();
+        switch (record.opcode()) {
+        case EXISTS:
+            return new IExistsRequest(path, false);
+        case GET_DATA:
+            return new IGetDataRequest(path, false);
+        case GET_CHILDREN:
+            return new IGetChildrenRequest(path, false);
+        case GET_CHILDREN2:
+            return new IGetChildren2Request(path, false);
+        default:
+            return null;
+        }
+    }
+
+    // no client uses it, since client xids start at 1
+    protected static final int BARRIER_XID = 0;
+
+    // guarded by this
+    protected final Map<Key, Entry> entries;
+    // guarded by this
+    protected final Map<ProxySessionExecutor, Barrier> barriers;
+    protected final AtomicLong shared;
+    protected final AtomicLong delivered;
+    protected final AtomicLong held;
+
+    protected SharedWatches() {
+        this.entries = Maps.newHashMap();
+        this.barriers = Maps.newHashMap();
+        this.shared = new AtomicLong(0L);
+        this.delivered = new AtomicLong(0L);
+        this.held = new AtomicLong(0L);
+    }
+
+    /**
+     * Sends a watching read through the session,
+     * sharing an existing backend watch if there is one.
+     *
+     * @param forward sends a request through the session's own backend session
+     */
+    public ListenableFuture<Message.ServerResponse<?>> submit(
+            final ProxySessionExecutor session,
+            SocketAddress server,
+            final Message.ClientRequest<?> request,
+            FairScheduler.Dispatcher forward) {
+        final Records.Request record = request.record();
+        Records.Request unwatched = unwatched(record);
+        if (unwatched == null) {
+            ListenableFuture<Message.ServerResponse<?>> future = forward.dispatch(request);
+            ProxySessionExecutor owner = ReadCache.isCacheable(record.opcode())
+                    ? owner(session, server, ((Records.PathGetter) record).getPath()) : null;
+            return (owner == null) ? future : ordered(future, owner);
+        }
+        final Key key = new Key(server, MultiplexingClientPool.WatchType.forRequest(record.opcode()), ((Records.PathGetter) record).getPath());
+        final Entry entry;
+        final SettableFuture<Message.ServerResponse<?>> future = SettableFuture.create();
+        boolean watching;
+        // registered under the lock, but sent after releasing it
+        synchronized (this) {
+            Entry existing = entries.get(key);
+            if ((existing != null) && existing.isArmed()) {
+                entry = existing;
+                shared.incrementAndGet();
+                entry.pending.put(session, future);
+                watching = false;
+            } else if (existing == null) {
+                entry = new Entry(key, session);
+                entries.put(key, entry);
+                watching = true;
+            } else {
+                // still arming, so set a watch of our own
+                entry = null;
+                watching = true;
+            }
+        }
+        ListenableFuture<Message.ServerResponse<?>> sent = forward.dispatch(
+                watching ? request : ProtocolRequestMessage.of(request.xid(), unwatched));
+        if (entry == null) {
+            return sent;
+        }
+        Futures.addCallback(sent, new FutureCallback<Message.ServerResponse<?>>() {
+            @Override
+            public void onSuccess(Message.ServerResponse<?> result) {
+                responded(entry, session, isWatchSet(record, result));
+                future.set(result);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                responded(entry, session, false);
+                future.setException(t);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Fans out a notification for a backend watch owned by the session.
+     *
+     * @return false if the notification was not for a shared watch
+     */
+    public boolean notify(
+            ProxySessionExecutor session,
+            SocketAddress server,
+            final Operation.ProtocolResponse<IWatcherEvent> notification) {
+        IWatcherEvent event = notification.record();
+        List<MultiplexingClientPool.WatchType> types;
+        switch (Watcher.Event.EventType.fromInt(event.getType())) {
+        case NodeCreated:
+        case NodeDataChanged:
+            types = Lists.newArrayList(MultiplexingClientPool.WatchType.DATA);
+            break;
+        case NodeChildrenChanged:
+            types = Lists.newArrayList(MultiplexingClientPool.WatchType.CHILD);
+            break;
+        case NodeDeleted:
+            types = Lists.newArrayList(MultiplexingClientPool.WatchType.DATA, MultiplexingClientPool.WatchType.CHILD);
+            break;
+        default:
+            return false;
+        }
+        Set<ProxySessionExecutor> watchers = Sets.newHashSet();
+        List<ListenableFuture<?>> pending = Lists.newArrayList();
+        boolean handled = false;
+        synchronized (this) {
+            for (MultiplexingClientPool.WatchType type: types) {
+                Key key = new Key(server, type, event.getPath());
+                Entry entry = entries.get(key);
+                if ((entry == null) || (entry.owner != session)) {
+                    continue;
+                }
+                handled = true;
+                entries.remove(key);
+                entry.fired = true;
+                watchers.addAll(entry.watchers);
+                for (final Map.Entry<ProxySessionExecutor, ListenableFuture<Message.ServerResponse<?>>> e: entry.pending.entrySet()) {
+                    if (!watchers.contains(e.getKey())) {
+                        // after the response, so the client has registered its watch
+                        final ProxySessionExecutor watcher = e.getKey();
+                        e.getValue().addListener(new Runnable() {
+                            @Override
+                            public void run() {
+                                watcher.deliver(notification);
+                            }
+                        }, MoreExecutors.sameThreadExecutor());
+                        pending.add(e.getValue());
+                    }
+                }
+            }
+        }
+        if (!handled) {
+            return false;
+        }
+        for (ProxySessionExecutor watcher: watchers) {
+            watcher.deliver(notification);
+        }
+        delivered.addAndGet(watchers.size() + pending.size());
+        return true;
+    }
+
+    /**
+     * Forgets a session whose backend session has gone away,
+     * telling the watchers of any backend watch it owned that something may have changed.
+     */
+    public void lost(ProxySessionExecutor session) {
+        Map<ProxySessionExecutor, List<Key>> orphaned = Maps.newHashMap();
+        synchronized (this) {
+            Iterator<Entry> itr = entries.values().iterator();
+            while (itr.hasNext()) {
+                Entry entry = itr.next();
+                entry.watchers.remove(session);
+                entry.pending.remove(session);
+                if (entry.owner == session) {
+                    itr.remove();
+                    entry.fired = true;
+                    Set<ProxySessionExecutor> watchers = Sets.newHashSet(entry.watchers);
+                    watchers.addAll(entry.pending.keySet());
+                    for (ProxySessionExecutor watcher: watchers) {
+                        List<Key> keys = orphaned.get(watcher);
+                        if (keys == null) {
+                            keys = Lists.newArrayList();
+                            orphaned.put(watcher, keys);
+                        }
+                        keys.add(entry.key);
+                    }
+                }
+            }
+        }
+        for (Map.Entry<ProxySessionExecutor, List<Key>> e: orphaned.entrySet()) {
+            for (Key key: e.getValue()) {
+                Watcher.Event.EventType type = (key.type == MultiplexingClientPool.WatchType.DATA)
+                        ? Watcher.Event.EventType.NodeDataChanged : Watcher.Event.EventType.NodeChildrenChanged;
+                e.getKey().changed(ProtocolResponseMessage.of(
+                        OpCodeXid.NOTIFICATION.xid(), -1L,
+                        new IWatcherEvent(type.getIntValue(), Watcher.Event.KeeperState.SyncConnected.getIntValue(), key.path)));
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public StringBuilder mntr(StringBuilder output) {
+        output.append("zk_proxy_shared_watches\t").append(size()).append('\n');
+        output.append("zk_proxy_shared_watch_registrations\t").append(shared.get()).append('\n');
+        output.append("zk_proxy_shared_watch_deliveries\t").append(delivered.get()).append('\n');
+        output.append("zk_proxy_shared_watch_held_reads\t").append(held.get()).append('\n');
+        return output;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("watches", size())
+                .add("shared", shared.get()).toString();
+    }
+
+    /**
+     * @return the owner of a shared watch on the path that the session is watching, or null
+     */
+    protected synchronized ProxySessionExecutor owner(ProxySessionExecutor session, SocketAddress server, String path) {
+        for (MultiplexingClientPool.WatchType type: MultiplexingClientPool.WatchType.values()) {
+            Entry entry = entries.get(new Key(server, type, path));
+            if ((entry != null) && (entry.owner != session) && !entry.fired
+                    && (entry.watchers.contains(session) || entry.pending.containsKey(session))) {
+                return entry.owner;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Holds a watcher's response until a barrier through the owner's backend session returns.
+     */
+    protected ListenableFuture<Message.ServerResponse<?>> ordered(
+            ListenableFuture<Message.ServerResponse<?>> future,
+            final ProxySessionExecutor owner) {
+        held.incrementAndGet();
+        final SettableFuture<Message.ServerResponse<?>> ordered = SettableFuture.create();
+        Futures.addCallback(future, new FutureCallback<Message.ServerResponse<?>>() {
+            @Override
+            public void onSuccess(final Message.ServerResponse<?> result) {
+                barrier(owner).addListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        ordered.set(result);
+                    }
+                }, MoreExecutors.sameThreadExecutor());
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                ordered.setException(t);
+            }
+        });
+        return ordered;
+    }
+
+    /**
+     * @return done once a barrier read sent after this call has returned through the owner
+     */
+    protected ListenableFuture<Void> barrier(ProxySessionExecutor owner) {
+        Barrier barrier;
+        ListenableFuture<Void> future;
+        boolean send;
+        synchronized (this) {
+            barrier = barriers.get(owner);
+            if (barrier == null) {
+                barrier = new Barrier(owner);
+                barriers.put(owner, barrier);
+            }
+            future = barrier.join();
+            send = barrier.claim();
+        }
+        if (send) {
+            barrier.send();
+        }
+        return future;
+    }
+
+    protected void responded(Entry entry, ProxySessionExecutor session, boolean watched) {
+        synchronized (this) {
+            if (entry.pending.remove(session) == null) {
+                if (entry.owner != session) {
+                    return;
+                }
+                // the owner's own watching read
+                if (!watched) {
+                    if (entries.get(entry.key) == entry) {
+                        entries.remove(entry.key);
+                    }
+                    return;
+                }
+                entry.armed = true;
+            }
+            if (watched && !entry.fired) {
+                entry.watchers.add(session);
+            }
+        }
+    }
+
+    protected static final class Key {
+
+        protected final SocketAddress server;
+        protected final MultiplexingClientPool.WatchType type;
+        protected final String path;
+
+        public Key(SocketAddress server, MultiplexingClientPool.WatchType type, String path) {
+            this.server = server;
+            this.type = type;
+            this.path = path;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return (type == other.type)
+                    && path.equals(other.path)
+                    && server.equals(other.server);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(server, type, path);
+        }
+    }
+
+    /**
+     * Barrier reads through one owner, at most one in flight so their xids cannot collide.
+     * Callers that join while one is in flight wait for the next.
+     */
+    protected final class Barrier implements Runnable {
+
+        protected final ProxySessionExecutor owner;
+        // guarded by the registry
+        protected SettableFuture<Void> next;
+        // guarded by the registry
+        protected SettableFuture<Void> sent;
+
+        public Barrier(ProxySessionExecutor owner) {
+            this.owner = owner;
+            this.next = null;
+            this.sent = null;
+        }
+
+        public ListenableFuture<Void> join() {
+            if (next == null) {
+                next = SettableFuture.create();
+            }
+            return next;
+        }
+
+        /**
+         * @return true if the caller should send the next read
+         */
+        public boolean claim() {
+            if ((sent != null) || (next == null)) {
+                return false;
+            }
+            sent = next;
+            next = null;
+            return true;
+        }
+
+        public void send() {
+            // the result does not matter, only that the backend answered or the session is gone
+            owner.forward(ProtocolRequestMessage.of(BARRIER_XID, new IExistsRequest("/", false)))
+                .addListener(this, MoreExecutors.sameThreadExecutor());
+        }
+
+        @Override
+        public void run() {
+            SettableFuture<Void> done;
+            boolean again;
+            synchronized (SharedWatches.this) {
+                done = sent;
+                sent = null;
+                again = claim();
+                if (!again) {
+                    barriers.remove(owner);
+                }
+            }
+            done.set(null);
+            if (again) {
+                send();
+            }
+        }
+    }
+
+    // guarded by the registry
+    protected static final class Entry {
+
+        protected final Key key;
+        protected final ProxySessionExecutor owner;
+        protected final Set<ProxySessionExecutor> watchers;
+        protected final Map<ProxySessionExecutor, ListenableFuture<Message.ServerResponse<?>>> pending;
+        protected boolean armed;
+        protected boolean fired;
+
+        public Entry(Key key, ProxySessionExecutor owner) {
+            this.key = key;
+            this.owner = owner;
+            this.watchers = Sets.newHashSet();
+            this.pending = Maps.newHashMap();
+            this.armed = false;
+            this.fired = false;
+        }
+
+        public boolean isArmed() {
+            return armed && !fired;
+        }
+    }
+}
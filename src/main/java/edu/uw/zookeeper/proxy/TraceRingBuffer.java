@@ -0,0 +1,191 @@
+package edu.uw.zookeeper.proxy;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import edu.uw.zookeeper.common.Publisher;
+
+/**
+ * Bounded lock-free multi-producer single-consumer buffer of trace records.
+ *
+ * Slots are preallocated and reused. A producer that finds the buffer full
+ * drops its record and counts it instead of waiting.
+ *
+ * A buffer holds either binary trace records, drained to a {@link Consumer},
+ * or opaque events, drained to a {@link Publisher}.
+ */
+public class TraceRingBuffer {
+
+    public static TraceRingBuffer newInstance(int capacity) {
+        return new TraceRingBuffer(capacity);
+    }
+
+    public static interface Consumer {
+        void request(long nanoTime, long sessionId, int xid, int opcode, String path);
+
+        void response(long nanoTime, long sessionId, int xid, long zxid, int err);
+    }
+
+    // slot type of an opaque event, apart from the binary record types
+    protected static final byte EVENT = 0;
+
+    protected static final class Slot {
+        protected byte type;
+        protected Object event;
+        protected long nanoTime;
+        protected long sessionId;
+        protected int xid;
+        protected int opcode;
+        protected String path;
+        protected long zxid;
+        protected int err;
+    }
+
+    protected final int mask;
+    protected final Slot[] slots;
+    // a slot at index i may be written at position p when its sequence is p,
+    // and read when its sequence is p + 1
+    protected final AtomicLongArray sequences;
+    protected final AtomicLong tail;
+    protected final AtomicLong dropped;
+    protected long head;
+
+    protected TraceRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = size - 1;
+        this.slots = new Slot[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i=0; i<size; ++i) {
+            slots[i] = new Slot();
+            sequences.set(i, i);
+        }
+        this.tail = new AtomicLong(0L);
+        this.dropped = new AtomicLong(0L);
+        this.head = 0L;
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    public long dropped() {
+        return dropped.get();
+    }
+
+    public boolean offerRequest(long nanoTime, long sessionId, int xid, int opcode, String path) {
+        long position = claim();
+        if (position < 0L) {
+            return false;
+        }
+        Slot slot = slots[(int) (position & mask)];
+        slot.type = BinaryTraceFormat.REQUEST;
+        slot.nanoTime = nanoTime;
+        slot.sessionId = sessionId;
+        slot.xid = xid;
+        slot.opcode = opcode;
+        slot.path = path;
+        publish(position);
+        return true;
+    }
+
+    public boolean offerResponse(long nanoTime, long sessionId, int xid, long zxid, int err) {
+        long position = claim();
+        if (position < 0L) {
+            return false;
+        }
+        Slot slot = slots[(int) (position & mask)];
+        slot.type = BinaryTraceFormat.RESPONSE;
+        slot.nanoTime = nanoTime;
+        slot.sessionId = sessionId;
+        slot.xid = xid;
+        slot.path = null;
+        slot.zxid = zxid;
+        slot.err = err;
+        publish(position);
+        return true;
+    }
+
+    public boolean offer(Object event) {
+        long position = claim();
+        if (position < 0L) {
+            return false;
+        }
+        Slot slot = slots[(int) (position & mask)];
+        slot.type = EVENT;
+        slot.event = event;
+        publish(position);
+        return true;
+    }
+
+    /**
+     * Must only be called by the single consumer thread.
+     *
+     * @return number of events consumed
+     */
+    public int drain(Publisher publisher, int limit) {
+        int count = 0;
+        while (count < limit) {
+            int index = (int) (head & mask);
+            if (sequences.get(index) != head + 1L) {
+                break;
+            }
+            Slot slot = slots[index];
+            Object event = slot.event;
+            slot.event = null;
+            sequences.lazySet(index, head + slots.length);
+            head++;
+            count++;
+            publisher.post(event);
+        }
+        return count;
+    }
+
+    /**
+     * Must only be called by the single consumer thread.
+     *
+     * @return number of records consumed
+     */
+    public int drain(Consumer consumer, int limit) {
+        int count = 0;
+        while (count < limit) {
+            int index = (int) (head & mask);
+            if (sequences.get(index) != head + 1L) {
+                break;
+            }
+            Slot slot = slots[index];
+            if (slot.type == BinaryTraceFormat.REQUEST) {
+                consumer.request(slot.nanoTime, slot.sessionId, slot.xid, slot.opcode, slot.path);
+            } else {
+                consumer.response(slot.nanoTime, slot.sessionId, slot.xid, slot.zxid, slot.err);
+            }
+            slot.path = null;
+            sequences.lazySet(index, head + slots.length);
+            head++;
+            count++;
+        }
+        return count;
+    }
+
+    protected long claim() {
+        long position = tail.get();
+        while (true) {
+            long sequence = sequences.get((int) (position & mask));
+            long difference = sequence - position;
+            if (difference == 0L) {
+                if (tail.compareAndSet(position, position + 1L)) {
+                    return position;
+                }
+                position = tail.get();
+            } else if (difference < 0L) {
+                dropped.incrementAndGet();
+                return -1L;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    protected void publish(long position) {
+        sequences.lazySet((int) (position & mask), position + 1L);
+    }
+}
@@ -0,0 +1,163 @@
+package edu.uw.zookeeper.proxy;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.base.Function;
+import com.google.common.base.Objects;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Sets;
+import com.typesafe.config.ConfigValueType;
+
+import edu.uw.zookeeper.common.Configurable;
+import edu.uw.zookeeper.common.Configuration;
+import edu.uw.zookeeper.protocol.proto.OpCode;
+
+/**
+ * Decides which requests are traced. All settings may be changed at runtime.
+ *
+ * Decisions are a deterministic function of the session id and xid,
+ * so a response is traced exactly when its request is.
+ */
+public class TraceSampler {
+
+    public static TraceSampler fromConfiguration(Configuration configuration) {
+        return new TraceSampler(
+                SampleRateConfiguration.get(configuration), 
+                SessionSampleRateConfiguration.get(configuration));
+    }
+
+    @Configurable(path="trace", arg="traceSampleRate", key="sampleRate", value="1.0", type=ConfigValueType.NUMBER, help="fraction of requests to trace")
+    public static class SampleRateConfiguration implements Function<Configuration, Double> {
+
+        public static Double get(Configuration configuration) {
+            return new SampleRateConfiguration().apply(configuration);
+        }
+
+        @Override
+        public Double apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getDouble(configurable.key());
+        }
+    }
+
+    @Configurable(path="trace", arg="traceSessionSampleRate", key="sessionSampleRate", value="1.0", type=ConfigValueType.NUMBER, help="fraction of sessions to trace")
+    public static class SessionSampleRateConfiguration implements Function<Configuration, Double> {
+
+        public static Double get(Configuration configuration) {
+            return new SessionSampleRateConfiguration().apply(configuration);
+        }
+
+        @Override
+        public Double apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getDouble(configurable.key());
+        }
+    }
+
+    protected static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    protected static double fraction(long hash) {
+        return (hash >>> 11) * 0x1.0p-53;
+    }
+
+    protected volatile double rate;
+    protected volatile double sessionRate;
+    protected final ConcurrentMap<Integer, Double> opcodeRates;
+    protected final Set<Long> sessions;
+
+    public TraceSampler(double rate, double sessionRate) {
+        this.rate = rate;
+        this.sessionRate = sessionRate;
+        this.opcodeRates = new MapMaker().makeMap();
+        this.sessions = Sets.newSetFromMap(new MapMaker().<Long, Boolean>makeMap());
+    }
+
+    public boolean sample(long sessionId, int xid, int opcode) {
+        if (!sessions.isEmpty() && sessions.contains(Long.valueOf(sessionId))) {
+            return true;
+        }
+        if (!sampleSession(sessionId)) {
+            return false;
+        }
+        Double opcodeRate = opcodeRates.isEmpty() ? null : opcodeRates.get(Integer.valueOf(opcode));
+        double rate = (opcodeRate == null) ? this.rate : opcodeRate.doubleValue();
+        if (rate >= 1.0) {
+            return true;
+        } else if (rate <= 0.0) {
+            return false;
+        } else {
+            return fraction(mix(sessionId * 31L + xid)) < rate;
+        }
+    }
+
+    /**
+     * Only applies the session rate, for tracers that cannot tell requests apart.
+     */
+    public boolean sampleSession(long sessionId) {
+        if (!sessions.isEmpty() && sessions.contains(Long.valueOf(sessionId))) {
+            return true;
+        }
+        double sessionRate = this.sessionRate;
+        return (sessionRate >= 1.0) || (fraction(mix(sessionId)) < sessionRate);
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    public void setRate(double rate) {
+        this.rate = rate;
+    }
+
+    public double getSessionRate() {
+        return sessionRate;
+    }
+
+    public void setSessionRate(double sessionRate) {
+        this.sessionRate = sessionRate;
+    }
+
+    /**
+     * @param rate null to use the default rate
+     */
+    public void setRate(OpCode opcode, Double rate) {
+        Integer key = Integer.valueOf(opcode.intValue());
+        if (rate == null) {
+            opcodeRates.remove(key);
+        } else {
+            opcodeRates.put(key, rate);
+        }
+    }
+
+    /**
+     * Traces every request of a session regardless of rates.
+     */
+    public void include(long sessionId) {
+        sessions.add(Long.valueOf(sessionId));
+    }
+
+    public void exclude(long sessionId) {
+        sessions.remove(Long.valueOf(sessionId));
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("rate", rate)
+                .add("sessionRate", sessionRate)
+                .add("opcodeRates", opcodeRates)
+                .add("sessions", sessions).toString();
+    }
+}
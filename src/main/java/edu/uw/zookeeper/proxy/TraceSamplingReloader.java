@@ -0,0 +1,173 @@
+package edu.uw.zookeeper.proxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+import edu.uw.zookeeper.common.Configurable;
+import edu.uw.zookeeper.common.Configuration;
+import edu.uw.zookeeper.protocol.proto.OpCode;
+
+/**
+ * Replaces the trace sampling settings from a file when the file changes,
+ * or on the <code>rlod</code> command.
+ *
+ * One <code>name=value</code> per line, with <code>#</code> comments:
+ * <code>rate</code> and <code>sessionRate</code> as in the configuration,
+ * an opcode name such as <code>GET_DATA</code> for the rate of that opcode,
+ * and <code>include</code> for a session id, in hex, that is always traced.
+ * Settings missing from the file go back to their configured values.
+ */
+public class TraceSamplingReloader implements Runnable {
+
+    public static final long INTERVAL_MILLIS = 1000L;
+
+    /**
+     * @return null if no sampling file is configured
+     */
+    public static TraceSamplingReloader fromConfiguration(
+            Configuration configuration,
+            TraceSampler sampler) {
+        String file = SamplingFileConfiguration.get(configuration);
+        if (file.trim().isEmpty()) {
+            return null;
+        }
+        return new TraceSamplingReloader(
+                new File(file.trim()),
+                TraceSampler.SampleRateConfiguration.get(configuration),
+                TraceSampler.SessionSampleRateConfiguration.get(configuration),
+                sampler);
+    }
+
+    @Configurable(path="trace", arg="traceSamplingFile", key="samplingFile", value="", help="file of sampling settings reloaded when changed (empty to disable)")
+    public static class SamplingFileConfiguration implements Function<Configuration, String> {
+
+        public static String get(Configuration configuration) {
+            return new SamplingFileConfiguration().apply(configuration);
+        }
+
+        @Override
+        public String apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getString(configurable.key());
+        }
+    }
+
+    protected final Logger logger;
+    protected final File file;
+    protected final double defaultRate;
+    protected final double defaultSessionRate;
+    protected final TraceSampler sampler;
+    // guarded by this
+    protected final Set<Long> included;
+    protected long lastModified;
+    protected final AtomicLong reloads;
+
+    public TraceSamplingReloader(
+            File file,
+            double defaultRate,
+            double defaultSessionRate,
+            TraceSampler sampler) {
+        this.logger = LogManager.getLogger(this);
+        this.file = file;
+        this.defaultRate = defaultRate;
+        this.defaultSessionRate = defaultSessionRate;
+        this.sampler = sampler;
+        this.included = Sets.newHashSet();
+        this.lastModified = 0L;
+        this.reloads = new AtomicLong(0L);
+    }
+
+    @Override
+    public void run() {
+        try {
+            long modified = file.lastModified();
+            boolean changed;
+            synchronized (this) {
+                changed = (modified != 0L) && (modified != lastModified);
+            }
+            if (changed) {
+                reload();
+            }
+        } catch (Exception e) {
+            logger.warn("Error reloading {}", file, e);
+        }
+    }
+
+    /**
+     * @return a line describing the outcome
+     */
+    public synchronized String reload() {
+        lastModified = file.lastModified();
+        double rate = defaultRate;
+        double sessionRate = defaultSessionRate;
+        Map<OpCode, Double> opcodeRates = Maps.newEnumMap(OpCode.class);
+        Set<Long> sessions = Sets.newHashSet();
+        try {
+            for (String line: Files.readLines(file, Charsets.UTF_8)) {
+                int comment = line.indexOf('#');
+                if (comment >= 0) {
+                    line = line.substring(0, comment);
+                }
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                int separator = line.indexOf('=');
+                if (separator < 0) {
+                    throw new IllegalArgumentException(line);
+                }
+                String name = line.substring(0, separator).trim();
+                String value = line.substring(separator + 1).trim();
+                if ("rate".equals(name)) {
+                    rate = Double.parseDouble(value);
+                } else if ("sessionRate".equals(name)) {
+                    sessionRate = Double.parseDouble(value);
+                } else if ("include".equals(name)) {
+                    sessions.add(Long.valueOf(Long.parseLong(value.startsWith("0x") ? value.substring(2) : value, 16)));
+                } else {
+                    opcodeRates.put(OpCode.valueOf(name), Double.valueOf(value));
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Ignoring sampling file {}", file, e);
+            return "error: " + e.getMessage();
+        } catch (IllegalArgumentException e) {
+            logger.warn("Ignoring sampling file {}", file, e);
+            return "error: " + e.getMessage();
+        }
+        sampler.setRate(rate);
+        sampler.setSessionRate(sessionRate);
+        for (OpCode opcode: OpCode.values()) {
+            sampler.setRate(opcode, opcodeRates.get(opcode));
+        }
+        for (Long session: sessions) {
+            sampler.include(session.longValue());
+        }
+        for (Long session: Sets.difference(included, sessions)) {
+            sampler.exclude(session.longValue());
+        }
+        included.clear();
+        included.addAll(sessions);
+        reloads.incrementAndGet();
+        return "sampling: " + sampler;
+    }
+
+    public StringBuilder mntr(StringBuilder output) {
+        output.append("zk_proxy_trace_sampling_reloads\t").append(reloads.get()).append('\n');
+        return output;
+    }
+}
@@ -22,13 +22,15 @@ import edu.uw.zookeeper.protocol.client.ClientProtocolConnection;
 public class TracingProxyServerBuilder extends ProxyServerExecutorBuilder {
 
     public static ProxyServerExecutorBuilder fromRuntimeModule(RuntimeModule runtime) {
-        boolean doTrace = DoTraceConfiguration.get(runtime.getConfiguration());
+        // binary tracing is done by the sessions rather than by the codec
+        boolean doTrace = DoTraceConfiguration.get(runtime.getConfiguration()) 
+                && (BinaryTraceWriter.TraceFormatConfiguration.get(runtime.getConfiguration()) == BinaryTraceWriter.Format.JSON);
         ProxyServerExecutorBuilder builder = doTrace ? TracingProxyServerBuilder.defaults() : ProxyServerExecutorBuilder.defaults();
         return builder.setRuntimeModule(runtime);
     }
     
     public static TracingProxyServerBuilder defaults() {
-        return new TracingProxyServerBuilder(null, null, ClientBuilder.defaults());
+        return new TracingProxyServerBuilder(null, null, null, null, null, ClientBuilder.defaults());
     }
     
     @Configurable(arg="trace", key="doTrace", value="true", type=ConfigValueType.BOOLEAN)
@@ -48,13 +50,18 @@ public class TracingProxyServerBuilder extends ProxyServerExecutorBuilder {
     }
 
     protected final TracingBuilder tracingBuilder;
+    protected final BufferedPublisher publisher;
     
     protected TracingProxyServerBuilder(
             TracingBuilder tracingBuilder,
+            BufferedPublisher publisher,
             NettyModule netModule,
+            ProxyFeatures features,
+            PeriodicTasks tasks,
             ClientBuilder clientBuilder) {
-        super(netModule, clientBuilder);
+        super(netModule, features, tasks, clientBuilder);
         this.tracingBuilder = tracingBuilder;
+        this.publisher = publisher;
     }
     
     public TracingBuilder getTracingBuilder() {
@@ -63,7 +70,24 @@ public class TracingProxyServerBuilder extends ProxyServerExecutorBuilder {
 
     public TracingProxyServerBuilder setTracingBuilder(
             TracingBuilder tracingBuilder) {
-        return newInstance(tracingBuilder, netModule, delegate);
+        return newInstance(tracingBuilder, publisher, netModule, features, tasks, delegate);
+    }
+
+    /**
+     * Sampled and buffered in front of the trace publisher.
+     */
+    public BufferedPublisher getPublisher() {
+        return publisher;
+    }
+
+    public TracingProxyServerBuilder setPublisher(
+            BufferedPublisher publisher) {
+        return newInstance(tracingBuilder, publisher, netModule, features, tasks, delegate);
+    }
+
+    @Override
+    protected BufferedPublisher getTracePublisher() {
+        return getPublisher();
     }
 
     @Override
@@ -71,27 +95,41 @@ public class TracingProxyServerBuilder extends ProxyServerExecutorBuilder {
         if (tracingBuilder == null) {
             return setTracingBuilder(getDefaultTracingBuilder()).setDefaults();
         }
+        if (publisher == null) {
+            return setPublisher(getDefaultPublisher()).setDefaults();
+        }
         return (TracingProxyServerBuilder) super.setDefaults();
     }
 
     @Override
     protected TracingProxyServerBuilder newInstance(
             NettyModule netModule,
+            ProxyFeatures features,
+            PeriodicTasks tasks,
             ClientBuilder clientBuilder) {
-        return newInstance(tracingBuilder, netModule, clientBuilder);
+        return newInstance(tracingBuilder, publisher, netModule, features, tasks, clientBuilder);
     }
     
     protected TracingProxyServerBuilder newInstance(
             TracingBuilder tracingBuilder,
+            BufferedPublisher publisher,
             NettyModule netModule,
+            ProxyFeatures features,
+            PeriodicTasks tasks,
             ClientBuilder clientBuilder) {
-        return new TracingProxyServerBuilder(tracingBuilder, netModule, clientBuilder);
+        return new TracingProxyServerBuilder(tracingBuilder, publisher, netModule, features, tasks, clientBuilder);
     }
     
     protected TracingBuilder getDefaultTracingBuilder() {
         return TracingBuilder.defaults().setRuntimeModule(getRuntimeModule()).setDefaults();
     }
 
+    protected BufferedPublisher getDefaultPublisher() {
+        return BufferedPublisher.fromConfiguration(
+                getRuntimeModule().getConfiguration(), 
+                getTracingBuilder().getTracePublisher().getPublisher());
+    }
+
     @Override
     protected ClientBuilder getDefaultClientBuilder() {
         ClientBuilder builder = getClientBuilder();
@@ -103,8 +141,7 @@ public class TracingProxyServerBuilder extends ProxyServerExecutorBuilder {
                                 new Factory<ProtocolTracingCodec>() {
                                     @Override
                                     public ProtocolTracingCodec get() {
-                                        // TODO Auto-generated method stub
-                                        return ProtocolTracingCodec.defaults(getTracingBuilder().getTracePublisher().getPublisher());
+                                        return ProtocolTracingCodec.defaults(getPublisher().forConnection());
                                     }
                                 })
                         .setConnectionFactory(
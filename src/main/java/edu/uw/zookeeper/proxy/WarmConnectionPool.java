@@ -0,0 +1,307 @@
+package edu.uw.zookeeper.proxy;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Function;
+import com.google.common.base.Objects;
+import com.google.common.collect.MapMaker;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Service;
+import com.typesafe.config.ConfigValueType;
+
+import edu.uw.zookeeper.ServerInetAddressView;
+import edu.uw.zookeeper.common.Configurable;
+import edu.uw.zookeeper.common.Configuration;
+import edu.uw.zookeeper.common.Factory;
+import edu.uw.zookeeper.net.Connection;
+import edu.uw.zookeeper.protocol.ProtocolConnection;
+
+/**
+ * Keeps established backend connections ready for new sessions,
+ * so a new session only waits for its handshake.
+ *
+ * Taking a connection starts a replacement in the background.
+ * A pool is closed, along with its idle connections, when its server is removed from the ensemble.
+ */
+public class WarmConnectionPool<C extends ProtocolConnection<?,?,?,?,?>> implements Factory<ListenableFuture<? extends C>> {
+
+    public static <C extends ProtocolConnection<?,?,?,?,?>> WarmConnectionPool<C> newInstance(
+            int size,
+            Factory<? extends ListenableFuture<? extends C>> connections,
+            ScheduledExecutorService scheduler) {
+        return new WarmConnectionPool<C>(size, connections, scheduler);
+    }
+
+    // first delay before refilling again after a failed connect, doubled per consecutive failure
+    public static final long RETRY_MILLIS = 100L;
+    protected static final int MAX_BACKOFF = 8;
+
+    @Configurable(path="backend", arg="warmConnections", key="warmConnections", value="0", type=ConfigValueType.NUMBER, help="established connections kept ready per server")
+    public static class WarmConnectionsConfiguration implements Function<Configuration, Integer> {
+
+        public static Integer get(Configuration configuration) {
+            return new WarmConnectionsConfiguration().apply(configuration);
+        }
+
+        @Override
+        public Integer apply(Configuration configuration) {
+            Configurable configurable = getClass().getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getInt(configurable.key());
+        }
+    }
+
+    /**
+     * One pool per server, all filled once the connection factory is running.
+     */
+    public static class Registry implements ServerSelector.Listener {
+
+        public static Registry fromConfiguration(Configuration configuration) {
+            return new Registry(WarmConnectionsConfiguration.get(configuration));
+        }
+
+        protected final int size;
+        protected final ConcurrentMap<ServerInetAddressView, WarmConnectionPool<?>> pools;
+
+        public Registry(int size) {
+            this.size = size;
+            this.pools = new MapMaker().makeMap();
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * A server keeps its pool until it is removed, so asking again reuses it.
+         * 
+         * @param service started connection factory, or null if already running
+         * @param scheduler for refills after a failed connect
+         * @return connections unchanged if pooling is disabled
+         */
+        @SuppressWarnings("unchecked")
+        public <C extends ProtocolConnection<?,?,?,?,?>> Factory<? extends ListenableFuture<? extends C>> get(
+                ServerInetAddressView server,
+                Factory<? extends ListenableFuture<? extends C>> connections,
+                Service service,
+                ScheduledExecutorService scheduler) {
+            if (size <= 0) {
+                return connections;
+            }
+            final WarmConnectionPool<C> pool = newInstance(size, connections, scheduler);
+            WarmConnectionPool<?> existing = pools.putIfAbsent(server, pool);
+            if (existing != null) {
+                // the new pool has not connected anything yet
+                return (WarmConnectionPool<C>) existing;
+            }
+            if ((service == null) || service.isRunning()) {
+                pool.refill();
+            } else {
+                service.addListener(new Service.Listener() {
+                    @Override
+                    public void running() {
+                        pool.refill();
+                    }
+                }, MoreExecutors.sameThreadExecutor());
+            }
+            return pool;
+        }
+
+        /**
+         * Closes the pools of removed servers.
+         */
+        @Override
+        public void removed(List<ServerInetAddressView> servers) {
+            for (ServerInetAddressView server: servers) {
+                WarmConnectionPool<?> pool = pools.remove(server);
+                if (pool != null) {
+                    pool.close();
+                }
+            }
+        }
+
+        public StringBuilder mntr(StringBuilder output) {
+            for (Map.Entry<ServerInetAddressView, WarmConnectionPool<?>> entry: pools.entrySet()) {
+                entry.getValue().mntr(
+                        "zk_proxy_backend_" + ProxyMetrics.key(entry.getKey().get()) + "_pool_",
+                        output);
+            }
+            return output;
+        }
+    }
+
+    protected final int size;
+    protected final Factory<? extends ListenableFuture<? extends C>> connections;
+    protected final ScheduledExecutorService scheduler;
+    protected final Queue<C> ready;
+    protected final AtomicInteger available;
+    protected final AtomicInteger filling;
+    protected final AtomicLong hits;
+    protected final AtomicLong misses;
+    protected final AtomicLong refills;
+    protected final AtomicLong failures;
+    protected final AtomicLong refillNanos;
+    protected final AtomicLong maxRefillNanos;
+    // set while a refill is scheduled after a failure
+    protected final AtomicBoolean retrying;
+    protected final AtomicInteger backoff;
+    protected volatile boolean closed;
+
+    protected WarmConnectionPool(
+            int size,
+            Factory<? extends ListenableFuture<? extends C>> connections,
+            ScheduledExecutorService scheduler) {
+        this.size = size;
+        this.connections = connections;
+        this.scheduler = scheduler;
+        this.ready = new ConcurrentLinkedQueue<C>();
+        this.available = new AtomicInteger(0);
+        this.filling = new AtomicInteger(0);
+        this.hits = new AtomicLong(0L);
+        this.misses = new AtomicLong(0L);
+        this.refills = new AtomicLong(0L);
+        this.failures = new AtomicLong(0L);
+        this.refillNanos = new AtomicLong(0L);
+        this.maxRefillNanos = new AtomicLong(0L);
+        this.retrying = new AtomicBoolean(false);
+        this.backoff = new AtomicInteger(0);
+        this.closed = false;
+    }
+
+    @Override
+    public ListenableFuture<? extends C> get() {
+        C connection;
+        while ((connection = ready.poll()) != null) {
+            available.decrementAndGet();
+            if (connection.state() == Connection.State.CONNECTION_OPENED) {
+                hits.incrementAndGet();
+                refill();
+                return Futures.immediateFuture(connection);
+            }
+            // closed while idle
+            connection.close();
+        }
+        misses.incrementAndGet();
+        refill();
+        return connections.get();
+    }
+
+    /**
+     * Starts connecting until established and pending connections reach the pool size.
+     * 
+     * After a failed connect, refilling stops until a retry on the scheduler,
+     * with exponential backoff while connects keep failing.
+     */
+    public void refill() {
+        while (true) {
+            if (closed || retrying.get()) {
+                return;
+            }
+            int pending = filling.get();
+            if (available.get() + pending >= size) {
+                return;
+            }
+            if (filling.compareAndSet(pending, pending + 1)) {
+                final long start = System.nanoTime();
+                Futures.addCallback(connections.get(), new FutureCallback<C>() {
+                    @Override
+                    public void onSuccess(C result) {
+                        long nanos = System.nanoTime() - start;
+                        refills.incrementAndGet();
+                        refillNanos.addAndGet(nanos);
+                        long max;
+                        while ((max = maxRefillNanos.get()) < nanos) {
+                            if (maxRefillNanos.compareAndSet(max, nanos)) {
+                                break;
+                            }
+                        }
+                        backoff.set(0);
+                        ready.add(result);
+                        available.incrementAndGet();
+                        filling.decrementAndGet();
+                        if (closed) {
+                            drain();
+                        } else {
+                            refill();
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        failures.incrementAndGet();
+                        filling.decrementAndGet();
+                        retry();
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Closes idle connections and any still being established, and stops refilling.
+     * Connections already taken are not affected.
+     */
+    public void close() {
+        closed = true;
+        drain();
+    }
+
+    protected void drain() {
+        C connection;
+        while ((connection = ready.poll()) != null) {
+            available.decrementAndGet();
+            connection.close();
+        }
+    }
+
+    protected void retry() {
+        if (!retrying.compareAndSet(false, true)) {
+            return;
+        }
+        long delay = RETRY_MILLIS << Math.min(backoff.getAndIncrement(), MAX_BACKOFF);
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                retrying.set(false);
+                refill();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    public int available() {
+        return available.get();
+    }
+
+    public StringBuilder mntr(String prefix, StringBuilder output) {
+        long refills = this.refills.get();
+        output.append(prefix).append("hits\t").append(hits.get()).append('\n');
+        output.append(prefix).append("misses\t").append(misses.get()).append('\n');
+        output.append(prefix).append("available\t").append(available()).append('\n');
+        output.append(prefix).append("failures\t").append(failures.get()).append('\n');
+        output.append(prefix).append("refill_avg_us\t").append((refills == 0L) ? 0L : TimeUnit.NANOSECONDS.toMicros(refillNanos.get() / refills)).append('\n');
+        output.append(prefix).append("refill_max_us\t").append(TimeUnit.NANOSECONDS.toMicros(maxRefillNanos.get())).append('\n');
+        return output;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("size", size)
+                .add("available", available())
+                .add("hits", hits.get())
+                .add("misses", misses.get()).toString();
+    }
+}
@@ -0,0 +1,83 @@
+package edu.uw.zookeeper.proxy;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class BinaryTraceFormatTest {
+
+    protected static void assertVarLong(long value, int length) {
+        ByteBuffer buf = ByteBuffer.allocate(16);
+        BinaryTraceFormat.putVarLong(buf, value);
+        assertEquals(length, buf.position());
+        buf.flip();
+        assertEquals(value, BinaryTraceFormat.getVarLong(buf));
+        assertFalse(buf.hasRemaining());
+    }
+
+    protected static void assertZigZag(int value, int length) {
+        ByteBuffer buf = ByteBuffer.allocate(16);
+        BinaryTraceFormat.putZigZag(buf, value);
+        assertEquals(length, buf.position());
+        buf.flip();
+        assertEquals(value, BinaryTraceFormat.getZigZag(buf));
+        assertFalse(buf.hasRemaining());
+    }
+
+    @Test
+    public void testVarLong() {
+        assertVarLong(0L, 1);
+        assertVarLong(1L, 1);
+        assertVarLong(127L, 1);
+        assertVarLong(128L, 2);
+        assertVarLong(16383L, 2);
+        assertVarLong(16384L, 3);
+        assertVarLong(Integer.MAX_VALUE, 5);
+        assertVarLong(0xFFFFFFFFL, 5);
+        assertVarLong(Long.MAX_VALUE, 9);
+        assertVarLong(Long.MIN_VALUE, 10);
+        assertVarLong(-1L, 10);
+    }
+
+    @Test
+    public void testZigZag() {
+        assertZigZag(0, 1);
+        assertZigZag(-1, 1);
+        assertZigZag(1, 1);
+        assertZigZag(-64, 1);
+        assertZigZag(64, 2);
+        assertZigZag(-65, 2);
+        // opcodes and error codes, such as CLOSE_SESSION and NONODE
+        assertZigZag(-11, 1);
+        assertZigZag(-101, 2);
+        assertZigZag(Integer.MAX_VALUE, 5);
+        assertZigZag(Integer.MIN_VALUE, 5);
+    }
+
+    @Test
+    public void testRandomRoundTrips() {
+        Random random = new Random(1L);
+        ByteBuffer buf = ByteBuffer.allocate(1024 * 16);
+        long[] longs = new long[1024];
+        int[] ints = new int[1024];
+        for (int i=0; i<longs.length; ++i) {
+            // spread over every encoded length
+            longs[i] = random.nextLong() >>> random.nextInt(64);
+            ints[i] = random.nextInt() >> random.nextInt(32);
+            BinaryTraceFormat.putVarLong(buf, longs[i]);
+            BinaryTraceFormat.putZigZag(buf, ints[i]);
+        }
+        buf.flip();
+        for (int i=0; i<longs.length; ++i) {
+            assertEquals(longs[i], BinaryTraceFormat.getVarLong(buf));
+            assertEquals(ints[i], BinaryTraceFormat.getZigZag(buf));
+        }
+        assertFalse(buf.hasRemaining());
+    }
+}
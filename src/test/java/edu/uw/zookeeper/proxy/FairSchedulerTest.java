@@ -0,0 +1,229 @@
+package edu.uw.zookeeper.proxy;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import edu.uw.zookeeper.protocol.Message;
+import edu.uw.zookeeper.protocol.ProtocolRequestMessage;
+import edu.uw.zookeeper.protocol.proto.IAuthRequest;
+import edu.uw.zookeeper.protocol.proto.IGetDataRequest;
+import edu.uw.zookeeper.protocol.proto.ISetDataRequest;
+
+@RunWith(JUnit4.class)
+public class FairSchedulerTest {
+
+    // most of a quantum, so a class of weight one sends one per round
+    protected static final byte[] DATA = new byte[900];
+
+    /**
+     * Records the order requests reach the backend, and holds their responses until completed.
+     */
+    protected static class Backend {
+
+        protected final List<String> dispatched = Lists.newArrayList();
+        protected final Map<String, SettableFuture<Message.ServerResponse<?>>> outstanding = Maps.newHashMap();
+
+        public FairScheduler.Dispatcher session(final String name) {
+            return new FairScheduler.Dispatcher() {
+                @Override
+                public ListenableFuture<Message.ServerResponse<?>> dispatch(Message.ClientRequest<?> request) {
+                    String key = name + request.xid();
+                    SettableFuture<Message.ServerResponse<?>> future = SettableFuture.create();
+                    dispatched.add(key);
+                    outstanding.put(key, future);
+                    return future;
+                }
+            };
+        }
+
+        public void complete(String key) {
+            assertTrue(key, outstanding.get(key).set(null));
+        }
+
+        /**
+         * Completes the earliest outstanding request, which may dispatch more.
+         */
+        public void completeNext() {
+            for (String key: dispatched) {
+                SettableFuture<Message.ServerResponse<?>> future = outstanding.get(key);
+                if (!future.isDone()) {
+                    future.set(null);
+                    return;
+                }
+            }
+            fail();
+        }
+    }
+
+    protected static Message.ClientRequest<?> write(int xid, String path) {
+        return ProtocolRequestMessage.of(xid, new ISetDataRequest(path, DATA, -1));
+    }
+
+    protected static Message.ClientRequest<?> read(int xid, String path) {
+        return ProtocolRequestMessage.of(xid, new IGetDataRequest(path, false));
+    }
+
+    protected static Message.ClientRequest<?> auth(int xid) {
+        return ProtocolRequestMessage.of(xid, new IAuthRequest(0, "digest", "user:password".getBytes(Charsets.UTF_8)));
+    }
+
+    @Test
+    public void testClassify() {
+        FairScheduler scheduler = FairScheduler.newInstance("a:1:/a:/x/y,b:2:/a/b", 10);
+        assertEquals(ImmutableList.of("a", "b", FairScheduler.DEFAULT_CLASS), Lists.transform(scheduler.classes(), new Function<FairScheduler.ServiceClass, String>() {
+            @Override
+            public String apply(FairScheduler.ServiceClass input) {
+                return input.name();
+            }
+        }));
+        assertEquals("a", scheduler.classify(new IGetDataRequest("/a/c", false)).name());
+        assertEquals("b", scheduler.classify(new IGetDataRequest("/a/b/c", false)).name());
+        assertEquals("a", scheduler.classify(new IGetDataRequest("/x/y", false)).name());
+        assertEquals(FairScheduler.DEFAULT_CLASS, scheduler.classify(new IGetDataRequest("/c", false)).name());
+        assertNull(scheduler.classify(auth(1).record()));
+
+        // a session stays in the class of its first request with a path
+        Backend backend = new Backend();
+        FairScheduler.SessionQueue queue = scheduler.newQueue(backend.session("s"));
+        assertNull(queue.serviceClass());
+        scheduler.submit(queue, auth(1));
+        assertNull(queue.serviceClass());
+        scheduler.submit(queue, read(2, "/a/b"));
+        scheduler.submit(queue, read(3, "/c"));
+        assertEquals("b", queue.serviceClass().name());
+    }
+
+    /**
+     * Classes of equal weight take turns, one request per round.
+     */
+    @Test
+    public void testEqualWeights() {
+        FairScheduler scheduler = FairScheduler.newInstance("a:1:/a,b:1:/b", 1);
+        Backend backend = new Backend();
+        // holds the only slot while the others queue
+        scheduler.submit(scheduler.newQueue(backend.session("c")), write(0, "/c"));
+        FairScheduler.SessionQueue a = scheduler.newQueue(backend.session("a"));
+        FairScheduler.SessionQueue b = scheduler.newQueue(backend.session("b"));
+        for (int xid=1; xid<=4; ++xid) {
+            scheduler.submit(a, write(xid, "/a/" + xid));
+        }
+        for (int xid=1; xid<=4; ++xid) {
+            scheduler.submit(b, write(xid, "/b/" + xid));
+        }
+        assertEquals(ImmutableList.of("c0"), backend.dispatched);
+        for (int i=0; i<8; ++i) {
+            backend.completeNext();
+        }
+        assertEquals(ImmutableList.of("c0", "a1", "b1", "a2", "b2", "a3", "b3", "a4", "b4"), backend.dispatched);
+    }
+
+    /**
+     * A class sends in proportion to its weight, and its requests stay in order.
+     */
+    @Test
+    public void testWeights() {
+        FairScheduler scheduler = FairScheduler.newInstance("a:3:/a,b:1:/b", 1);
+        Backend backend = new Backend();
+        scheduler.submit(scheduler.newQueue(backend.session("c")), write(0, "/c"));
+        FairScheduler.SessionQueue a = scheduler.newQueue(backend.session("a"));
+        FairScheduler.SessionQueue b = scheduler.newQueue(backend.session("b"));
+        for (int xid=1; xid<=6; ++xid) {
+            scheduler.submit(a, write(xid, "/a/" + xid));
+        }
+        for (int xid=1; xid<=2; ++xid) {
+            scheduler.submit(b, write(xid, "/b/" + xid));
+        }
+        for (int i=0; i<8; ++i) {
+            backend.completeNext();
+        }
+        assertEquals(ImmutableList.of("c0", "a1", "a2", "a3", "b1", "a4", "a5", "a6", "b2"), backend.dispatched);
+    }
+
+    /**
+     * Sessions of one class take turns, and each session's requests are sent in the order submitted.
+     */
+    @Test
+    public void testSessionOrder() {
+        FairScheduler scheduler = FairScheduler.newInstance("a:1:/a", 1);
+        Backend backend = new Backend();
+        scheduler.submit(scheduler.newQueue(backend.session("c")), write(0, "/c"));
+        FairScheduler.SessionQueue x = scheduler.newQueue(backend.session("x"));
+        FairScheduler.SessionQueue y = scheduler.newQueue(backend.session("y"));
+        for (int xid=1; xid<=3; ++xid) {
+            scheduler.submit(x, read(xid, "/a/x"));
+            scheduler.submit(y, read(xid, "/a/y"));
+        }
+        for (int i=0; i<6; ++i) {
+            backend.completeNext();
+        }
+        assertEquals(ImmutableList.of("c0", "x1", "y1", "x2", "y2", "x3", "y3"), backend.dispatched);
+    }
+
+    /**
+     * Session-level requests skip the budget, but not the session's own earlier requests.
+     */
+    @Test
+    public void testSessionRequestsBypass() {
+        FairScheduler scheduler = FairScheduler.newInstance("a:1:/a", 1);
+        Backend backend = new Backend();
+        scheduler.submit(scheduler.newQueue(backend.session("c")), write(0, "/c"));
+        FairScheduler.SessionQueue a = scheduler.newQueue(backend.session("a"));
+        FairScheduler.SessionQueue b = scheduler.newQueue(backend.session("b"));
+
+        // nothing of the session queued, so sent at once although the budget is used
+        scheduler.submit(a, auth(1));
+        assertEquals(ImmutableList.of("c0", "a1"), backend.dispatched);
+
+        // waits for the request ahead of it, then goes with it
+        scheduler.submit(a, write(2, "/a/2"));
+        scheduler.submit(a, auth(3));
+        scheduler.submit(b, write(1, "/a/b"));
+        assertEquals(ImmutableList.of("c0", "a1"), backend.dispatched);
+        backend.complete("c0");
+        assertEquals(ImmutableList.of("c0", "a1", "a2", "a3"), backend.dispatched);
+
+        // session-level requests do not hold or free any of the budget
+        backend.complete("a1");
+        backend.complete("a3");
+        assertEquals(ImmutableList.of("c0", "a1", "a2", "a3"), backend.dispatched);
+        backend.complete("a2");
+        assertEquals(ImmutableList.of("c0", "a1", "a2", "a3", "b1"), backend.dispatched);
+    }
+
+    @Test
+    public void testResponses() throws Exception {
+        FairScheduler scheduler = FairScheduler.newInstance("a:1:/a", 1);
+        Backend backend = new Backend();
+        FairScheduler.SessionQueue a = scheduler.newQueue(backend.session("a"));
+        ListenableFuture<Message.ServerResponse<?>> first = scheduler.submit(a, read(1, "/a"));
+        ListenableFuture<Message.ServerResponse<?>> second = scheduler.submit(a, read(2, "/a"));
+        assertFalse(first.isDone());
+        backend.outstanding.get("a1").setException(new IllegalStateException());
+        assertTrue(first.isDone());
+        try {
+            first.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        // a failure frees its slot too
+        assertEquals(ImmutableList.of("a1", "a2"), backend.dispatched);
+        backend.complete("a2");
+        assertNull(second.get());
+    }
+}
@@ -0,0 +1,173 @@
+package edu.uw.zookeeper.proxy;
+
+import static org.junit.Assert.*;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.Maps;
+
+@RunWith(JUnit4.class)
+public class LongConcurrentHashMapTest {
+
+    @Test
+    public void testPutGetRemove() {
+        LongConcurrentHashMap<String> map = LongConcurrentHashMap.newInstance(1, 8);
+        assertTrue(map.isEmpty());
+        assertNull(map.put(1L, "a"));
+        assertNull(map.put(-1L, "b"));
+        assertNull(map.put(Long.MIN_VALUE, "c"));
+        assertEquals(3, map.size());
+        assertEquals("a", map.get(1L));
+        assertEquals("b", map.get(Long.valueOf(-1L)));
+        assertEquals("c", map.get(Long.MIN_VALUE));
+        assertNull(map.get(2L));
+        assertNull(map.get("1"));
+
+        assertEquals("a", map.put(1L, "d"));
+        assertEquals("d", map.putIfAbsent(1L, "e"));
+        assertEquals("d", map.get(1L));
+        assertFalse(map.replace(1L, "e", "f"));
+        assertTrue(map.replace(1L, "d", "f"));
+        assertNull(map.replace(2L, "g"));
+        assertFalse(map.containsKey(2L));
+
+        assertFalse(map.remove(1L, "d"));
+        assertTrue(map.remove(1L, "f"));
+        assertNull(map.remove(1L));
+        assertEquals("b", map.remove(-1L));
+        assertEquals(1, map.size());
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(Long.MIN_VALUE));
+    }
+
+    @Test(expected=NullPointerException.class)
+    public void testNullValue() {
+        LongConcurrentHashMap.<String>newInstance().put(1L, null);
+    }
+
+    @Test
+    public void testResize() {
+        LongConcurrentHashMap<Long> map = LongConcurrentHashMap.newInstance(2, 8);
+        int n = 10000;
+        for (long i=0; i<n; ++i) {
+            assertNull(map.put(i * 31L, Long.valueOf(i)));
+        }
+        assertEquals(n, map.size());
+        for (long i=0; i<n; ++i) {
+            assertEquals(Long.valueOf(i), map.get(i * 31L));
+        }
+        int entries = 0;
+        for (Map.Entry<Long, Long> entry: map.entrySet()) {
+            assertEquals(entry.getKey().longValue(), entry.getValue().longValue() * 31L);
+            entries++;
+        }
+        assertEquals(n, entries);
+    }
+
+    /**
+     * Keys removed and added again reuse tombstones, which must not hide keys probed past them.
+     */
+    @Test
+    public void testTombstones() {
+        LongConcurrentHashMap<Long> map = LongConcurrentHashMap.newInstance(1, 8);
+        Map<Long, Long> expected = Maps.newHashMap();
+        Random random = new Random(1L);
+        for (int i=0; i<100000; ++i) {
+            Long key = Long.valueOf(random.nextInt(12));
+            switch (random.nextInt(3)) {
+            case 0:
+                assertEquals(expected.put(key, key), map.put(key, key));
+                break;
+            case 1:
+                assertEquals(expected.remove(key), map.remove(key));
+                break;
+            default:
+                assertEquals(expected.get(key), map.get(key));
+                break;
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        assertEquals(expected, Maps.newHashMap(map));
+    }
+
+    @Test
+    public void testIteratorRemove() {
+        LongConcurrentHashMap<Long> map = LongConcurrentHashMap.newInstance(4, 16);
+        for (long i=0; i<100; ++i) {
+            map.put(i, Long.valueOf(i));
+        }
+        for (Iterator<Map.Entry<Long, Long>> entries = map.entrySet().iterator(); entries.hasNext(); ) {
+            if (entries.next().getKey().longValue() % 2L == 0L) {
+                entries.remove();
+            }
+        }
+        assertEquals(50, map.size());
+        for (long i=0; i<100; ++i) {
+            assertEquals((i % 2L == 0L) ? null : Long.valueOf(i), map.get(i));
+        }
+    }
+
+    /**
+     * A writer removes and adds a few colliding keys again, so their slots are reused
+     * while readers probe them; a reader must never see another key's value.
+     */
+    @Test(timeout=30000)
+    public void testConcurrentChurn() throws Exception {
+        final int keys = 5;
+        final LongConcurrentHashMap<Long> map = LongConcurrentHashMap.newInstance(1, 8);
+        final Long[] values = new Long[keys];
+        for (int i=0; i<keys; ++i) {
+            values[i] = Long.valueOf(i);
+            map.put(i, values[i]);
+        }
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        int readers = 3;
+        final CountDownLatch finished = new CountDownLatch(readers);
+        for (int r=0; r<readers; ++r) {
+            Thread reader = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        int i = 0;
+                        while (!done.get()) {
+                            Long value = map.get(i);
+                            if ((value != null) && (value.longValue() != i)) {
+                                failure.compareAndSet(null, String.format("got %s for key %d", value, i));
+                            }
+                            i = (i + 1) % keys;
+                        }
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            };
+            reader.setDaemon(true);
+            reader.start();
+        }
+        for (int n=0; n<1000000; ++n) {
+            int i = n % keys;
+            int j = (i + 1) % keys;
+            map.remove(i);
+            map.remove(j);
+            // in the opposite order, so each may take the other's slot
+            map.put(j, values[j]);
+            map.put(i, values[i]);
+        }
+        done.set(true);
+        finished.await();
+        assertNull(failure.get(), failure.get());
+        assertEquals(keys, map.size());
+    }
+}
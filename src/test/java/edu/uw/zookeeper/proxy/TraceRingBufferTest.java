@@ -0,0 +1,192 @@
+package edu.uw.zookeeper.proxy;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.Lists;
+
+import edu.uw.zookeeper.common.Publisher;
+
+@RunWith(JUnit4.class)
+public class TraceRingBufferTest {
+
+    protected static class Recorded implements TraceRingBuffer.Consumer {
+
+        protected final List<Integer> requests = Lists.newArrayList();
+        protected final List<Integer> responses = Lists.newArrayList();
+
+        @Override
+        public void request(long nanoTime, long sessionId, int xid, int opcode, String path) {
+            assertEquals(xid, nanoTime);
+            assertEquals(xid, sessionId);
+            assertEquals(xid, opcode);
+            assertEquals("/" + xid, path);
+            requests.add(Integer.valueOf(xid));
+        }
+
+        @Override
+        public void response(long nanoTime, long sessionId, int xid, long zxid, int err) {
+            assertEquals(xid, nanoTime);
+            assertEquals(xid, sessionId);
+            assertEquals(xid, zxid);
+            assertEquals(-xid, err);
+            responses.add(Integer.valueOf(xid));
+        }
+    }
+
+    protected static class Events implements Publisher {
+
+        protected final List<Object> events = Lists.newArrayList();
+
+        @Override
+        public void post(Object event) {
+            events.add(event);
+        }
+    }
+
+    @Test
+    public void testCapacity() {
+        assertEquals(4, TraceRingBuffer.newInstance(1).capacity());
+        assertEquals(4, TraceRingBuffer.newInstance(4).capacity());
+        assertEquals(8, TraceRingBuffer.newInstance(5).capacity());
+        assertEquals(8, TraceRingBuffer.newInstance(8).capacity());
+        assertEquals(16, TraceRingBuffer.newInstance(9).capacity());
+    }
+
+    @Test
+    public void testWraparound() {
+        TraceRingBuffer buffer = TraceRingBuffer.newInstance(4);
+        Recorded records = new Recorded();
+        int xid = 0;
+        // many times around, a few slots at a time so the head and tail pass each other's index
+        for (int round=0; round<100; ++round) {
+            for (int i=0; i<3; ++i) {
+                assertTrue(buffer.offerRequest(xid, xid, xid, xid, "/" + xid));
+                assertTrue(buffer.offerResponse(xid, xid, xid, xid, -xid));
+                xid++;
+                if (i % 2 == 0) {
+                    assertEquals(2, buffer.drain(records, 2));
+                }
+            }
+            buffer.drain(records, Integer.MAX_VALUE);
+        }
+        assertEquals(0, buffer.drain(records, Integer.MAX_VALUE));
+        assertEquals(0L, buffer.dropped());
+        assertEquals(xid, records.requests.size());
+        assertEquals(xid, records.responses.size());
+        for (int i=0; i<xid; ++i) {
+            assertEquals(i, records.requests.get(i).intValue());
+            assertEquals(i, records.responses.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void testFullRingDrops() {
+        TraceRingBuffer buffer = TraceRingBuffer.newInstance(4);
+        Recorded records = new Recorded();
+        for (int xid=0; xid<4; ++xid) {
+            assertTrue(buffer.offerRequest(xid, xid, xid, xid, "/" + xid));
+        }
+        assertFalse(buffer.offerRequest(4, 4, 4, 4, "/4"));
+        assertFalse(buffer.offerResponse(5, 5, 5, 5, -5));
+        assertEquals(2L, buffer.dropped());
+
+        // a limited drain frees only what it consumed
+        assertEquals(1, buffer.drain(records, 1));
+        assertTrue(buffer.offerRequest(4, 4, 4, 4, "/4"));
+        assertFalse(buffer.offerRequest(5, 5, 5, 5, "/5"));
+        assertEquals(3L, buffer.dropped());
+
+        assertEquals(4, buffer.drain(records, Integer.MAX_VALUE));
+        assertEquals(Lists.newArrayList(0, 1, 2, 3, 4), records.requests);
+        assertTrue(records.responses.isEmpty());
+    }
+
+    @Test
+    public void testEvents() {
+        TraceRingBuffer buffer = TraceRingBuffer.newInstance(4);
+        Events events = new Events();
+        List<Object> expected = Lists.newArrayList();
+        for (int i=0; i<20; ++i) {
+            Object event = Integer.valueOf(i);
+            assertTrue(buffer.offer(event));
+            expected.add(event);
+            if (i % 4 == 3) {
+                assertFalse(buffer.offer("dropped"));
+                assertEquals(4, buffer.drain(events, Integer.MAX_VALUE));
+            }
+        }
+        assertEquals(5L, buffer.dropped());
+        assertEquals(expected, events.events);
+    }
+
+    /**
+     * Producers on several threads each see their own records drained in order,
+     * and every record is either drained or counted as dropped.
+     */
+    @Test(timeout=30000)
+    public void testConcurrentProducers() throws Exception {
+        final TraceRingBuffer buffer = TraceRingBuffer.newInstance(64);
+        final int producers = 4;
+        final int offers = 100000;
+        final int[] next = new int[producers];
+        final int[] accepted = new int[producers];
+        TraceRingBuffer.Consumer consumer = new TraceRingBuffer.Consumer() {
+            @Override
+            public void request(long nanoTime, long sessionId, int xid, int opcode, String path) {
+                int producer = (int) sessionId;
+                assertTrue(xid >= next[producer]);
+                next[producer] = xid + 1;
+            }
+
+            @Override
+            public void response(long nanoTime, long sessionId, int xid, long zxid, int err) {
+                fail();
+            }
+        };
+        List<Thread> threads = Lists.newArrayList();
+        for (int p=0; p<producers; ++p) {
+            final int producer = p;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    int count = 0;
+                    for (int xid=0; xid<offers; ++xid) {
+                        if (buffer.offerRequest(0L, producer, xid, 0, null)) {
+                            count++;
+                        }
+                    }
+                    accepted[producer] = count;
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        long drained = 0L;
+        while (true) {
+            boolean alive = false;
+            for (Thread thread: threads) {
+                alive = alive || thread.isAlive();
+            }
+            int count = buffer.drain(consumer, 1024);
+            drained += count;
+            if (!alive && (count == 0)) {
+                break;
+            }
+        }
+        for (Thread thread: threads) {
+            thread.join();
+        }
+        long total = 0L;
+        for (int p=0; p<producers; ++p) {
+            total += accepted[p];
+        }
+        assertEquals(total, drained);
+        assertEquals((long) producers * offers, total + buffer.dropped());
+    }
+}